@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormbench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.exception.ZormException;
+
+/**
+ * Creates the in-memory H2 database used by the benchmarks. The database has
+ * the same "item" and "user" tables as the test database (see
+ * resources/test-db-schema.sql) and a configurable number of items.
+ */
+public class BenchDatabase {
+
+	/**
+	 * The jdbc url of the in-memory database (the database is kept until the
+	 * JVM exits).
+	 */
+	public final static String JDBC_URL = "jdbc:h2:mem:zormbench;MODE=MySQL;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1";
+
+	/**
+	 * Create (or recreate) the tables with the specified number of items, and
+	 * set the jdbc url of the <code>ZManager</code>. The items have the ids
+	 * from 1 to numItems.
+	 * 
+	 * @param numItems
+	 */
+	public static void init(int numItems) {
+		Connection sqlConn = null;
+		try {
+			sqlConn = DriverManager.getConnection(JDBC_URL);
+			Statement stmt = sqlConn.createStatement();
+			stmt.execute("DROP TABLE IF EXISTS item");
+			stmt.execute("DROP TABLE IF EXISTS user");
+			stmt.execute("CREATE TABLE item (id INT NOT NULL AUTO_INCREMENT, "
+					+ "name VARCHAR(1024) NOT NULL, "
+					+ "rating INT DEFAULT 5 NOT NULL, "
+					+ "active BOOLEAN NOT NULL, author_id VARCHAR(30), "
+					+ "PRIMARY KEY (id))");
+			stmt.execute("CREATE TABLE user (id VARCHAR(30) NOT NULL, "
+					+ "name VARCHAR(30) NOT NULL, PRIMARY KEY (id))");
+			stmt.execute("INSERT INTO user (id, name) VALUES "
+					+ "('alice', 'Alice From Wonderland'), ('john', 'John Doe')");
+			stmt.close();
+			PreparedStatement insertStmt = sqlConn
+					.prepareStatement("INSERT INTO item (id, name, rating, active, author_id) VALUES (?, ?, ?, ?, ?)");
+			for (int i = 1; i <= numItems; i++) {
+				insertStmt.setInt(1, i);
+				insertStmt.setString(2, "item" + i);
+				insertStmt.setInt(3, i % 10);
+				insertStmt.setBoolean(4, (i % 2) == 0);
+				insertStmt.setString(5, ((i % 3) == 0) ? "john" : null);
+				insertStmt.addBatch();
+				if ((i % 1000) == 0) {
+					insertStmt.executeBatch();
+				}
+			}
+			insertStmt.executeBatch();
+			insertStmt.close();
+		} catch (Exception e) {
+			throw new ZormException("Error creating the benchmark database", e);
+		} finally {
+			if (sqlConn != null) {
+				try {
+					sqlConn.close();
+				} catch (Exception e) {
+					throw new ZormException(
+							"Error closing the SQL Connection", e);
+				}
+			}
+		}
+		ZManager.setJdbcUrl(JDBC_URL);
+	}
+
+}
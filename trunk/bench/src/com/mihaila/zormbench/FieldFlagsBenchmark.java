@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZPersistentMeta;
+import com.mihaila.zorm.field.ZIntField;
+import com.mihaila.zorm.field.ZStringField;
+
+/**
+ * Benchmarks for the field flags of <code>ZPersistent</code> objects, for a
+ * narrow entity (8 fields, single flag word) and a wide entity (200 fields,
+ * multiple flag words). No database is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FieldFlagsBenchmark {
+
+	/**
+	 * Entity with 8 fields.
+	 */
+	public final static class NarrowEntity extends ZPersistent {
+
+		public final static ZPersistentMeta META = new ZPersistentMeta(
+				NarrowEntity.class, "narrow");
+
+		public final static ZField[] FIELDS = createFields(8);
+
+		static {
+			META.setFields(FIELDS);
+		}
+
+		@Override
+		public ZPersistentMeta getMeta() {
+			return META;
+		}
+	}
+
+	/**
+	 * Entity with 200 fields.
+	 */
+	public final static class WideEntity extends ZPersistent {
+
+		public final static ZPersistentMeta META = new ZPersistentMeta(
+				WideEntity.class, "wide");
+
+		public final static ZField[] FIELDS = createFields(200);
+
+		static {
+			META.setFields(FIELDS);
+		}
+
+		@Override
+		public ZPersistentMeta getMeta() {
+			return META;
+		}
+	}
+
+	private NarrowEntity m_narrow;
+
+	private WideEntity m_wide;
+
+	@Setup
+	public void setup() {
+		m_narrow = new NarrowEntity();
+		initialize(m_narrow, NarrowEntity.FIELDS);
+		m_wide = new WideEntity();
+		initialize(m_wide, WideEntity.FIELDS);
+	}
+
+	@Benchmark
+	public int checkFlagsNarrow() {
+		return checkFlags(m_narrow, NarrowEntity.FIELDS);
+	}
+
+	@Benchmark
+	public int checkFlagsWide() {
+		return checkFlags(m_wide, WideEntity.FIELDS);
+	}
+
+	@Benchmark
+	public ZPersistent initializeNarrow() {
+		NarrowEntity ob = new NarrowEntity();
+		initialize(ob, NarrowEntity.FIELDS);
+		return ob;
+	}
+
+	@Benchmark
+	public ZPersistent initializeWide() {
+		WideEntity ob = new WideEntity();
+		initialize(ob, WideEntity.FIELDS);
+		return ob;
+	}
+
+	/**
+	 * Creates an id field followed by alternating int and string fields.
+	 * 
+	 * @param numFields
+	 * @return the fields
+	 */
+	private static ZField[] createFields(int numFields) {
+		ZField[] fields = new ZField[numFields];
+		fields[0] = new ZStringField("id");
+		for (int i = 1; i < numFields; i++) {
+			fields[i] = ((i % 2) == 0) ? new ZIntField("f" + i)
+					: new ZStringField("f" + i);
+		}
+		return fields;
+	}
+
+	/**
+	 * Set all the fields (except the id) and mark the object as not modified,
+	 * as when the object is read from the database.
+	 * 
+	 * @param ob
+	 * @param fields
+	 */
+	private static void initialize(ZPersistent ob, ZField[] fields) {
+		for (int i = 1; i < fields.length; i++) {
+			ZField field = fields[i];
+			if (field instanceof ZIntField) {
+				((ZIntField) field).setInt(ob, i);
+			} else {
+				((ZStringField) field).setValue(ob, "value");
+			}
+		}
+		ob.setModified(false);
+	}
+
+	/**
+	 * Returns the number of initialized and modified flags set, for all the
+	 * fields.
+	 * 
+	 * @param ob
+	 * @param fields
+	 * @return the number of flags set
+	 */
+	private static int checkFlags(ZPersistent ob, ZField[] fields) {
+		int n = 0;
+		for (ZField field : fields) {
+			if (ob.isFieldInitialized(field)) {
+				n++;
+			}
+			if (ob.isFieldModified(field)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+}
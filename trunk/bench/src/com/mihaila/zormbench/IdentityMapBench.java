@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormbench;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+import com.sun.management.ThreadMXBean;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zormtest.helper.Item;
+
+/**
+ * Microbenchmark for the lookups in the identity map of a session (repeated
+ * <code>session.get(meta, id)</code> calls for loaded objects). It reports
+ * the time and the bytes allocated per lookup, compared to a lookup using
+ * "table:id" string keys. No database is needed.
+ * 
+ * Usage: java com.mihaila.zormbench.IdentityMapBench [numObjects] [numLookups]
+ */
+public class IdentityMapBench {
+
+	public static void main(String[] args) {
+		int numObjects = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		final int numLookups = (args.length > 1) ? Integer.parseInt(args[1])
+				: 10000000;
+		final String[] ids = new String[numObjects];
+		for (int i = 0; i < numObjects; i++) {
+			ids[i] = Integer.toString(i + 1);
+		}
+		final ZSession session = ZManager.getNewSession();
+		final HashMap<String, ZPersistent> stringKeyedMap = new HashMap<String, ZPersistent>();
+		for (String id : ids) {
+			ZPersistent ob = session.getShallow(Item.META, id);
+			stringKeyedMap.put(Item.META.getTableName() + ':' + id, ob);
+		}
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			runSessionLookups(session, ids, numLookups / 10);
+			runStringKeyedLookups(stringKeyedMap, ids, numLookups / 10);
+		}
+		report("session.get(meta, id)", numLookups, new Runnable() {
+			public void run() {
+				runSessionLookups(session, ids, numLookups);
+			}
+		});
+		report("\"table:id\" keyed map", numLookups, new Runnable() {
+			public void run() {
+				runStringKeyedLookups(stringKeyedMap, ids, numLookups);
+			}
+		});
+	}
+
+	/**
+	 * Get the loaded objects from the session, in a round robin order.
+	 */
+	private static int runSessionLookups(ZSession session, String[] ids,
+			int numLookups) {
+		int found = 0;
+		for (int i = 0; i < numLookups; i++) {
+			if (session.get(Item.META, ids[i % ids.length]) != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Get the objects from a map using "table:id" keys (the previous identity
+	 * map implementation), in a round robin order.
+	 */
+	private static int runStringKeyedLookups(
+			HashMap<String, ZPersistent> map, String[] ids, int numLookups) {
+		int found = 0;
+		String tableName = Item.META.getTableName();
+		for (int i = 0; i < numLookups; i++) {
+			if (map.get(tableName + ':' + ids[i % ids.length]) != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Run the specified code and print the time and the bytes allocated per
+	 * lookup.
+	 */
+	private static void report(String name, int numLookups, Runnable code) {
+		ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+		long timeBefore = System.nanoTime();
+		code.run();
+		long time = System.nanoTime() - timeBefore;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId)
+				- bytesBefore;
+		System.out.println(name + ": " + ((double) time / numLookups)
+				+ " ns/lookup, " + ((double) bytes / numLookups)
+				+ " bytes/lookup");
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormbench;
+
+import static com.mihaila.zorm.query.Z.EQUALS;
+import static com.mihaila.zorm.query.Z.GREATER;
+import static com.mihaila.zorm.query.Z.Join.LEFT;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zormtest.helper.Item;
+import com.mihaila.zormtest.helper.User;
+
+/**
+ * Benchmarks for <code>ZSelectQuery</code>: building the SQL query
+ * (<code>toString()</code>), executing queries returning 1, 100 and 10000
+ * rows, and the initialization of the objects from a <code>ResultSet</code>
+ * (<code>ZSession.getAndFetchFromResultSet(...)</code>).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SelectQueryBenchmark {
+
+	/**
+	 * The number of rows returned by the executed queries.
+	 */
+	@Param( { "1", "100", "10000" })
+	public int numRows;
+
+	private final static ZField[] HYDRATED_FIELDS = new ZField[] { Item.NAME,
+			Item.RATING, Item.ACTIVE, Item.AUTHOR_ID };
+
+	private ZSession m_session;
+
+	private Statement m_stmt;
+
+	/**
+	 * A scrollable result set with numRows items, used to measure the
+	 * initialization of the objects without the query execution.
+	 */
+	private ResultSet m_rs;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchDatabase.init(numRows);
+		m_session = ZManager.getNewSession();
+		m_stmt = m_session.getSqlConnection().createStatement(
+				ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+		m_rs = m_stmt
+				.executeQuery("SELECT id, name, rating, active, author_id FROM item");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		m_rs.close();
+		m_stmt.close();
+		m_session.close();
+	}
+
+	@Benchmark
+	public String toStringQuery() {
+		return m_session.getSelectQuery().autoAddToFrom(false).select(
+				Item.META).select(User.META).from(Item.META).join(LEFT,
+				User.META, Item.AUTHOR_ID, User.ID).where(Item.RATING,
+				GREATER, 2).where(Item.ACTIVE, EQUALS, true).orderBy(Item.NAME)
+				.take(10).toString();
+	}
+
+	@Benchmark
+	public Map<String, Object[]> executeQuery() {
+		Map<String, Object[]> result = m_session.getSelectQuery().select(
+				Item.META).take(numRows).execute();
+		// the objects are initialized again by the next execution
+		m_session.dettachAll();
+		return result;
+	}
+
+	@Benchmark
+	public void getAndFetchFromResultSet(Blackhole blackhole) throws Exception {
+		m_rs.beforeFirst();
+		while (m_rs.next()) {
+			blackhole.consume(m_session.getAndFetchFromResultSet(Item.META,
+					HYDRATED_FIELDS, m_rs, 1));
+		}
+		m_session.dettachAll();
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zormtest.helper.Item;
+
+/**
+ * Benchmarks for <code>ZSession.get(ZPersistentMeta, String)</code>, when the
+ * object is already loaded in the session (cache hit) and when it must be
+ * read from the database (cache miss).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SessionGetBenchmark {
+
+	/**
+	 * The number of items in the database (and loaded in the session).
+	 */
+	private final static int NUM_ITEMS = 1000;
+
+	private ZSession m_session;
+
+	private String[] m_ids;
+
+	private int m_next; // initially 0
+
+	@Setup
+	public void setup() {
+		BenchDatabase.init(NUM_ITEMS);
+		m_session = ZManager.getNewSession();
+		m_ids = new String[NUM_ITEMS];
+		for (int i = 0; i < NUM_ITEMS; i++) {
+			m_ids[i] = Integer.toString(i + 1);
+			m_session.get(Item.META, m_ids[i]);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		m_session.close();
+	}
+
+	/**
+	 * Returns the next id, in a round robin order.
+	 */
+	private String nextId() {
+		String id = m_ids[m_next];
+		m_next = (m_next + 1) % m_ids.length;
+		return id;
+	}
+
+	@Benchmark
+	public ZPersistent getCacheHit() {
+		return m_session.get(Item.META, nextId());
+	}
+
+	@Benchmark
+	public ZPersistent getCacheMiss() {
+		ZPersistent ob = m_session.get(Item.META, nextId());
+		// the next get of this id must read it from the database
+		ob.dettach();
+		return ob;
+	}
+
+}
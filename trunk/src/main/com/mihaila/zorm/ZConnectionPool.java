@@ -0,0 +1,925 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mihaila.zorm.exception.ZormException;
+
+/**
+ * A lightweight pool of SQL connections created using a jdbc url. The
+ * connections idle for more than the validationIdleTime are validated when
+ * borrowed, the idle connections are closed after an idle timeout (but the
+ * pool keeps at least minSize connections, opened by <code>fill()</code> or
+ * by the first borrow) and all the connections are closed after their
+ * maximum lifetime. If the pool is set with
+ * <code>ZManager.setConnectionPool(ZConnectionPool)</code>, the sessions
+ * borrow their connections from it and return them when they are closed.
+ * 
+ * The time spent by the threads waiting for a connection is recorded (see
+ * <code>getTotalWaitTime()</code> and <code>getMaxWaitTime()</code>).
+ */
+public class ZConnectionPool {
+
+	/**
+	 * The lock guarding the state of the pool. A <code>ReentrantLock</code>
+	 * is used (instead of <code>synchronized</code>), so the threads waiting
+	 * for a connection don't pin the carrier threads of virtual threads.
+	 */
+	private final ReentrantLock m_lock = new ReentrantLock();
+
+	/**
+	 * Signaled when a connection is returned or closed (or the pool is
+	 * closed).
+	 */
+	private final Condition m_available = m_lock.newCondition();
+
+	/**
+	 * The jdbc url used to create the connections.
+	 */
+	private final String m_jdbcUrl;
+
+	/**
+	 * The minimum number of connections kept open.
+	 */
+	private int m_minSize; // default 0
+
+	/**
+	 * The maximum number of connections opened.
+	 */
+	private int m_maxSize = 10; // default 10
+
+	/**
+	 * The maximum time (in milliseconds) a thread waits to borrow a
+	 * connection.
+	 */
+	private long m_maxWait = 30000; // default 30 seconds
+
+	/**
+	 * The time (in milliseconds) after which an idle connection is closed.
+	 */
+	private long m_idleTimeout = 600000; // default 10 minutes
+
+	/**
+	 * The time (in milliseconds) after which a connection is closed.
+	 */
+	private long m_maxLifetime = 1800000; // default 30 minutes
+
+	/**
+	 * The SQL query used to validate the connections when they are borrowed.
+	 */
+	private String m_validationQuery = "SELECT 1";
+
+	/**
+	 * The time (in milliseconds) an idle connection must have been idle to be
+	 * validated when it is borrowed.
+	 */
+	private long m_validationIdleTime = 1000; // default 1 second
+
+	/**
+	 * The idle connections, the most recently returned first.
+	 */
+	private final LinkedList<PooledConnection> m_idleConnections = new LinkedList<PooledConnection>();
+
+	/**
+	 * The borrowed connections.
+	 */
+	private final IdentityHashMap<Connection, PooledConnection> m_borrowedConnections = new IdentityHashMap<Connection, PooledConnection>();
+
+	/**
+	 * The number of connections opened (idle, borrowed or being opened).
+	 */
+	private int m_numConnections; // initially 0
+
+	/**
+	 * The number of threads waiting for a connection.
+	 */
+	private int m_numWaiting; // initially 0
+
+	/**
+	 * The number of connections borrowed since the pool was created.
+	 */
+	private long m_numBorrows; // initially 0
+
+	/**
+	 * The total time (in nanoseconds) spent borrowing connections.
+	 */
+	private long m_totalWaitTime; // initially 0
+
+	/**
+	 * The maximum time (in nanoseconds) spent borrowing a connection.
+	 */
+	private long m_maxWaitTime; // initially 0
+
+	/**
+	 * Specifies if the pool was closed.
+	 */
+	private boolean m_closed; // default false
+
+	/**
+	 * @param jdbcUrl
+	 *            the jdbc url used to create the connections. This url must
+	 *            include the user and password to connect for the SQL database
+	 *            authentification.
+	 */
+	public ZConnectionPool(String jdbcUrl) {
+		m_jdbcUrl = jdbcUrl;
+	}
+
+	/**
+	 * Returns the jdbc url used to create the connections.
+	 * 
+	 * @return the jdbc url used to create the connections
+	 */
+	public final String getJdbcUrl() {
+		return m_jdbcUrl;
+	}
+
+	/**
+	 * Returns the minimum number of connections kept open by the pool.
+	 * 
+	 * @return the minimum number of connections kept open by the pool
+	 */
+	public final int getMinSize() {
+		m_lock.lock();
+		try {
+			return m_minSize;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the minimum number of connections kept open by the pool (the idle
+	 * connections are not closed after the idle timeout if the pool has less
+	 * connections). The default value is 0.
+	 * 
+	 * @param minSize
+	 */
+	public final void setMinSize(int minSize) {
+		m_lock.lock();
+		try {
+			if (minSize < 0) {
+				throw new ZormException(
+						"The minimum size of the connection pool cannot be negative.");
+			}
+			m_minSize = minSize;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of connections opened by the pool.
+	 * 
+	 * @return the maximum number of connections opened by the pool
+	 */
+	public final int getMaxSize() {
+		m_lock.lock();
+		try {
+			return m_maxSize;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the maximum number of connections opened by the pool. When all of
+	 * them are borrowed, the threads wait for a connection to be returned.
+	 * The default value is 10.
+	 * 
+	 * @param maxSize
+	 */
+	public final void setMaxSize(int maxSize) {
+		m_lock.lock();
+		try {
+			if (maxSize < 1) {
+				throw new ZormException(
+						"The maximum size of the connection pool must be positive.");
+			}
+			m_maxSize = maxSize;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum time (in milliseconds) a thread waits to borrow a
+	 * connection.
+	 * 
+	 * @return the maximum time a thread waits to borrow a connection
+	 */
+	public final long getMaxWait() {
+		m_lock.lock();
+		try {
+			return m_maxWait;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the maximum time (in milliseconds) a thread waits to borrow a
+	 * connection, after which a <code>ZormException</code> is throwned. If
+	 * the value is 0, than the threads wait indefinitely. The default value
+	 * is 30000.
+	 * 
+	 * @param maxWait
+	 */
+	public final void setMaxWait(long maxWait) {
+		m_lock.lock();
+		try {
+			if (maxWait < 0) {
+				throw new ZormException(
+						"The maximum wait time of the connection pool cannot be negative.");
+			}
+			m_maxWait = maxWait;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time (in milliseconds) after which an idle connection is
+	 * closed.
+	 * 
+	 * @return the time after which an idle connection is closed
+	 */
+	public final long getIdleTimeout() {
+		m_lock.lock();
+		try {
+			return m_idleTimeout;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the time (in milliseconds) after which an idle connection is closed
+	 * (if the pool has more than minSize connections). If the value is 0,
+	 * than the idle connections are not closed. The default value is 600000.
+	 * 
+	 * @param idleTimeout
+	 */
+	public final void setIdleTimeout(long idleTimeout) {
+		m_lock.lock();
+		try {
+			if (idleTimeout < 0) {
+				throw new ZormException(
+						"The idle timeout of the connection pool cannot be negative.");
+			}
+			m_idleTimeout = idleTimeout;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time (in milliseconds) after which a connection is closed,
+	 * counted from its creation.
+	 * 
+	 * @return the maximum lifetime of a connection
+	 */
+	public final long getMaxLifetime() {
+		m_lock.lock();
+		try {
+			return m_maxLifetime;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the time (in milliseconds) after which a connection is closed,
+	 * counted from its creation. A borrowed connection is closed when it is
+	 * returned. If the value is 0, than the connections live indefinitely.
+	 * The default value is 1800000.
+	 * 
+	 * @param maxLifetime
+	 */
+	public final void setMaxLifetime(long maxLifetime) {
+		m_lock.lock();
+		try {
+			if (maxLifetime < 0) {
+				throw new ZormException(
+						"The maximum lifetime of the connection pool cannot be negative.");
+			}
+			m_maxLifetime = maxLifetime;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the SQL query used to validate the connections when they are
+	 * borrowed.
+	 * 
+	 * @return the SQL query used to validate the connections
+	 */
+	public final String getValidationQuery() {
+		m_lock.lock();
+		try {
+			return m_validationQuery;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the SQL query used to validate the idle connections when they are
+	 * borrowed (see <code>setValidationIdleTime(long)</code>). If the query
+	 * fails, the connection is closed and another one
+	 * is borrowed. If the value is null, the connections are not validated.
+	 * The default value is "SELECT 1".
+	 * 
+	 * @param validationQuery
+	 */
+	public final void setValidationQuery(String validationQuery) {
+		m_lock.lock();
+		try {
+			m_validationQuery = validationQuery;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time (in milliseconds) an idle connection must have been
+	 * idle to be validated when it is borrowed.
+	 * 
+	 * @return the idle time after which the connections are validated
+	 */
+	public final long getValidationIdleTime() {
+		m_lock.lock();
+		try {
+			return m_validationIdleTime;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the time (in milliseconds) an idle connection must have been idle
+	 * to be validated when it is borrowed. The connections returned more
+	 * recently are borrowed without running the validation query, saving a
+	 * round trip to the database. If the value is 0, all the idle connections
+	 * are validated. The default value is 1000.
+	 * 
+	 * @param validationIdleTime
+	 */
+	public final void setValidationIdleTime(long validationIdleTime) {
+		m_lock.lock();
+		try {
+			if (validationIdleTime < 0) {
+				throw new ZormException(
+						"The validation idle time of the connection pool cannot be negative.");
+			}
+			m_validationIdleTime = validationIdleTime;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of connections opened by the pool (idle and
+	 * borrowed).
+	 * 
+	 * @return the number of connections opened by the pool
+	 */
+	public final int getNumConnections() {
+		m_lock.lock();
+		try {
+			return m_numConnections;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of idle connections.
+	 * 
+	 * @return the number of idle connections
+	 */
+	public final int getNumIdle() {
+		m_lock.lock();
+		try {
+			return m_idleConnections.size();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of threads waiting to borrow a connection.
+	 * 
+	 * @return the number of threads waiting to borrow a connection
+	 */
+	public final int getNumWaiting() {
+		m_lock.lock();
+		try {
+			return m_numWaiting;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of connections borrowed from the pool (since the
+	 * pool was created).
+	 * 
+	 * @return the number of connections borrowed from the pool
+	 */
+	public final long getNumBorrows() {
+		m_lock.lock();
+		try {
+			return m_numBorrows;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the total time (in nanoseconds) spent by the threads borrowing
+	 * connections (waiting for a connection to be returned, opening and
+	 * validating connections).
+	 * 
+	 * @return the total time spent borrowing connections
+	 */
+	public final long getTotalWaitTime() {
+		m_lock.lock();
+		try {
+			return m_totalWaitTime;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum time (in nanoseconds) spent by a thread borrowing a
+	 * connection.
+	 * 
+	 * @return the maximum time spent borrowing a connection
+	 */
+	public final long getMaxWaitTime() {
+		m_lock.lock();
+		try {
+			return m_maxWaitTime;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Borrow a connection from the pool. An idle connection is returned
+	 * (after it is validated, if it was idle for more than the
+	 * validationIdleTime), or a new connection is opened if the pool has less
+	 * than maxSize connections; otherwise, the thread waits for a connection
+	 * to be returned. If the pool has less than minSize connections, it is
+	 * filled first.
+	 * 
+	 * @return a SQL connection
+	 */
+	public final Connection borrowConnection() {
+		return borrowConnection(true);
+	}
+
+	/**
+	 * Borrow a connection from the pool, like
+	 * <code>borrowConnection()</code>, but without waiting for a connection
+	 * to be returned: if all the maxSize connections are borrowed, null is
+	 * returned. This function is used for optional work, which must not
+	 * delay the sessions (e.g. explaining the slow queries).
+	 * 
+	 * @return a SQL connection, or null if no connection is available
+	 */
+	public final Connection tryBorrowConnection() {
+		return borrowConnection(false);
+	}
+
+	/**
+	 * Borrow a connection from the pool.
+	 * 
+	 * @param waiting
+	 *            if true, the thread waits for a connection to be returned
+	 *            when all the connections are borrowed; otherwise, null is
+	 *            returned
+	 * @return a SQL connection, or null
+	 */
+	private Connection borrowConnection(boolean waiting) {
+		long startTime = System.nanoTime();
+		boolean filling;
+		m_lock.lock();
+		try {
+			filling = (m_numConnections < m_minSize);
+		} finally {
+			m_lock.unlock();
+		}
+		if (filling) {
+			fill();
+		}
+		while (true) {
+			PooledConnection pooledConn = null;
+			ArrayList<PooledConnection> expiredConns = new ArrayList<PooledConnection>();
+			boolean validating = false;
+			boolean exhausted = false;
+			m_lock.lock();
+			try {
+				checkNotClosed();
+				removeExpiredConnections(expiredConns);
+				while (waiting && m_idleConnections.isEmpty()
+						&& (m_numConnections >= m_maxSize)) {
+					waitForConnection(startTime);
+				}
+				if (!m_idleConnections.isEmpty()) {
+					pooledConn = m_idleConnections.removeFirst();
+					validating = (System.currentTimeMillis()
+							- pooledConn.lastReturnedTime >= m_validationIdleTime);
+				} else if (m_numConnections < m_maxSize) {
+					// the connection is opened outside the lock
+					m_numConnections++;
+				} else {
+					exhausted = true;
+				}
+			} finally {
+				m_lock.unlock();
+			}
+			closeConnections(expiredConns);
+			if (exhausted) {
+				return null;
+			} else if (pooledConn == null) {
+				pooledConn = openConnection();
+			} else if (validating && !isValid(pooledConn.conn)) {
+				closeConnection(pooledConn);
+				continue;
+			}
+			m_lock.lock();
+			try {
+				m_borrowedConnections.put(pooledConn.conn, pooledConn);
+				long waitTime = System.nanoTime() - startTime;
+				m_numBorrows++;
+				m_totalWaitTime += waitTime;
+				m_maxWaitTime = Math.max(m_maxWaitTime, waitTime);
+			} finally {
+				m_lock.unlock();
+			}
+			return pooledConn.conn;
+		}
+	}
+
+	/**
+	 * Open connections until the pool has minSize connections (or maxSize, if
+	 * it is lower). The new connections are added to the idle connections.
+	 * This function can be called when the application starts, so that the
+	 * first borrows don't wait for the connections to be opened.
+	 */
+	public final void fill() {
+		while (true) {
+			m_lock.lock();
+			try {
+				checkNotClosed();
+				if ((m_numConnections >= m_minSize)
+						|| (m_numConnections >= m_maxSize)) {
+					return;
+				}
+				// the connection is opened outside the lock
+				m_numConnections++;
+			} finally {
+				m_lock.unlock();
+			}
+			PooledConnection pooledConn = openConnection();
+			m_lock.lock();
+			try {
+				if (!m_closed) {
+					m_idleConnections.addLast(pooledConn);
+					m_available.signal();
+					continue;
+				}
+			} finally {
+				m_lock.unlock();
+			}
+			closeConnection(pooledConn);
+			return;
+		}
+	}
+
+	/**
+	 * Return a borrowed connection to the pool. The current transaction is
+	 * rolled back and the connection is set back to auto commit mode. If this
+	 * fails, or the connection has exceeded its maximum lifetime, or the pool
+	 * is closed, the connection is closed.
+	 * 
+	 * @param conn
+	 */
+	public final void returnConnection(Connection conn) {
+		PooledConnection pooledConn;
+		m_lock.lock();
+		try {
+			pooledConn = m_borrowedConnections.remove(conn);
+		} finally {
+			m_lock.unlock();
+		}
+		if (pooledConn == null) {
+			throw new ZormException(
+					"The SQL connection was not borrowed from this pool.");
+		}
+		boolean reusable;
+		try {
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+			reusable = !conn.isClosed();
+		} catch (Exception e) {
+			ZManager.getLogger().warn(
+					"Error resetting a pooled SQL connection", e);
+			reusable = false;
+		}
+		if (reusable) {
+			m_lock.lock();
+			try {
+				long now = System.currentTimeMillis();
+				if (!m_closed && !isExpired(pooledConn, now)) {
+					pooledConn.lastReturnedTime = now;
+					// the most recently used connections are borrowed first
+					m_idleConnections.addFirst(pooledConn);
+					m_available.signal();
+					return;
+				}
+			} finally {
+				m_lock.unlock();
+			}
+		}
+		closeConnection(pooledConn);
+	}
+
+	/**
+	 * Close the pool and all the idle connections. The borrowed connections
+	 * are closed when they are returned.
+	 */
+	public final void close() {
+		ArrayList<PooledConnection> idleConns;
+		m_lock.lock();
+		try {
+			m_closed = true;
+			idleConns = new ArrayList<PooledConnection>(m_idleConnections);
+			m_idleConnections.clear();
+			m_numConnections -= idleConns.size();
+			m_available.signalAll();
+		} finally {
+			m_lock.unlock();
+		}
+		closeConnections(idleConns);
+	}
+
+	/**
+	 * Returns true if this pool was closed.
+	 * 
+	 * @return true if this pool was closed
+	 */
+	public final boolean isClosed() {
+		m_lock.lock();
+		try {
+			return m_closed;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for a connection to be returned (the caller must hold the lock of
+	 * this pool, which is released while waiting). If the maxWait time has passed, an exception is throwned.
+	 * 
+	 * @param startTime
+	 *            the time (from <code>System.nanoTime()</code>) when the
+	 *            thread started to borrow the connection
+	 */
+	private void waitForConnection(long startTime) {
+		long waitTime = 0;
+		if (m_maxWait > 0) {
+			waitTime = m_maxWait - (System.nanoTime() - startTime) / 1000000;
+			if (waitTime <= 0) {
+				throw new ZormException("Timeout waiting for a SQL connection ("
+						+ m_maxSize + " connections are borrowed).");
+			}
+		}
+		m_numWaiting++;
+		try {
+			if (waitTime > 0) {
+				m_available.await(waitTime, TimeUnit.MILLISECONDS);
+			} else {
+				m_available.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ZormException(
+					"Interrupted while waiting for a SQL connection", e);
+		} finally {
+			m_numWaiting--;
+		}
+		checkNotClosed();
+	}
+
+	/**
+	 * Move the idle connections that have exceeded their maximum lifetime, or
+	 * their idle timeout (while the pool has more than minSize connections),
+	 * to the specified list and remove them from the count of connections
+	 * (the caller must hold the lock of this pool and close the connections
+	 * afterwards, using <code>closeConnections(ArrayList)</code>).
+	 * 
+	 * @param expiredConns
+	 */
+	private void removeExpiredConnections(
+			ArrayList<PooledConnection> expiredConns) {
+		long now = System.currentTimeMillis();
+		// the least recently used connections are at the end
+		ListIterator<PooledConnection> it = m_idleConnections
+				.listIterator(m_idleConnections.size());
+		while (it.hasPrevious()) {
+			PooledConnection pooledConn = it.previous();
+			boolean idleTimeoutExceeded = (m_idleTimeout > 0)
+					&& (now - pooledConn.lastReturnedTime > m_idleTimeout)
+					&& (m_numConnections > m_minSize);
+			if (idleTimeoutExceeded || isExpired(pooledConn, now)) {
+				it.remove();
+				expiredConns.add(pooledConn);
+				m_numConnections--;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the specified connection has exceeded its maximum
+	 * lifetime.
+	 * 
+	 * @param pooledConn
+	 * @param now
+	 * @return true if the specified connection has exceeded its maximum
+	 *         lifetime
+	 */
+	private boolean isExpired(PooledConnection pooledConn, long now) {
+		return (m_maxLifetime > 0)
+				&& (now - pooledConn.creationTime > m_maxLifetime);
+	}
+
+	/**
+	 * Open a new connection. The connection must be already counted in
+	 * numConnections.
+	 * 
+	 * @return the new connection
+	 */
+	private PooledConnection openConnection() {
+		try {
+			return new PooledConnection(DriverManager.getConnection(m_jdbcUrl));
+		} catch (Exception e) {
+			m_lock.lock();
+			try {
+				m_numConnections--;
+				m_available.signal();
+			} finally {
+				m_lock.unlock();
+			}
+			throw new ZormException("Error getting a SQL connection", e);
+		}
+	}
+
+	/**
+	 * Returns true if the validation query succeeds on the specified
+	 * connection (or there is no validation query).
+	 * 
+	 * @param conn
+	 * @return true if the connection is valid
+	 */
+	private boolean isValid(Connection conn) {
+		String validationQuery = getValidationQuery();
+		if (validationQuery == null) {
+			return true;
+		}
+		Statement stmt = null;
+		try {
+			stmt = conn.createStatement();
+			stmt.execute(validationQuery);
+			return true;
+		} catch (Exception e) {
+			ZManager.getLogger().warn("Invalid pooled SQL connection", e);
+			return false;
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (Exception e) {
+					// the connection is discarded anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the specified connections, that were already removed from the
+	 * count of connections.
+	 * 
+	 * @param pooledConns
+	 */
+	private static void closeConnections(
+			ArrayList<PooledConnection> pooledConns) {
+		for (PooledConnection pooledConn : pooledConns) {
+			closeSqlConnection(pooledConn);
+		}
+	}
+
+	/**
+	 * Close the specified connection and remove it from the count of
+	 * connections.
+	 * 
+	 * @param pooledConn
+	 */
+	private void closeConnection(PooledConnection pooledConn) {
+		m_lock.lock();
+		try {
+			m_numConnections--;
+			m_available.signal();
+		} finally {
+			m_lock.unlock();
+		}
+		closeSqlConnection(pooledConn);
+	}
+
+	/**
+	 * Close the SQL connection of the specified pooled connection. The errors
+	 * are only logged.
+	 * 
+	 * @param pooledConn
+	 */
+	private static void closeSqlConnection(PooledConnection pooledConn) {
+		try {
+			pooledConn.conn.close();
+		} catch (Exception e) {
+			ZManager.getLogger().warn("Error closing a pooled SQL connection",
+					e);
+		}
+	}
+
+	/**
+	 * Checks if this pool is not closed. If it is closed, an exception is
+	 * throwned.
+	 */
+	private void checkNotClosed() {
+		if (m_closed) {
+			throw new ZormException("The connection pool is closed.");
+		}
+	}
+
+	/**
+	 * A SQL connection opened by the pool.
+	 */
+	private final static class PooledConnection {
+
+		public final Connection conn;
+
+		/**
+		 * The time when the connection was opened.
+		 */
+		public final long creationTime;
+
+		/**
+		 * The time when the connection was last returned to the pool.
+		 */
+		public long lastReturnedTime;
+
+		public PooledConnection(Connection conn) {
+			this.conn = conn;
+			this.creationTime = System.currentTimeMillis();
+			this.lastReturnedTime = this.creationTime;
+		}
+
+	}
+
+}
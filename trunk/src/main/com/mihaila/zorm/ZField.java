@@ -22,6 +22,10 @@
 
 package com.mihaila.zorm;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
 import com.mihaila.zorm.exception.ZormException;
 
 /**
@@ -39,6 +43,35 @@ import com.mihaila.zorm.exception.ZormException;
  */
 public class ZField {
 
+	/**
+	 * The values of the field are stored as objects.
+	 */
+	public final static int STORAGE_OBJECT = 0;
+
+	/**
+	 * The values of the field are stored as primitive <code>int</code>
+	 * values.
+	 */
+	public final static int STORAGE_INT = 1;
+
+	/**
+	 * The values of the field are stored as primitive <code>long</code>
+	 * values.
+	 */
+	public final static int STORAGE_LONG = 2;
+
+	/**
+	 * The values of the field are stored as primitive <code>double</code>
+	 * values.
+	 */
+	public final static int STORAGE_DOUBLE = 3;
+
+	/**
+	 * The values of the field are stored as primitive <code>boolean</code>
+	 * values.
+	 */
+	public final static int STORAGE_BOOLEAN = 4;
+
 	/**
 	 * The column name in the SQL table.
 	 */
@@ -69,6 +102,18 @@ public class ZField {
 	 */
 	private int m_index;
 
+	/**
+	 * Specifies how the values of this field are stored in the
+	 * <code>ZPersistent</code> objects.
+	 */
+	private int m_storageKind = STORAGE_OBJECT; // default STORAGE_OBJECT
+
+	/**
+	 * The position of the value of this field in the object or primitive
+	 * values of the <code>ZPersistent</code> object.
+	 */
+	private int m_slot;
+
 	/**
 	 * The value that is returned by the <code>toString()</code> function.
 	 */
@@ -192,6 +237,20 @@ public class ZField {
 		return sqlValue;
 	}
 
+	/**
+	 * Returns a copy of the specified object specific to this field. This is
+	 * used by the shared cache, so that each session receives its own values.
+	 * The default implementation returns the same object (the values are
+	 * considered immutable); inheriting classes using mutable values must
+	 * override it. The specified object can be null.
+	 * 
+	 * @param value
+	 * @return a copy of the specified value
+	 */
+	public Object copyValue(Object value) {
+		return value;
+	}
+
 	/**
 	 * Convert the object specific to this field to a string to used in SQL
 	 * commands. the specified object can be null.
@@ -202,6 +261,28 @@ public class ZField {
 		return (value == null) ? null : value.toString();
 	}
 
+	/**
+	 * Set the object specific to this field as the value of the specified
+	 * parameter of a <code>PreparedStatement</code>. The specified object can
+	 * be null. The default implementation sets the string returned by
+	 * <code>toSqlValue(Object)</code>; inheriting classes can override it to
+	 * use a typed setter.
+	 * 
+	 * @param stmt
+	 * @param parameterIndex
+	 * @param value
+	 * @throws SQLException
+	 */
+	public void setSqlParameter(PreparedStatement stmt, int parameterIndex,
+			Object value) throws SQLException {
+		String sqlValue = toSqlValue(value);
+		if (sqlValue == null) {
+			stmt.setNull(parameterIndex, Types.VARCHAR);
+		} else {
+			stmt.setString(parameterIndex, sqlValue);
+		}
+	}
+
 	/**
 	 * Convert the object specific to this field to a string thare represents an
 	 * SQL expression to update this field in the database. This function is
@@ -272,6 +353,75 @@ public class ZField {
 		m_index = index;
 	}
 
+	/**
+	 * Returns how the values of this field are stored in the
+	 * <code>ZPersistent</code> objects (one of the <code>STORAGE_...</code>
+	 * constants). The primitive values are encoded as <code>long</code>
+	 * values, so no object is allocated for them.
+	 * 
+	 * @return how the values of this field are stored
+	 */
+	public final int getStorageKind() {
+		return m_storageKind;
+	}
+
+	/**
+	 * Set how the values of this field are stored in the
+	 * <code>ZPersistent</code> objects. Must be called by the inheriting
+	 * classes before the field is added to a <code>ZPersistentMeta</code>.
+	 * 
+	 * @param storageKind
+	 */
+	protected final void setStorageKind(int storageKind) {
+		if (m_persistentMeta != null) {
+			throw new ZormException("The storage of the field: " + this
+					+ " cannot be changed after it was added to a meta.");
+		}
+		m_storageKind = storageKind;
+	}
+
+	/**
+	 * Returns the position of the value of this field in the object or
+	 * primitive values of the <code>ZPersistent</code> object.
+	 * 
+	 * @return the position of the value of this field in the object or
+	 *         primitive values of the <code>ZPersistent</code> object
+	 */
+	final int getSlot() {
+		return m_slot;
+	}
+
+	/**
+	 * Set the position of the value of this field in the object or primitive
+	 * values of the <code>ZPersistent</code> object.
+	 * 
+	 * @param slot
+	 */
+	final void setSlot(int slot) {
+		m_slot = slot;
+	}
+
+	/**
+	 * Same as <code>ZPersistent.getPrimitiveFieldValue(ZField)</code>
+	 * 
+	 * @param persistent
+	 * @return the encoded primitive value of this field
+	 */
+	protected final long getPrimitiveFieldValue(ZPersistent persistent) {
+		return persistent.getPrimitiveFieldValue(this);
+	}
+
+	/**
+	 * Same as <code>ZPersistent.setPrimitiveFieldValue(ZField, long)</code>
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	protected final void setPrimitiveFieldValue(ZPersistent persistent,
+			long value) {
+		persistent.setPrimitiveFieldValue(this, value);
+	}
+
 	/**
 	 * Same as <code>ZPersistent.setFieldValueInternal(ZField, Object)</code>
 	 * 
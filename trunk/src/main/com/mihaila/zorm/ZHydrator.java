@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import com.mihaila.zorm.exception.ZormInvalidFieldValueException;
+import com.mihaila.zorm.exception.ZormInvalidSqlFieldValueException;
+import com.mihaila.zorm.field.ZBooleanField;
+import com.mihaila.zorm.field.ZDoubleField;
+import com.mihaila.zorm.field.ZIntField;
+import com.mihaila.zorm.field.ZLongField;
+import com.mihaila.zorm.field.ZStringField;
+
+/**
+ * Reads a row of a <code>ResultSet</code> into the fields of a
+ * <code>ZPersistent</code> object, for a fixed meta and set of fields. The
+ * way each column is read is computed once, when the hydrator is created:
+ * the fields with primitive storage and the plain <code>ZStringField</code>
+ * fields are read with the typed getters of the <code>ResultSet</code>,
+ * without calling <code>ZField.fromSqlValue()</code>, and the values read
+ * from the database are not validated again (only the null values are
+ * checked).
+ * 
+ * Hydrators are immutable and are created once per set of fields (see
+ * <code>ZPersistentMeta.getHydrator(ZField[])</code>). The read kinds are
+ * plain int constants, switched on for each column, instead of a
+ * <code>MethodHandle</code> per column: each kind needs its own null check
+ * (<code>wasNull()</code>) and setter, and the switch keeps the loop
+ * monomorphic and easy to follow in a profiler.
+ */
+final class ZHydrator {
+
+	/**
+	 * The column is read with <code>getObject()</code> and converted with
+	 * <code>ZField.fromSqlValue()</code>.
+	 */
+	private final static int READ_OBJECT = 0;
+
+	/**
+	 * The column is read with <code>getString()</code>.
+	 */
+	private final static int READ_STRING = 1;
+
+	/**
+	 * The column is read with <code>getInt()</code>.
+	 */
+	private final static int READ_INT = 2;
+
+	/**
+	 * The column is read with <code>getLong()</code>.
+	 */
+	private final static int READ_LONG = 3;
+
+	/**
+	 * The column is read with <code>getDouble()</code>.
+	 */
+	private final static int READ_DOUBLE = 4;
+
+	/**
+	 * The column is read with <code>getBoolean()</code>.
+	 */
+	private final static int READ_BOOLEAN = 5;
+
+	/**
+	 * @param meta
+	 * @param fields
+	 *            the fields read, in the order of the columns (the array is
+	 *            copied)
+	 */
+	ZHydrator(ZPersistentMeta meta, ZField[] fields) {
+		m_meta = meta;
+		m_fields = fields.clone();
+		m_readKinds = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			m_readKinds[i] = getReadKind(fields[i]);
+		}
+	}
+
+	/**
+	 * Returns the meta of the objects initialized by this hydrator.
+	 * 
+	 * @return the meta of the objects initialized by this hydrator
+	 */
+	public ZPersistentMeta getMeta() {
+		return m_meta;
+	}
+
+	/**
+	 * Returns true if this hydrator reads the specified fields, in the same
+	 * order.
+	 * 
+	 * @param fields
+	 * @return true if this hydrator reads the specified fields
+	 */
+	public boolean isReading(ZField[] fields) {
+		return (fields == m_fields) || Arrays.equals(fields, m_fields);
+	}
+
+	/**
+	 * Returns the number of fields (columns) read by this hydrator.
+	 * 
+	 * @return the number of fields read by this hydrator
+	 */
+	public int getNumFields() {
+		return m_fields.length;
+	}
+
+	/**
+	 * Read the fields of the specified object from the current row of the
+	 * <code>ResultSet</code>.
+	 * 
+	 * @param ob
+	 * @param rs
+	 * @param firstColumn
+	 *            the column of the first field (the other fields must follow,
+	 *            in order)
+	 * @param overwrite
+	 *            if false, the fields already initialized are not changed
+	 * @throws SQLException
+	 */
+	void hydrate(ZPersistent ob, ResultSet rs, int firstColumn,
+			boolean overwrite) throws SQLException {
+		ZField[] fields = m_fields;
+		int[] readKinds = m_readKinds;
+		for (int i = 0; i < fields.length; i++) {
+			ZField field = fields[i];
+			if (!overwrite && ob.isFieldInitialized(field)) {
+				continue;
+			}
+			int column = firstColumn + i;
+			switch (readKinds[i]) {
+			case READ_STRING: {
+				String value = rs.getString(column);
+				if (value == null) {
+					setNull(ob, field);
+				} else {
+					ob.setFieldValueInternal(field, value);
+				}
+				break;
+			}
+			case READ_INT: {
+				int value = rs.getInt(column);
+				if (rs.wasNull()) {
+					setNull(ob, field);
+				} else {
+					ob.setPrimitiveFieldValueInternal(field, value);
+				}
+				break;
+			}
+			case READ_LONG: {
+				long value = rs.getLong(column);
+				if (rs.wasNull()) {
+					setNull(ob, field);
+				} else {
+					ob.setPrimitiveFieldValueInternal(field, value);
+				}
+				break;
+			}
+			case READ_DOUBLE: {
+				double value = rs.getDouble(column);
+				if (rs.wasNull()) {
+					setNull(ob, field);
+				} else {
+					ob.setPrimitiveFieldValueInternal(field, Double
+							.doubleToRawLongBits(value));
+				}
+				break;
+			}
+			case READ_BOOLEAN: {
+				boolean value = rs.getBoolean(column);
+				if (rs.wasNull()) {
+					setNull(ob, field);
+				} else {
+					ob.setPrimitiveFieldValueInternal(field, value ? 1 : 0);
+				}
+				break;
+			}
+			default: {
+				Object sqlValue = rs.getObject(column);
+				Object value;
+				try {
+					value = field.fromSqlValue(sqlValue);
+				} catch (Exception e) {
+					throw new ZormInvalidSqlFieldValueException(field,
+							sqlValue, e);
+				}
+				if (value == null) {
+					setNull(ob, field);
+				} else {
+					ob.setFieldValueInternal(field, value);
+				}
+				break;
+			}
+			}
+		}
+	}
+
+	/**
+	 * Set the null value to the specified field, if null is a valid value.
+	 * Otherwise, a <code>ZormInvalidFieldValueException</code> is throwned.
+	 * 
+	 * @param ob
+	 * @param field
+	 */
+	private static void setNull(ZPersistent ob, ZField field) {
+		if (!field.isNullValid()) {
+			throw new ZormInvalidFieldValueException(field, null);
+		}
+		ob.setFieldValueInternal(field, null);
+	}
+
+	/**
+	 * Returns how the column of the specified field is read. The columns of
+	 * the fields whose class inherits a ZORM field class are read with
+	 * <code>getObject()</code>, because the inheriting classes can convert
+	 * the values in <code>fromSqlValue(Object)</code>.
+	 * 
+	 * @param field
+	 * @return how the column of the specified field is read
+	 */
+	private static int getReadKind(ZField field) {
+		Class<?> fieldClass = field.getClass();
+		switch (field.getStorageKind()) {
+		case ZField.STORAGE_INT:
+			return (fieldClass == ZIntField.class) ? READ_INT : READ_OBJECT;
+		case ZField.STORAGE_LONG:
+			return (fieldClass == ZLongField.class) ? READ_LONG : READ_OBJECT;
+		case ZField.STORAGE_DOUBLE:
+			return (fieldClass == ZDoubleField.class) ? READ_DOUBLE
+					: READ_OBJECT;
+		case ZField.STORAGE_BOOLEAN:
+			return (fieldClass == ZBooleanField.class) ? READ_BOOLEAN
+					: READ_OBJECT;
+		default:
+			return (fieldClass == ZStringField.class) ? READ_STRING
+					: READ_OBJECT;
+		}
+	}
+
+	/**
+	 * The meta of the objects initialized by this hydrator.
+	 */
+	private final ZPersistentMeta m_meta;
+
+	/**
+	 * The fields read, in the order of the columns.
+	 */
+	private final ZField[] m_fields;
+
+	/**
+	 * How the column of each field is read.
+	 */
+	private final int[] m_readKinds;
+
+}
@@ -22,14 +22,22 @@
 
 package com.mihaila.zorm;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
 
 import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.query.ZQueryCache;
 
 
 /**
@@ -57,6 +65,106 @@ public class ZManager {
 	 */
 	private static boolean m_autoFetchingFieldsOnRead; // default false
 
+	/**
+	 * The maximum number of ids used in a single "select ... in ..." query
+	 * when multiple persistent objects are retrieved at once.
+	 */
+	private static int m_maxIdsPerQuery = 500; // default 500
+
+	/**
+	 * The maximum number of statements executed in a single JDBC batch.
+	 */
+	private static int m_maxBatchSize = 1000; // default 1000
+
+	/**
+	 * The maximum number of query prepared statements cached by a session
+	 * (and, separately, of prepared statements used to read and write the
+	 * persistent objects).
+	 */
+	private static int m_statementCacheSize = 64; // default 64
+
+	/**
+	 * The maximum number of loaded objects strongly held by a session (if 0,
+	 * all the loaded objects are strongly held).
+	 */
+	private static int m_identityMapCapacity; // default 0
+
+	/**
+	 * The maximum number of objects loaded together whose lazy field is
+	 * fetched at once, when the field is read from one of them.
+	 */
+	private static int m_lazyFetchBatchSize = 100; // default 100
+
+	/**
+	 * The maximum number of query results kept in the query cache (if 0, the
+	 * query results are not cached).
+	 */
+	private static int m_queryCacheSize = 1000; // default 1000
+
+	/**
+	 * The minimum time (in milliseconds) of execution and fetch for which a
+	 * query is logged as slow (if 0, the slow queries are not logged).
+	 */
+	private static long m_slowQueryThreshold; // default 0
+
+	/**
+	 * If true, the plan of the slow select queries is logged too.
+	 */
+	private static boolean m_explainingSlowQueries; // default false
+
+	/**
+	 * The minimum time (in milliseconds) between two explainings of the same
+	 * slow query.
+	 */
+	private static long m_slowQueryExplainInterval = 60000; // default 1 minute
+
+	/**
+	 * The pool used to get SQL connections (if null, connections are not
+	 * pooled).
+	 */
+	private static ZConnectionPool m_connectionPool; // default null
+
+	/**
+	 * The cache of persistent objects shared by all the sessions.
+	 */
+	private static final ZSharedCache m_sharedCache = new ZSharedCache();
+
+	/**
+	 * The cache of query results shared by all the sessions.
+	 */
+	private static final ZQueryCache m_queryCache = new ZQueryCache();
+
+	/**
+	 * The counters of the ZORM framework (queries, rows, caches, sessions).
+	 */
+	private static final ZMetrics m_metrics = new ZMetrics();
+
+	/**
+	 * The JMX name of the metrics MBean.
+	 */
+	public final static String METRICS_MBEAN_NAME = "com.mihaila.zorm:type=Metrics";
+
+	/**
+	 * The executor used to run the asynchronous operations of the sessions.
+	 * This field is lazy loaded.
+	 */
+	private static volatile Executor m_asyncExecutor; // initially null
+
+	/**
+	 * Creates the daemon threads of the default asynchronous executor.
+	 */
+	private final static class AsyncThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "zorm-async-"
+					+ threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	/**
 	 * the logger instance used in all the ZORM framework.
 	 */
@@ -67,7 +175,7 @@ public class ZManager {
 	 * count the sessions created because not all the session "pulls" a session
 	 * id (only the ones that need one).
 	 */
-	private static int m_lastSessionId; // initially 0;
+	private static final AtomicInteger m_lastSessionId = new AtomicInteger(); // initially 0
 
 	/**
 	 * Returns the DataSource provider for SQL connections.
@@ -111,6 +219,87 @@ public class ZManager {
 		m_jdbcUrl = url;
 	}
 
+	/**
+	 * Returns the pool used to get SQL connections.
+	 * 
+	 * @return the pool used to get SQL connections
+	 */
+	public static ZConnectionPool getConnectionPool() {
+		return m_connectionPool;
+	}
+
+	/**
+	 * Set the pool used to get SQL connections. If this value is not null,
+	 * than the sessions borrow their connections from the pool (instead of
+	 * the DataSource or the <code>java.sql.DriverManager</code>) and return
+	 * them to the pool when they are closed.
+	 * 
+	 * @param connectionPool
+	 */
+	public static void setConnectionPool(ZConnectionPool connectionPool) {
+		m_connectionPool = connectionPool;
+	}
+
+	/**
+	 * Returns the executor used to run the asynchronous operations of the
+	 * sessions (e.g. <code>ZSession.getAsync()</code>). If no executor was
+	 * set, an executor starting a virtual thread for each operation is used
+	 * when the Java runtime supports virtual threads, otherwise a cached pool
+	 * of daemon threads.
+	 * 
+	 * @return the executor used to run the asynchronous operations
+	 */
+	public static Executor getAsyncExecutor() {
+		Executor asyncExecutor = m_asyncExecutor;
+		if (asyncExecutor != null) {
+			return asyncExecutor;
+		}
+		synchronized (ZManager.class) {
+			if (m_asyncExecutor == null) {
+				asyncExecutor = newVirtualThreadExecutor();
+				if (asyncExecutor == null) {
+					asyncExecutor = Executors
+							.newCachedThreadPool(new AsyncThreadFactory());
+				}
+				m_asyncExecutor = asyncExecutor;
+			}
+			return m_asyncExecutor;
+		}
+	}
+
+	/**
+	 * Returns a new executor starting a virtual thread for each task, or null
+	 * if the Java runtime doesn't support virtual threads.
+	 * 
+	 * @return a new executor starting a virtual thread for each task
+	 */
+	private static Executor newVirtualThreadExecutor() {
+		try {
+			// Executors.newVirtualThreadPerTaskExecutor() exists since Java 21
+			return (Executor) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			m_logger.warn("Error creating the virtual thread executor.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Set the executor used to run the asynchronous operations of the
+	 * sessions. The operations of a session are always run one at a time, in
+	 * the order in which they were submitted, whatever the executor.
+	 * 
+	 * @param asyncExecutor
+	 */
+	public static synchronized void setAsyncExecutor(Executor asyncExecutor) {
+		if (asyncExecutor == null) {
+			throw new ZormException("The async executor must not be null.");
+		}
+		m_asyncExecutor = asyncExecutor;
+	}
+
 	/**
 	 * Returns a new <code>ZSession</code> object.
 	 * 
@@ -135,7 +324,10 @@ public class ZManager {
 	}
 
 	/**
-	 * Get a new SQL connection.
+	 * Get a new SQL connection. The connection is not borrowed from the
+	 * connection pool (see <code>getConnectionPool()</code>), so it can be
+	 * closed by the caller, or by the session it is passed to with
+	 * <code>getNewSession(Connection)</code>.
 	 * 
 	 * @return a new SQL connection
 	 */
@@ -178,6 +370,313 @@ public class ZManager {
 		m_autoFetchingFieldsOnRead = autoFetchingFieldsOnRead;
 	}
 
+	/**
+	 * Returns the maximum number of ids used in a single "select ... in ..."
+	 * query when multiple persistent objects are retrieved at once (e.g.
+	 * <code>ZSession.get(ZPersistentMeta, String[])</code>).
+	 * 
+	 * @return the maximum number of ids used in a single query
+	 */
+	public static int getMaxIdsPerQuery() {
+		return m_maxIdsPerQuery;
+	}
+
+	/**
+	 * Set the maximum number of ids used in a single "select ... in ..."
+	 * query when multiple persistent objects are retrieved at once. If more
+	 * ids are requested, than multiple queries are made.
+	 * 
+	 * @param maxIdsPerQuery
+	 */
+	public static void setMaxIdsPerQuery(int maxIdsPerQuery) {
+		if (maxIdsPerQuery < 1) {
+			throw new ZormException(
+					"The maximum number of ids per query must be positive.");
+		}
+		m_maxIdsPerQuery = maxIdsPerQuery;
+	}
+
+	/**
+	 * Returns the maximum number of statements executed in a single JDBC batch
+	 * (e.g. when the pending writes of a session are flushed).
+	 * 
+	 * @return the maximum number of statements executed in a single JDBC
+	 *         batch
+	 */
+	public static int getMaxBatchSize() {
+		return m_maxBatchSize;
+	}
+
+	/**
+	 * Set the maximum number of statements executed in a single JDBC batch.
+	 * If more statements must be executed, than multiple batches are used.
+	 * 
+	 * @param maxBatchSize
+	 */
+	public static void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new ZormException("The maximum batch size must be positive.");
+		}
+		m_maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Returns the maximum number of query prepared statements cached by a
+	 * session (the least recently used statement is closed when the limit is
+	 * exceeded).
+	 * 
+	 * @return the maximum number of query prepared statements cached by a
+	 *         session
+	 */
+	public static int getStatementCacheSize() {
+		return m_statementCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of query prepared statements cached by a
+	 * session. The same limit applies separately to the prepared statements
+	 * used to read and write the persistent objects (e.g. an update statement
+	 * is prepared for each combination of modified fields). The new value is
+	 * used only by the sessions created afterwards.
+	 * 
+	 * @param statementCacheSize
+	 */
+	public static void setStatementCacheSize(int statementCacheSize) {
+		if (statementCacheSize < 1) {
+			throw new ZormException(
+					"The statement cache size must be positive.");
+		}
+		m_statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * Returns the maximum number of loaded objects strongly held by a session
+	 * (0, if all the loaded objects are strongly held).
+	 * 
+	 * @return the identity map capacity of the sessions
+	 */
+	public static int getIdentityMapCapacity() {
+		return m_identityMapCapacity;
+	}
+
+	/**
+	 * Set the maximum number of loaded objects strongly held by a session. If
+	 * the value is positive, the sessions hold the loaded objects through
+	 * weak references, except for the most recently used ones and the
+	 * modified ones, so that the objects not referenced by the application
+	 * are garbage collected. If the value is 0 (the default), the loaded
+	 * objects are kept until they are dettached or evicted. The new value is
+	 * used only by the sessions created afterwards.
+	 * 
+	 * @param identityMapCapacity
+	 */
+	public static void setIdentityMapCapacity(int identityMapCapacity) {
+		if (identityMapCapacity < 0) {
+			throw new ZormException(
+					"The identity map capacity cannot be negative.");
+		}
+		m_identityMapCapacity = identityMapCapacity;
+	}
+
+	/**
+	 * Returns the maximum number of objects loaded together (by a query or a
+	 * multiple get) whose uninitialized field is fetched at once, when the
+	 * field is automatically fetched for one of them.
+	 * 
+	 * @return the maximum number of objects whose lazy field is fetched at
+	 *         once
+	 */
+	public static int getLazyFetchBatchSize() {
+		return m_lazyFetchBatchSize;
+	}
+
+	/**
+	 * Set the maximum number of objects loaded together whose uninitialized
+	 * field is fetched at once (using a "select ... in ..." query), when the
+	 * field is automatically fetched for one of them. If the value is 1, the
+	 * field is fetched only for the object read.
+	 * 
+	 * @param lazyFetchBatchSize
+	 */
+	public static void setLazyFetchBatchSize(int lazyFetchBatchSize) {
+		if (lazyFetchBatchSize < 1) {
+			throw new ZormException(
+					"The lazy fetch batch size must be positive.");
+		}
+		m_lazyFetchBatchSize = lazyFetchBatchSize;
+	}
+
+	/**
+	 * Returns the minimum time (in milliseconds) of execution and fetch for
+	 * which a query is logged as slow (0, if the slow queries are not
+	 * logged).
+	 * 
+	 * @return the slow query threshold, in milliseconds
+	 */
+	public static long getSlowQueryThreshold() {
+		return m_slowQueryThreshold;
+	}
+
+	/**
+	 * Set the minimum time (in milliseconds) of execution and fetch for which
+	 * a query is logged as slow. The slow queries are logged as warnings,
+	 * with their execution time, fetch time and number of rows. If the value
+	 * is 0, the slow queries are not logged.
+	 * 
+	 * @param slowQueryThreshold
+	 */
+	public static void setSlowQueryThreshold(long slowQueryThreshold) {
+		if (slowQueryThreshold < 0) {
+			throw new ZormException(
+					"The slow query threshold cannot be negative.");
+		}
+		m_slowQueryThreshold = slowQueryThreshold;
+	}
+
+	/**
+	 * Returns the ExplainingSlowQueries state. If true, the plan of the slow
+	 * select queries is logged too.
+	 * 
+	 * @return the ExplainingSlowQueries state
+	 */
+	public static boolean isExplainingSlowQueries() {
+		return m_explainingSlowQueries;
+	}
+
+	/**
+	 * Set the ExplainingSlowQueries state. If true, the plan of the slow
+	 * select queries is read with "EXPLAIN" (asynchronously, on another SQL
+	 * connection) and logged, at most once per slowQueryExplainInterval for
+	 * each query. When the connections are pooled, a query is not explained
+	 * if no connection of the pool is available. The queries executed with parameters are
+	 * explained only if the values of the parameters are known (e.g. the
+	 * <code>ZCompiledQuery</code> queries).
+	 * 
+	 * @param explainingSlowQueries
+	 */
+	public static void setExplainingSlowQueries(boolean explainingSlowQueries) {
+		m_explainingSlowQueries = explainingSlowQueries;
+	}
+
+	/**
+	 * Returns the minimum time (in milliseconds) between two explainings of
+	 * the same slow query.
+	 * 
+	 * @return the slow query explain interval, in milliseconds
+	 */
+	public static long getSlowQueryExplainInterval() {
+		return m_slowQueryExplainInterval;
+	}
+
+	/**
+	 * Set the minimum time (in milliseconds) between two explainings of the
+	 * same slow query: a query that stays slow is explained at most once per
+	 * interval, instead of once per execution. If the value is 0, every slow
+	 * execution is explained.
+	 * 
+	 * @param slowQueryExplainInterval
+	 */
+	public static void setSlowQueryExplainInterval(
+			long slowQueryExplainInterval) {
+		if (slowQueryExplainInterval < 0) {
+			throw new ZormException(
+					"The slow query explain interval cannot be negative.");
+		}
+		m_slowQueryExplainInterval = slowQueryExplainInterval;
+	}
+
+	/**
+	 * Returns the cache of persistent objects shared by all the sessions. Only
+	 * the metas having a positive shared cache size are cached.
+	 * 
+	 * @return the cache of persistent objects shared by all the sessions
+	 */
+	public static ZSharedCache getSharedCache() {
+		return m_sharedCache;
+	}
+
+	/**
+	 * Returns the cache of query results shared by all the sessions. Only the
+	 * results of the queries marked with
+	 * <code>ZSelectQuery.cacheResults(long, String...)</code> are cached.
+	 * 
+	 * @return the cache of query results shared by all the sessions
+	 */
+	public static ZQueryCache getQueryCache() {
+		return m_queryCache;
+	}
+
+	/**
+	 * Returns the maximum number of query results kept in the query cache.
+	 * 
+	 * @return the query cache size
+	 */
+	public static int getQueryCacheSize() {
+		return m_queryCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of query results kept in the query cache (the
+	 * least recently used results are evicted first). If the value is 0, the
+	 * query results are not cached.
+	 * 
+	 * @param queryCacheSize
+	 */
+	public static void setQueryCacheSize(int queryCacheSize) {
+		if (queryCacheSize < 0) {
+			throw new ZormException("The query cache size cannot be negative.");
+		}
+		m_queryCacheSize = queryCacheSize;
+		if (queryCacheSize == 0) {
+			m_queryCache.clear();
+		}
+	}
+
+	/**
+	 * Returns the counters of the ZORM framework: the queries executed by kind
+	 * (with latency histograms), the rows read into persistent objects, the
+	 * session cache hits and misses, the lazy field fetches, the open
+	 * sessions and the connection pool wait times.
+	 * 
+	 * @return the counters of the ZORM framework
+	 */
+	public static ZMetrics getMetrics() {
+		return m_metrics;
+	}
+
+	/**
+	 * Register the metrics MBean (named <code>METRICS_MBEAN_NAME</code>) in
+	 * the platform MBean server, so that the metrics can be watched in a JMX
+	 * console. The method does nothing if the MBean is already registered.
+	 */
+	public static synchronized void registerMBeans() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(METRICS_MBEAN_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(m_metrics, name);
+			}
+		} catch (Exception e) {
+			throw new ZormException("Error registering the ZORM MBeans", e);
+		}
+	}
+
+	/**
+	 * Unregister the metrics MBean from the platform MBean server (if it is
+	 * registered).
+	 */
+	public static synchronized void unregisterMBeans() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(METRICS_MBEAN_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (Exception e) {
+			throw new ZormException("Error unregistering the ZORM MBeans", e);
+		}
+	}
+
 	/**
 	 * Returns a reference for the ZORM logger object.
 	 * 
@@ -192,8 +691,8 @@ public class ZManager {
 	 * 
 	 * @return a new session id
 	 */
-	static synchronized int getNewSessionId() {
-		return ++m_lastSessionId;
+	static int getNewSessionId() {
+		return m_lastSessionId.incrementAndGet();
 	}
 
 }
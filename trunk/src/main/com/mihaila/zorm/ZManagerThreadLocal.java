@@ -25,7 +25,9 @@ package com.mihaila.zorm;
 import java.sql.Connection;
 
 /**
- * Implementds ThreadLocal pattern for <code>ZSession</code> objects..
+ * Implements the ThreadLocal pattern for <code>ZSession</code> objects. The
+ * session stays associated with the thread until it is explicitly closed, so
+ * for short-lived threads <code>ZSessionScope</code> should be used instead.
  */
 public class ZManagerThreadLocal {
 
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters of the ZORM framework: the queries executed by kind
+ * (with latency histograms), the rows read into persistent objects, the
+ * session cache hits and misses, the lazy field fetches and the open
+ * sessions. The shared cache and connection pool statistics are also
+ * reported. The metrics are obtained with <code>ZManager.getMetrics()</code>
+ * and can be exposed through JMX with <code>ZManager.registerMBeans()</code>.
+ * 
+ * Unlike <code>ZSession.getNumQueries()</code>, the counters are never reset
+ * by the framework. They are updated by all the sessions on their hot paths,
+ * so they are <code>LongAdder</code> objects (cheap to update concurrently;
+ * the sum is computed when a counter is read).
+ */
+public final class ZMetrics implements ZMetricsMBean {
+
+	/**
+	 * A select query.
+	 */
+	public final static int QUERY_SELECT = 0;
+
+	/**
+	 * An insert query.
+	 */
+	public final static int QUERY_INSERT = 1;
+
+	/**
+	 * An update query.
+	 */
+	public final static int QUERY_UPDATE = 2;
+
+	/**
+	 * A delete query.
+	 */
+	public final static int QUERY_DELETE = 3;
+
+	/**
+	 * Any other query.
+	 */
+	public final static int QUERY_OTHER = 4;
+
+	/**
+	 * The upper bounds (in microseconds) of the buckets of the latency
+	 * histograms. The last bucket of a histogram counts the slower queries.
+	 */
+	private final static long[] LATENCY_BUCKET_BOUNDS = new long[] { 100, 250,
+			500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+			500000, 1000000, 2500000, 5000000, 10000000 };
+
+	/**
+	 * The statistics of the queries, by kind.
+	 */
+	private final QueryStats[] m_queryStats = new QueryStats[QUERY_OTHER + 1];
+
+	/**
+	 * The number of rows read into persistent objects.
+	 */
+	private final LongAdder m_numRowsHydrated = new LongAdder();
+
+	/**
+	 * The number of objects found in the session caches.
+	 */
+	private final LongAdder m_numIdentityMapHits = new LongAdder();
+
+	/**
+	 * The number of objects not found in the session caches.
+	 */
+	private final LongAdder m_numIdentityMapMisses = new LongAdder();
+
+	/**
+	 * The number of fields fetched automatically when read.
+	 */
+	private final LongAdder m_numLazyFetches = new LongAdder();
+
+	/**
+	 * The number of sessions created and not closed.
+	 */
+	private final AtomicInteger m_numOpenSessions = new AtomicInteger();
+
+	/**
+	 * The number, total time and latency histogram of the queries of a kind.
+	 */
+	private final static class QueryStats {
+
+		public final LongAdder count = new LongAdder();
+
+		public final LongAdder totalTime = new LongAdder();
+
+		public final LongAdder[] latencies = new LongAdder[LATENCY_BUCKET_BOUNDS.length + 1];
+
+		public QueryStats() {
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new LongAdder();
+			}
+		}
+
+		public void add(long time) {
+			count.increment();
+			totalTime.add(time);
+			int bucket = 0;
+			while ((bucket < LATENCY_BUCKET_BOUNDS.length)
+					&& (time > LATENCY_BUCKET_BOUNDS[bucket])) {
+				bucket++;
+			}
+			latencies[bucket].increment();
+		}
+
+		public long[] getLatencies() {
+			long[] result = new long[latencies.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = latencies[i].sum();
+			}
+			return result;
+		}
+
+		public void reset() {
+			count.reset();
+			totalTime.reset();
+			for (LongAdder latency : latencies) {
+				latency.reset();
+			}
+		}
+	}
+
+	/**
+	 * Only the <code>ZManager</code> creates the metrics.
+	 */
+	ZMetrics() {
+		for (int i = 0; i < m_queryStats.length; i++) {
+			m_queryStats[i] = new QueryStats();
+		}
+	}
+
+	/**
+	 * Returns the kind of the specified SQL query (one of the QUERY_...
+	 * constants), given by its first keyword.
+	 * 
+	 * @param sql
+	 * @return the kind of the SQL query
+	 */
+	public static int getQueryKind(String sql) {
+		int start = 0;
+		while ((start < sql.length())
+				&& Character.isWhitespace(sql.charAt(start))) {
+			start++;
+		}
+		if (sql.regionMatches(true, start, "select", 0, 6)) {
+			return QUERY_SELECT;
+		} else if (sql.regionMatches(true, start, "insert", 0, 6)) {
+			return QUERY_INSERT;
+		} else if (sql.regionMatches(true, start, "update", 0, 6)) {
+			return QUERY_UPDATE;
+		} else if (sql.regionMatches(true, start, "delete", 0, 6)) {
+			return QUERY_DELETE;
+		}
+		return QUERY_OTHER;
+	}
+
+	/**
+	 * Returns the number of queries of the specified kind executed.
+	 * 
+	 * @param kind
+	 *            one of the QUERY_... constants
+	 * @return the number of queries of the specified kind executed
+	 */
+	public long getNumQueries(int kind) {
+		return m_queryStats[kind].count.sum();
+	}
+
+	/**
+	 * Returns the total execution and fetch time (in microseconds) of the
+	 * queries of the specified kind.
+	 * 
+	 * @param kind
+	 *            one of the QUERY_... constants
+	 * @return the total execution and fetch time of the queries of the
+	 *         specified kind
+	 */
+	public long getTotalQueryTime(int kind) {
+		return m_queryStats[kind].totalTime.sum();
+	}
+
+	/**
+	 * Returns the latency histogram of the queries of the specified kind: the
+	 * element i is the number of queries executed and fetched in at most
+	 * <code>getLatencyBucketBounds()[i]</code> microseconds (and more than
+	 * the previous bound); the last element counts the slower queries.
+	 * 
+	 * @param kind
+	 *            one of the QUERY_... constants
+	 * @return the latency histogram of the queries of the specified kind
+	 */
+	public long[] getLatencies(int kind) {
+		return m_queryStats[kind].getLatencies();
+	}
+
+	public long getNumSelects() {
+		return getNumQueries(QUERY_SELECT);
+	}
+
+	public long getNumInserts() {
+		return getNumQueries(QUERY_INSERT);
+	}
+
+	public long getNumUpdates() {
+		return getNumQueries(QUERY_UPDATE);
+	}
+
+	public long getNumDeletes() {
+		return getNumQueries(QUERY_DELETE);
+	}
+
+	public long getNumOtherQueries() {
+		return getNumQueries(QUERY_OTHER);
+	}
+
+	public long getTotalSelectTime() {
+		return getTotalQueryTime(QUERY_SELECT);
+	}
+
+	public long getTotalInsertTime() {
+		return getTotalQueryTime(QUERY_INSERT);
+	}
+
+	public long getTotalUpdateTime() {
+		return getTotalQueryTime(QUERY_UPDATE);
+	}
+
+	public long getTotalDeleteTime() {
+		return getTotalQueryTime(QUERY_DELETE);
+	}
+
+	public long[] getLatencyBucketBounds() {
+		return LATENCY_BUCKET_BOUNDS.clone();
+	}
+
+	public long[] getSelectLatencies() {
+		return getLatencies(QUERY_SELECT);
+	}
+
+	public long[] getInsertLatencies() {
+		return getLatencies(QUERY_INSERT);
+	}
+
+	public long[] getUpdateLatencies() {
+		return getLatencies(QUERY_UPDATE);
+	}
+
+	public long[] getDeleteLatencies() {
+		return getLatencies(QUERY_DELETE);
+	}
+
+	public long getNumRowsHydrated() {
+		return m_numRowsHydrated.sum();
+	}
+
+	public long getNumIdentityMapHits() {
+		return m_numIdentityMapHits.sum();
+	}
+
+	public long getNumIdentityMapMisses() {
+		return m_numIdentityMapMisses.sum();
+	}
+
+	public long getNumLazyFetches() {
+		return m_numLazyFetches.sum();
+	}
+
+	public long getNumSharedCacheHits() {
+		return ZManager.getSharedCache().getNumHits();
+	}
+
+	public long getNumSharedCacheMisses() {
+		return ZManager.getSharedCache().getNumMisses();
+	}
+
+	public int getNumOpenSessions() {
+		return m_numOpenSessions.get();
+	}
+
+	public long getNumConnectionBorrows() {
+		ZConnectionPool connectionPool = ZManager.getConnectionPool();
+		return (connectionPool == null) ? 0 : connectionPool.getNumBorrows();
+	}
+
+	public int getNumConnectionWaiters() {
+		ZConnectionPool connectionPool = ZManager.getConnectionPool();
+		return (connectionPool == null) ? 0 : connectionPool.getNumWaiting();
+	}
+
+	public long getTotalConnectionWaitTime() {
+		ZConnectionPool connectionPool = ZManager.getConnectionPool();
+		return (connectionPool == null) ? 0
+				: connectionPool.getTotalWaitTime() / 1000;
+	}
+
+	public long getMaxConnectionWaitTime() {
+		ZConnectionPool connectionPool = ZManager.getConnectionPool();
+		return (connectionPool == null) ? 0
+				: connectionPool.getMaxWaitTime() / 1000;
+	}
+
+	public void reset() {
+		for (QueryStats stats : m_queryStats) {
+			stats.reset();
+		}
+		m_numRowsHydrated.reset();
+		m_numIdentityMapHits.reset();
+		m_numIdentityMapMisses.reset();
+		m_numLazyFetches.reset();
+	}
+
+	/**
+	 * Record the execution of the specified SQL query.
+	 * 
+	 * @param sql
+	 * @param time
+	 *            the execution and fetch time, in nanoseconds
+	 */
+	void addQuery(String sql, long time) {
+		m_queryStats[getQueryKind(sql)].add(time / 1000);
+	}
+
+	/**
+	 * Add the specified number of rows read into persistent objects.
+	 * 
+	 * @param numRows
+	 */
+	void addRowsHydrated(int numRows) {
+		m_numRowsHydrated.add(numRows);
+	}
+
+	/**
+	 * Add the specified number of session cache lookups.
+	 * 
+	 * @param numHits
+	 * @param numMisses
+	 */
+	void addIdentityMapLookups(int numHits, int numMisses) {
+		if (numHits > 0) {
+			m_numIdentityMapHits.add(numHits);
+		}
+		if (numMisses > 0) {
+			m_numIdentityMapMisses.add(numMisses);
+		}
+	}
+
+	/**
+	 * Increment the number of fields fetched automatically when read.
+	 */
+	void addLazyFetch() {
+		m_numLazyFetches.increment();
+	}
+
+	/**
+	 * Record the creation of a session.
+	 */
+	void sessionOpened() {
+		m_numOpenSessions.incrementAndGet();
+	}
+
+	/**
+	 * Record the closing of a session.
+	 */
+	void sessionClosed() {
+		m_numOpenSessions.decrementAndGet();
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm;
+
+/**
+ * The management interface of <code>ZMetrics</code>, exposed through JMX by
+ * <code>ZManager.registerMBeans()</code>. The times are in microseconds.
+ */
+public interface ZMetricsMBean {
+
+	/**
+	 * @return the number of select queries executed
+	 */
+	public long getNumSelects();
+
+	/**
+	 * @return the number of insert queries executed
+	 */
+	public long getNumInserts();
+
+	/**
+	 * @return the number of update queries executed
+	 */
+	public long getNumUpdates();
+
+	/**
+	 * @return the number of delete queries executed
+	 */
+	public long getNumDeletes();
+
+	/**
+	 * @return the number of the other queries executed
+	 */
+	public long getNumOtherQueries();
+
+	/**
+	 * @return the total execution and fetch time of the select queries
+	 */
+	public long getTotalSelectTime();
+
+	/**
+	 * @return the total execution and fetch time of the insert queries
+	 */
+	public long getTotalInsertTime();
+
+	/**
+	 * @return the total execution and fetch time of the update queries
+	 */
+	public long getTotalUpdateTime();
+
+	/**
+	 * @return the total execution and fetch time of the delete queries
+	 */
+	public long getTotalDeleteTime();
+
+	/**
+	 * @return the upper bounds of the buckets of the latency histograms
+	 */
+	public long[] getLatencyBucketBounds();
+
+	/**
+	 * @return the latency histogram of the select queries
+	 */
+	public long[] getSelectLatencies();
+
+	/**
+	 * @return the latency histogram of the insert queries
+	 */
+	public long[] getInsertLatencies();
+
+	/**
+	 * @return the latency histogram of the update queries
+	 */
+	public long[] getUpdateLatencies();
+
+	/**
+	 * @return the latency histogram of the delete queries
+	 */
+	public long[] getDeleteLatencies();
+
+	/**
+	 * @return the number of rows read into persistent objects
+	 */
+	public long getNumRowsHydrated();
+
+	/**
+	 * @return the number of objects found in the session caches
+	 */
+	public long getNumIdentityMapHits();
+
+	/**
+	 * @return the number of objects not found in the session caches
+	 */
+	public long getNumIdentityMapMisses();
+
+	/**
+	 * @return the number of fields fetched automatically when read
+	 */
+	public long getNumLazyFetches();
+
+	/**
+	 * @return the number of lookups that hit the shared cache
+	 */
+	public long getNumSharedCacheHits();
+
+	/**
+	 * @return the number of lookups that missed the shared cache
+	 */
+	public long getNumSharedCacheMisses();
+
+	/**
+	 * @return the number of sessions created and not closed
+	 */
+	public int getNumOpenSessions();
+
+	/**
+	 * @return the number of connections borrowed from the connection pool
+	 */
+	public long getNumConnectionBorrows();
+
+	/**
+	 * @return the number of threads waiting to borrow a connection
+	 */
+	public int getNumConnectionWaiters();
+
+	/**
+	 * @return the total time spent borrowing connections
+	 */
+	public long getTotalConnectionWaitTime();
+
+	/**
+	 * @return the maximum time spent borrowing a connection
+	 */
+	public long getMaxConnectionWaitTime();
+
+	/**
+	 * Reset the counters and the histograms (the number of open sessions and
+	 * the connection pool statistics are not affected).
+	 */
+	public void reset();
+
+}
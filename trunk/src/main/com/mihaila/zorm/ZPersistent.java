@@ -22,7 +22,13 @@
 
 package com.mihaila.zorm;
 
+import java.util.Arrays;
+
 import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.field.ZBooleanField;
+import com.mihaila.zorm.field.ZDoubleField;
+import com.mihaila.zorm.field.ZIntField;
+import com.mihaila.zorm.field.ZLongField;
 import com.mihaila.zorm.field.ZStringField;
 
 
@@ -32,20 +38,58 @@ import com.mihaila.zorm.field.ZStringField;
 public abstract class ZPersistent {
 
 	/**
-	 * Contains the value of each field in this <code>ZPersistent</code>
-	 * object.
+	 * Contains the value of each field stored as an object in this
+	 * <code>ZPersistent</code> object.
 	 */
 	private Object[] m_fieldValues;
 
 	/**
-	 * Specifies which field is initialized (a bit for each field).
+	 * Contains the value of each field stored as a primitive value in this
+	 * <code>ZPersistent</code> object, encoded as a <code>long</code> (null
+	 * if the meta has no such fields).
+	 */
+	private long[] m_primitiveValues; // initially null
+
+	/**
+	 * The number of bits of the flag words.
+	 */
+	private final static int FLAG_WORD_BITS = 64;
+
+	/**
+	 * Specifies which field stored as a primitive value is null (a bit for
+	 * each of the first 64 fields).
+	 */
+	private long m_nullFields; // default 0
+
+	/**
+	 * Specifies which field is initialized (a bit for each of the first 64
+	 * fields).
+	 */
+	private long m_initializedFields; // default 0
+
+	/**
+	 * Specifies which field is modified (a bit for each of the first 64
+	 * fields).
+	 */
+	private long m_modifiedFields; // default 0
+
+	/**
+	 * The null flags of the fields after the first 64 (null if the meta has at
+	 * most 64 fields).
+	 */
+	private long[] m_extraNullFields; // initially null
+
+	/**
+	 * The initialized flags of the fields after the first 64 (null if the
+	 * meta has at most 64 fields).
 	 */
-	private int m_initializedFields; // default 0
+	private long[] m_extraInitializedFields; // initially null
 
 	/**
-	 * Specifies which field is modified (a bit for each field).
+	 * The modified flags of the fields after the first 64 (null if the meta
+	 * has at most 64 fields).
 	 */
-	private int m_modifiedFields; // default 0
+	private long[] m_extraModifiedFields; // initially null
 
 	/**
 	 * Specifies if this object is new or not.
@@ -58,8 +102,33 @@ public abstract class ZPersistent {
 	 */
 	private ZSession m_session; // initially null;
 
+	/**
+	 * The group of at most <code>ZManager.getLazyFetchBatchSize()</code>
+	 * objects loaded together with this object (by a query or a multiple
+	 * get), shared by all of them. The lazy fields are fetched at once for
+	 * the siblings (null if this object was loaded alone).
+	 */
+	private ZPersistent[] m_siblings; // initially null
+
+	/**
+	 * If true, this object is registered in the dirty objects of its session
+	 * (the objects saved by <code>ZSession.saveAll()</code>).
+	 */
+	private boolean m_dirtyRegistered; // default false
+
 	public ZPersistent() {
-		m_fieldValues = new Object[getMeta().getAllFields().length];
+		ZPersistentMeta meta = getMeta();
+		m_fieldValues = new Object[meta.getNumObjectSlots()];
+		if (meta.getNumPrimitiveSlots() != 0) {
+			m_primitiveValues = new long[meta.getNumPrimitiveSlots()];
+		}
+		int numFields = meta.getAllFields().length;
+		if (numFields > FLAG_WORD_BITS) {
+			int numExtraWords = (numFields - 1) / FLAG_WORD_BITS;
+			m_extraNullFields = new long[numExtraWords];
+			m_extraInitializedFields = new long[numExtraWords];
+			m_extraModifiedFields = new long[numExtraWords];
+		}
 	}
 
 	/**
@@ -103,6 +172,48 @@ public abstract class ZPersistent {
 		m_session = session;
 	}
 
+	/**
+	 * Returns the objects loaded together with this object (null if this
+	 * object was loaded alone).
+	 * 
+	 * @return the objects loaded together with this object
+	 */
+	final ZPersistent[] getSiblings() {
+		return m_siblings;
+	}
+
+	/**
+	 * Set the objects loaded together with this object. This method is used
+	 * by <code>ZSession.setLoadedTogether(Object[])</code>.
+	 * 
+	 * @param siblings
+	 */
+	final void setSiblings(ZPersistent[] siblings) {
+		m_siblings = siblings;
+	}
+
+	/**
+	 * Set the state of the registration of this object in the dirty objects
+	 * of its session. This method is used by <code>ZSession</code> when the
+	 * object is saved.
+	 * 
+	 * @param dirtyRegistered
+	 */
+	final void setDirtyRegistered(boolean dirtyRegistered) {
+		m_dirtyRegistered = dirtyRegistered;
+	}
+
+	/**
+	 * Register this object in the dirty objects of its session (if it is not
+	 * already registered).
+	 */
+	private void registerDirty() {
+		if (!m_dirtyRegistered && (m_session != null)) {
+			m_session.addDirtyObject(this);
+			m_dirtyRegistered = true;
+		}
+	}
+
 	/**
 	 * Returns true if this object is attached to a session, false otherwise.
 	 * 
@@ -125,6 +236,9 @@ public abstract class ZPersistent {
 		if (!isNew()) {
 			m_session.addToCache(this);
 		}
+		if (isModified()) {
+			registerDirty();
+		}
 	}
 
 	/**
@@ -136,6 +250,10 @@ public abstract class ZPersistent {
 			if (!isNew()) {
 				m_session.removeFromCache(this);
 			}
+			if (m_dirtyRegistered) {
+				m_session.removeDirtyObject(this);
+				m_dirtyRegistered = false;
+			}
 		}
 	}
 
@@ -152,7 +270,7 @@ public abstract class ZPersistent {
 			checkIfNotNew();
 			m_session.fetchFieldInternal(this, field);
 		}
-		return m_fieldValues[field.getIndex()];
+		return getFieldValueInternal(field);
 	}
 
 	/**
@@ -163,7 +281,126 @@ public abstract class ZPersistent {
 	 * @return the value of the specified field
 	 */
 	Object getFieldValueInternal(ZField field) {
-		return m_fieldValues[field.getIndex()];
+		int storageKind = field.getStorageKind();
+		if (storageKind == ZField.STORAGE_OBJECT) {
+			return m_fieldValues[field.getSlot()];
+		}
+		if (isFieldNull(field)) {
+			return null;
+		}
+		long value = m_primitiveValues[field.getSlot()];
+		switch (storageKind) {
+		case ZField.STORAGE_INT:
+			return Integer.valueOf((int) value);
+		case ZField.STORAGE_LONG:
+			return Long.valueOf(value);
+		case ZField.STORAGE_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		case ZField.STORAGE_BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		default:
+			throw new ZormException("Invalid storage kind of the field: "
+					+ field + '.');
+		}
+	}
+
+	/**
+	 * Get the primitive value of the specified field (encoded as a
+	 * <code>long</code>) without boxing it. If the field is not initialized,
+	 * it is fetched from the database. Unlike
+	 * <code>getFieldValue(ZField)</code>, this function cannot be
+	 * overwritten. A <code>ZormException</code> is throwned if the value is
+	 * null.
+	 * 
+	 * @param field
+	 * @return the encoded primitive value of the specified field
+	 */
+	final long getPrimitiveFieldValue(ZField field) {
+		if (!isFieldInitialized(field)) {
+			checkIfAttached();
+			checkIfNotNew();
+			m_session.fetchFieldInternal(this, field);
+		}
+		if (isFieldNull(field)) {
+			throw new ZormException("The value of the field: " + field
+					+ " is null.");
+		}
+		return m_primitiveValues[field.getSlot()];
+	}
+
+	/**
+	 * Set the primitive value of the specified field (encoded as a
+	 * <code>long</code>) and mark the field as modified. The value is not
+	 * boxed only if neither <code>setFieldValue(ZField, Object)</code> nor
+	 * <code>ZField.validate(Object)</code> is overwritten; otherwise the
+	 * value is boxed and set with <code>setFieldValue(ZField, Object)</code>.
+	 * 
+	 * @param field
+	 * @param value
+	 */
+	final void setPrimitiveFieldValue(ZField field, long value) {
+		ZPersistentMeta meta = getMeta();
+		if ((getClass() != meta.getPersistentType())
+				|| meta.isSetFieldValueOverwritten()
+				|| !isPrimitiveFieldClass(field.getClass())) {
+			setFieldValue(field, decodePrimitiveValue(field, value));
+			return;
+		}
+		setPrimitiveFieldValueInternal(field, value);
+		setFieldModified(field, true);
+	}
+
+	/**
+	 * Returns true if the specified class is one of the ZORM field classes
+	 * whose values are stored as primitive values (and not a class inheriting
+	 * them).
+	 * 
+	 * @param fieldClass
+	 * @return true if the specified class is one of the ZORM primitive field
+	 *         classes
+	 */
+	private static boolean isPrimitiveFieldClass(Class<?> fieldClass) {
+		return (fieldClass == ZIntField.class)
+				|| (fieldClass == ZLongField.class)
+				|| (fieldClass == ZDoubleField.class)
+				|| (fieldClass == ZBooleanField.class);
+	}
+
+	/**
+	 * Returns the boxed value of the specified primitive value (encoded as a
+	 * <code>long</code>) of the specified field.
+	 * 
+	 * @param field
+	 * @param value
+	 * @return the boxed value
+	 */
+	private static Object decodePrimitiveValue(ZField field, long value) {
+		switch (field.getStorageKind()) {
+		case ZField.STORAGE_INT:
+			return (int) value;
+		case ZField.STORAGE_LONG:
+			return value;
+		case ZField.STORAGE_DOUBLE:
+			return Double.longBitsToDouble(value);
+		case ZField.STORAGE_BOOLEAN:
+			return value != 0;
+		default:
+			throw new ZormException("Invalid storage kind of the field: "
+					+ field + '.');
+		}
+	}
+
+	/**
+	 * Set the primitive value of the specified field (encoded as a
+	 * <code>long</code>).
+	 * 
+	 * @param field
+	 * @param value
+	 */
+	final void setPrimitiveFieldValueInternal(ZField field, long value) {
+		m_primitiveValues[field.getSlot()] = value;
+		setFieldNull(field, false);
+		setFieldInitialized(field, true);
 	}
 
 	/**
@@ -192,10 +429,51 @@ public abstract class ZPersistent {
 	 * @param value
 	 */
 	void setFieldValueInternal(ZField field, Object value) {
-		m_fieldValues[field.getIndex()] = value;
+		int storageKind = field.getStorageKind();
+		if (storageKind == ZField.STORAGE_OBJECT) {
+			m_fieldValues[field.getSlot()] = value;
+		} else if (value == null) {
+			m_primitiveValues[field.getSlot()] = 0;
+			setFieldNull(field, true);
+		} else {
+			long primitiveValue;
+			switch (storageKind) {
+			case ZField.STORAGE_INT:
+			case ZField.STORAGE_LONG:
+				primitiveValue = ((Number) value).longValue();
+				break;
+			case ZField.STORAGE_DOUBLE:
+				primitiveValue = Double.doubleToRawLongBits(((Number) value)
+						.doubleValue());
+				break;
+			case ZField.STORAGE_BOOLEAN:
+				primitiveValue = ((Boolean) value) ? 1 : 0;
+				break;
+			default:
+				throw new ZormException("Invalid storage kind of the field: "
+						+ field + '.');
+			}
+			m_primitiveValues[field.getSlot()] = primitiveValue;
+			setFieldNull(field, false);
+		}
 		setFieldInitialized(field, true);
 	}
 
+	/**
+	 * Clear the stored value of the specified field (without changing the
+	 * initialized and modified flags).
+	 * 
+	 * @param field
+	 */
+	private void clearFieldValueInternal(ZField field) {
+		if (field.getStorageKind() == ZField.STORAGE_OBJECT) {
+			m_fieldValues[field.getSlot()] = null;
+		} else {
+			m_primitiveValues[field.getSlot()] = 0;
+			setFieldNull(field, false);
+		}
+	}
+
 	/**
 	 * Clear the value of the specified field.
 	 * 
@@ -206,7 +484,7 @@ public abstract class ZPersistent {
 			throw new ZormException("Identification field: " + field
 					+ " cannot be cleared");
 		}
-		m_fieldValues[field.getIndex()] = null;
+		clearFieldValueInternal(field);
 		setFieldInitialized(field, false);
 		setFieldModified(field, false);
 	}
@@ -221,7 +499,7 @@ public abstract class ZPersistent {
 			if (field == getMeta().getIdField() && !isNew()) {
 				continue;
 			}
-			m_fieldValues[field.getIndex()] = null;
+			clearFieldValueInternal(field);
 			setFieldInitialized(field, false);
 			setFieldModified(field, false);
 		}
@@ -234,7 +512,13 @@ public abstract class ZPersistent {
 	 * @return if the specified field is initialized, false otherwise.
 	 */
 	public final boolean isFieldInitialized(ZField field) {
-		return (m_initializedFields & (1 << field.getIndex())) != 0;
+		int index = field.getIndex();
+		if (index < FLAG_WORD_BITS) {
+			return (m_initializedFields & (1L << index)) != 0;
+		}
+		// the shift distance of a long is taken modulo 64
+		return (m_extraInitializedFields[index / FLAG_WORD_BITS - 1]
+				& (1L << index)) != 0;
 	}
 
 	/**
@@ -244,11 +528,63 @@ public abstract class ZPersistent {
 	 * @param initialized
 	 */
 	final void setFieldInitialized(ZField field, boolean loaded) {
-		if (loaded) {
-			m_initializedFields |= (1 << field.getIndex());
+		int index = field.getIndex();
+		long mask = 1L << index;
+		if (index < FLAG_WORD_BITS) {
+			if (loaded) {
+				m_initializedFields |= mask;
+			} else {
+				m_initializedFields &= ~mask;
+			}
 		} else {
-			m_initializedFields &= ~(1 << field.getIndex());
+			int word = index / FLAG_WORD_BITS - 1;
+			if (loaded) {
+				m_extraInitializedFields[word] |= mask;
+			} else {
+				m_extraInitializedFields[word] &= ~mask;
+			}
+		}
+	}
 
+	/**
+	 * Returs true if the value of the specified field (stored as a primitive
+	 * value) is null, false otherwise.
+	 * 
+	 * @param field
+	 * @return true if the value of the specified field is null
+	 */
+	private boolean isFieldNull(ZField field) {
+		int index = field.getIndex();
+		if (index < FLAG_WORD_BITS) {
+			return (m_nullFields & (1L << index)) != 0;
+		}
+		return (m_extraNullFields[index / FLAG_WORD_BITS - 1]
+				& (1L << index)) != 0;
+	}
+
+	/**
+	 * Set the state of the null flag for the specified field (stored as a
+	 * primitive value).
+	 * 
+	 * @param field
+	 * @param isNull
+	 */
+	private void setFieldNull(ZField field, boolean isNull) {
+		int index = field.getIndex();
+		long mask = 1L << index;
+		if (index < FLAG_WORD_BITS) {
+			if (isNull) {
+				m_nullFields |= mask;
+			} else {
+				m_nullFields &= ~mask;
+			}
+		} else {
+			int word = index / FLAG_WORD_BITS - 1;
+			if (isNull) {
+				m_extraNullFields[word] |= mask;
+			} else {
+				m_extraNullFields[word] &= ~mask;
+			}
 		}
 	}
 
@@ -259,7 +595,12 @@ public abstract class ZPersistent {
 	 * @return if the specified field is modified, false otherwise.
 	 */
 	public final boolean isFieldModified(ZField field) {
-		return (m_modifiedFields & (1 << field.getIndex())) != 0;
+		int index = field.getIndex();
+		if (index < FLAG_WORD_BITS) {
+			return (m_modifiedFields & (1L << index)) != 0;
+		}
+		return (m_extraModifiedFields[index / FLAG_WORD_BITS - 1]
+				& (1L << index)) != 0;
 	}
 
 	/**
@@ -269,10 +610,24 @@ public abstract class ZPersistent {
 	 * @param modified
 	 */
 	final void setFieldModified(ZField field, boolean modified) {
-		if (modified) {
-			m_modifiedFields |= (1 << field.getIndex());
+		int index = field.getIndex();
+		long mask = 1L << index;
+		if (index < FLAG_WORD_BITS) {
+			if (modified) {
+				m_modifiedFields |= mask;
+			} else {
+				m_modifiedFields &= ~mask;
+			}
 		} else {
-			m_modifiedFields &= ~(1 << field.getIndex());
+			int word = index / FLAG_WORD_BITS - 1;
+			if (modified) {
+				m_extraModifiedFields[word] |= mask;
+			} else {
+				m_extraModifiedFields[word] &= ~mask;
+			}
+		}
+		if (modified) {
+			registerDirty();
 		}
 	}
 
@@ -284,7 +639,17 @@ public abstract class ZPersistent {
 	 *         otherwise
 	 */
 	public final boolean isModified() {
-		return m_modifiedFields != 0;
+		if (m_modifiedFields != 0) {
+			return true;
+		}
+		if (m_extraModifiedFields != null) {
+			for (long word : m_extraModifiedFields) {
+				if (word != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -297,13 +662,23 @@ public abstract class ZPersistent {
 	public final void setModified(boolean modified) {
 		if (modified) {
 			m_modifiedFields = m_initializedFields;
+			if (m_extraModifiedFields != null) {
+				System.arraycopy(m_extraInitializedFields, 0,
+						m_extraModifiedFields, 0, m_extraModifiedFields.length);
+			}
 			// mask the ifField modified flag
 			ZField idField = getMeta().getIdField();
 			if (idField != null) {
-				m_modifiedFields &= ~(1 << idField.getIndex());
+				setFieldModified(idField, false);
+			}
+			if (isModified()) {
+				registerDirty();
 			}
 		} else {
 			m_modifiedFields = 0;
+			if (m_extraModifiedFields != null) {
+				Arrays.fill(m_extraModifiedFields, 0);
+			}
 		}
 	}
 
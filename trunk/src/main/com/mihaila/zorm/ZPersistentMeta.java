@@ -22,6 +22,10 @@
 
 package com.mihaila.zorm;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.mihaila.zorm.exception.ZormException;
 import com.mihaila.zorm.field.ZStringField;
 
@@ -179,14 +183,12 @@ public class ZPersistentMeta {
 	 *            object
 	 */
 	public final void setFields(ZField... fields) {
-		if (fields.length > 32) {
-			throw new ZormException(
-					"ZORM does not support <code>ZPersistent</code> objects with more than 32 fields");
-		}
 		m_fields = fields;
 
 		// initialize fields
 		int index = 0;
+		int numObjectSlots = 0;
+		int numPrimitiveSlots = 0;
 		int numAutoFields = 0;
 		int numAutoGenerated = 0;
 		// autodetect the id field (if it was not set
@@ -203,6 +205,12 @@ public class ZPersistentMeta {
 			// set meta and index to field
 			field.setPersistentMeta(this);
 			field.setIndex(index++);
+			// set the storage slot
+			if (field.getStorageKind() == ZField.STORAGE_OBJECT) {
+				field.setSlot(numObjectSlots++);
+			} else {
+				field.setSlot(numPrimitiveSlots++);
+			}
 			// count autofetched fields (the id field is excluded)
 			if (field.isAutoFetched() && (field != getIdField())) {
 				numAutoFields++;
@@ -212,6 +220,10 @@ public class ZPersistentMeta {
 				numAutoGenerated++;
 			}
 		}
+		m_lastHydrator = null;
+		m_hydrators.clear();
+		m_numObjectSlots = numObjectSlots;
+		m_numPrimitiveSlots = numPrimitiveSlots;
 		m_autoFetchedFields = new ZField[numAutoFields];
 		m_autoGeneratedFields = new ZField[numAutoGenerated];
 		numAutoFields = 0;
@@ -246,6 +258,132 @@ public class ZPersistentMeta {
 		return m_autoGeneratedFields;
 	}
 
+	/**
+	 * Returns the hydrator reading the specified fields of this meta. The
+	 * hydrators are cached by fields (at most MAX_HYDRATORS of them), and the
+	 * last hydrator returned is checked first, so reading the rows of a query
+	 * doesn't hash the fields for each row.
+	 * 
+	 * @param fields
+	 *            the fields read, in the order of the columns
+	 * @return the hydrator reading the specified fields
+	 */
+	final ZHydrator getHydrator(ZField[] fields) {
+		ZHydrator hydrator = m_lastHydrator;
+		if ((hydrator != null) && hydrator.isReading(fields)) {
+			return hydrator;
+		}
+		hydrator = m_hydrators.get(Arrays.asList(fields));
+		if (hydrator == null) {
+			hydrator = new ZHydrator(this, fields);
+			if (m_hydrators.size() < MAX_HYDRATORS) {
+				// the key must not change with the array of the caller
+				m_hydrators.put(Arrays.asList(fields.clone()), hydrator);
+			}
+		}
+		m_lastHydrator = hydrator;
+		return hydrator;
+	}
+
+	/**
+	 * Returns true if the persistent type overwrites
+	 * <code>ZPersistent.setFieldValue(ZField, Object)</code> (lazy
+	 * initialized).
+	 * 
+	 * @return true if the persistent type overwrites
+	 *         <code>ZPersistent.setFieldValue(ZField, Object)</code>
+	 */
+	final boolean isSetFieldValueOverwritten() {
+		Boolean overwritten = m_setFieldValueOverwritten;
+		if (overwritten == null) {
+			try {
+				Class<?> declaringClass = m_persistentType.getMethod(
+						"setFieldValue", ZField.class, Object.class)
+						.getDeclaringClass();
+				overwritten = declaringClass != ZPersistent.class;
+			} catch (NoSuchMethodException e) {
+				throw new ZormException(e);
+			}
+			m_setFieldValueOverwritten = overwritten;
+		}
+		return overwritten;
+	}
+
+	/**
+	 * Returns the number of fields whose values are stored as objects in the
+	 * <code>ZPersistent</code> objects.
+	 * 
+	 * @return the number of fields whose values are stored as objects
+	 */
+	final int getNumObjectSlots() {
+		return m_numObjectSlots;
+	}
+
+	/**
+	 * Returns the number of fields whose values are stored as primitive values
+	 * in the <code>ZPersistent</code> objects.
+	 * 
+	 * @return the number of fields whose values are stored as primitive values
+	 */
+	final int getNumPrimitiveSlots() {
+		return m_numPrimitiveSlots;
+	}
+
+	/**
+	 * Returns the maximum number of objects with this meta kept in the shared
+	 * cache of the <code>ZManager</code> (0 if the objects are not cached).
+	 * 
+	 * @return the maximum number of objects kept in the shared cache
+	 */
+	public final int getSharedCacheSize() {
+		return m_sharedCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of objects with this meta kept in the shared
+	 * cache of the <code>ZManager</code>. When the size is exceeded, the
+	 * least recently used objects are evicted. If the value is 0, than the
+	 * objects are not cached (this is the default).
+	 * 
+	 * @param sharedCacheSize
+	 */
+	public final void setSharedCacheSize(int sharedCacheSize) {
+		if (sharedCacheSize < 0) {
+			throw new ZormException(
+					"The shared cache size cannot be negative.");
+		}
+		m_sharedCacheSize = sharedCacheSize;
+		if (sharedCacheSize == 0) {
+			ZManager.getSharedCache().clear(this);
+		}
+	}
+
+	/**
+	 * Returns the time (in milliseconds) the objects with this meta are kept
+	 * in the shared cache (0 if they don't expire).
+	 * 
+	 * @return the time to live of the objects in the shared cache
+	 */
+	public final long getSharedCacheTtl() {
+		return m_sharedCacheTtl;
+	}
+
+	/**
+	 * Set the time (in milliseconds) the objects with this meta are kept in
+	 * the shared cache. If the value is 0, than the objects don't expire (they
+	 * are evicted only when the cache size is exceeded or when they are
+	 * written). The default value is 0.
+	 * 
+	 * @param sharedCacheTtl
+	 */
+	public final void setSharedCacheTtl(long sharedCacheTtl) {
+		if (sharedCacheTtl < 0) {
+			throw new ZormException(
+					"The shared cache time to live cannot be negative.");
+		}
+		m_sharedCacheTtl = sharedCacheTtl;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -293,4 +431,46 @@ public class ZPersistentMeta {
 	 */
 	private ZField[] m_autoGeneratedFields;
 
+	/**
+	 * The maximum number of objects kept in the shared cache.
+	 */
+	private int m_sharedCacheSize; // default 0
+
+	/**
+	 * The number of fields whose values are stored as objects.
+	 */
+	private int m_numObjectSlots; // default 0
+
+	/**
+	 * The maximum number of hydrators cached by a meta.
+	 */
+	private final static int MAX_HYDRATORS = 64;
+
+	/**
+	 * The hydrators of this meta, by the fields they read.
+	 */
+	private final ConcurrentHashMap<List<ZField>, ZHydrator> m_hydrators = new ConcurrentHashMap<List<ZField>, ZHydrator>();
+
+	/**
+	 * The last hydrator returned by <code>getHydrator(ZField[])</code>.
+	 */
+	private volatile ZHydrator m_lastHydrator; // initially null
+
+	/**
+	 * True if the persistent type overwrites
+	 * <code>ZPersistent.setFieldValue(ZField, Object)</code>. This field is
+	 * lazy loaded.
+	 */
+	private volatile Boolean m_setFieldValueOverwritten; // initially null
+
+	/**
+	 * The number of fields whose values are stored as primitive values.
+	 */
+	private int m_numPrimitiveSlots; // default 0
+
+	/**
+	 * The time to live (in milliseconds) of the objects in the shared cache.
+	 */
+	private long m_sharedCacheTtl; // default 0
+
 }
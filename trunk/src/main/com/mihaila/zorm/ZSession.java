@@ -22,11 +22,36 @@
 
 package com.mihaila.zorm;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.mihaila.zorm.exception.ZormException;
 import com.mihaila.zorm.exception.ZormInvalidFieldValueException;
@@ -35,7 +60,6 @@ import com.mihaila.zorm.exception.ZormPersistentObjectNotFoundException;
 import com.mihaila.zorm.field.ZStringField;
 import com.mihaila.zorm.query.ZSelectQuery;
 import com.mihaila.zutil.factory.FactoryManager;
-import com.mihaila.zutil.text.EncodeUtil;
 
 /**
  * Represents the main interface of interaction between the application and the
@@ -61,6 +85,46 @@ public class ZSession {
 	 */
 	private final static int DELETE_BUFFER_CAPACITY = 128;
 
+	/*
+	 * The kinds of statements kept in the statement cache.
+	 */
+
+	private final static int STATEMENT_SELECT = 1;
+
+	private final static int STATEMENT_SELECT_IN = 2;
+
+	private final static int STATEMENT_INSERT = 3;
+
+	private final static int STATEMENT_INSERT_READING_ID = 4;
+
+	private final static int STATEMENT_UPDATE = 5;
+
+	private final static int STATEMENT_DELETE = 6;
+
+	private final static int STATEMENT_DELETE_IN = 7;
+
+	/**
+	 * Empty array of fields, used for statements that don't depend on fields.
+	 */
+	private final static ZField[] NO_FIELDS = new ZField[0];
+
+	/**
+	 * Empty array of parameter values, used to explain the queries without
+	 * parameters.
+	 */
+	private final static Object[] NO_PARAMETERS = new Object[0];
+
+	/**
+	 * The maximum number of slow queries whose last explaining time is kept.
+	 */
+	private final static int MAX_EXPLAINED_QUERIES = 1000;
+
+	/**
+	 * The time (from <code>System.nanoTime()</code>) when each slow query was
+	 * last explained, shared by all the sessions.
+	 */
+	private final static ConcurrentHashMap<String, Long> EXPLAINED_QUERIES = new ConcurrentHashMap<String, Long>();
+
 	/**
 	 * A number uniquely identifying each session object. This field is lazy
 	 * initialized. A value of 0 means that it was not initialized.
@@ -78,18 +142,46 @@ public class ZSession {
 	 */
 	private Statement m_sqlStatement; // lazy loaded
 
+	/**
+	 * The pool from which the SQL connection was borrowed (null if the
+	 * connection is not pooled).
+	 */
+	private ZConnectionPool m_connectionPool; // initially null
+
 	/**
 	 * If true, this session is closed and no operations can be done.
 	 */
 	private boolean m_closed; // initially false
 
 	/**
-	 * Dictionary containing the loaded <code>ZPersistent</code> objects,
-	 * using as key "table:id".
+	 * Dictionary containing the loaded <code>ZPersistent</code> objects, with
+	 * a dictionary for each meta using the id as key (so that the lookups
+	 * don't need to build keys). The values are the objects, or
+	 * <code>LoadedObjectRef</code> objects if the identity map capacity is
+	 * positive.
 	 * 
 	 * This field is lazy loaded.
 	 */
-	private HashMap<String, ZPersistent> m_loadedObjects; // initially null
+	private HashMap<ZPersistentMeta, HashMap<String, Object>> m_loadedObjects; // initially null
+
+	/**
+	 * The maximum number of loaded objects strongly held by this session (0
+	 * if all the loaded objects are strongly held).
+	 */
+	private final int m_identityMapCapacity = ZManager
+			.getIdentityMapCapacity();
+
+	/**
+	 * The most recently used loaded objects, strongly held when the identity
+	 * map capacity is positive. This field is lazy loaded.
+	 */
+	private RecentObjects m_recentObjects; // initially null
+
+	/**
+	 * The queue of the references to the loaded objects that were garbage
+	 * collected. This field is lazy loaded.
+	 */
+	private ReferenceQueue<ZPersistent> m_collectedObjects; // initially null
 
 	/**
 	 * If true, this session will permit the automatic fetching from database of
@@ -97,11 +189,415 @@ public class ZSession {
 	 */
 	private boolean m_autoFetchingFieldsOnRead; // default false
 
+	/**
+	 * If true, <code>ZPersistent.save()</code> only adds the object to the
+	 * pending writes, which are executed by <code>flush()</code>.
+	 */
+	private boolean m_deferringWrites; // default false
+
+	/**
+	 * The objects saved while the deferringWrites mode was set, in the order
+	 * they were saved. This field is lazy loaded.
+	 */
+	private LinkedHashSet<ZPersistent> m_pendingWrites; // initially null
+
+	/**
+	 * The objects modified while attached to this session (including the new
+	 * objects), in the order they were first modified. The set may also
+	 * contain objects that were saved afterwards; they are removed by
+	 * <code>saveAll()</code>. This field is lazy loaded.
+	 */
+	private LinkedHashSet<ZPersistent> m_dirtyObjects; // initially null
+
 	/**
 	 * Counts the number of queries made in this session by the ZORM framework.
 	 */
 	private int m_numQueries; // initially 0
 
+	/**
+	 * Cache containing the prepared statements used by this session to read
+	 * and write the persistent objects, in access order. This field is lazy
+	 * loaded.
+	 */
+	private StatementCache<StatementKey, PreparedQuery> m_preparedQueries; // initially null
+
+	/**
+	 * Cache containing the prepared statements of the queries executed in this
+	 * session, by SQL text, in access order. This field is lazy loaded.
+	 */
+	private StatementCache<String, PreparedStatement> m_queryStatements; // initially null
+
+	/**
+	 * Runs the asynchronous operations of this session one at a time. This
+	 * field is lazy loaded.
+	 */
+	private SerialExecutor m_asyncTasks; // initially null
+
+	/**
+	 * The ids of the objects written in the current transaction, for the metas
+	 * using the shared cache. These objects are not read from (or added to)
+	 * the shared cache until the transaction ends. This field is lazy loaded.
+	 */
+	private HashMap<ZPersistentMeta, HashSet<String>> m_writtenObjects; // initially null
+
+	/**
+	 * The tables (in lower case) written in the current transaction. The
+	 * results of the queries reading these tables are not read from (or added
+	 * to) the query cache until the transaction ends. This field is lazy
+	 * loaded.
+	 */
+	private HashSet<String> m_writtenTables; // initially null
+
+	/**
+	 * Identifies a statement in the statement cache by the kind of the
+	 * statement, the meta, the fields used and the number of ids (for
+	 * "select ... in ..." queries).
+	 */
+	private final static class StatementKey {
+
+		public final int kind;
+
+		public final ZPersistentMeta meta;
+
+		public final ZField[] fields;
+
+		public final int numIds;
+
+		private final int m_hashCode;
+
+		public StatementKey(int kind, ZPersistentMeta meta, ZField[] fields,
+				int numIds) {
+			this.kind = kind;
+			this.meta = meta;
+			this.fields = fields;
+			this.numIds = numIds;
+			m_hashCode = ((kind * 31 + meta.hashCode()) * 31 + numIds) * 31
+					+ Arrays.hashCode(fields);
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hashCode;
+		}
+
+		@Override
+		public boolean equals(Object ob) {
+			if (!(ob instanceof StatementKey)) {
+				return false;
+			}
+			StatementKey key = (StatementKey) ob;
+			return (kind == key.kind) && (meta == key.meta)
+					&& (numIds == key.numIds)
+					&& Arrays.equals(fields, key.fields);
+		}
+	}
+
+	/**
+	 * Structure holding a prepared statement, its SQL query and, for the
+	 * select statements, the hydrator of the selected fields.
+	 */
+	private final static class PreparedQuery {
+
+		public final String sql;
+
+		public final PreparedStatement stmt;
+
+		public final ZHydrator hydrator;
+
+		public PreparedQuery(String sql, PreparedStatement stmt,
+				ZHydrator hydrator) {
+			this.sql = sql;
+			this.stmt = stmt;
+			this.hydrator = hydrator;
+		}
+	}
+
+	/**
+	 * Cache of prepared statements (<code>PreparedStatement</code> or
+	 * <code>PreparedQuery</code> objects), with a maximum size. The least
+	 * recently used statement is closed and removed when the maximum size is
+	 * exceeded. A failure to close it is only logged, since it would be
+	 * throwned by the <code>put()</code> call adding a new statement.
+	 */
+	private final static class StatementCache<K, V> extends
+			LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		public StatementCache(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			if (size() <= maxSize) {
+				return false;
+			}
+			Object value = eldest.getValue();
+			try {
+				if (value instanceof PreparedQuery) {
+					((PreparedQuery) value).stmt.close();
+				} else {
+					((PreparedStatement) value).close();
+				}
+			} catch (Exception e) {
+				ZManager.getLogger().warn(
+						"Error closing the evicted SQL Statement", e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Matches the ids returned by a "select ... in ..." query to the requested
+	 * ids. The database may return an id that is not equal to the requested
+	 * one (the default MySQL collations ignore the case and the trailing
+	 * spaces), so an id that is not requested is matched to the requested ids
+	 * that are equal to it ignoring the case and the trailing spaces.
+	 */
+	private final static class IdMatcher {
+
+		private final Collection<String> m_ids;
+
+		private HashMap<String, ArrayList<String>> m_idsByKey; // lazy loaded
+
+		public IdMatcher(Collection<String> ids) {
+			m_ids = ids;
+		}
+
+		/**
+		 * Returns the requested ids matching the specified id returned by the
+		 * database (an empty list if no requested id matches).
+		 * 
+		 * @param id
+		 * @return the requested ids matching the specified id
+		 */
+		public List<String> match(String id) {
+			if (m_ids.contains(id)) {
+				return Collections.singletonList(id);
+			}
+			if (m_idsByKey == null) {
+				m_idsByKey = new HashMap<String, ArrayList<String>>();
+				for (String requestedId : m_ids) {
+					String key = getKey(requestedId);
+					ArrayList<String> ids = m_idsByKey.get(key);
+					if (ids == null) {
+						ids = new ArrayList<String>(1);
+						m_idsByKey.put(key, ids);
+					}
+					ids.add(requestedId);
+				}
+			}
+			List<String> ids = m_idsByKey.get(getKey(id));
+			return (ids == null) ? Collections.<String> emptyList() : ids;
+		}
+
+		private static String getKey(String id) {
+			int end = id.length();
+			while ((end > 0) && (id.charAt(end - 1) == ' ')) {
+				end--;
+			}
+			return id.substring(0, end).toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * Weak reference to a loaded object, remembering its meta and id so that
+	 * its entry is removed from the loaded objects after the object is
+	 * garbage collected.
+	 */
+	private final static class LoadedObjectRef extends
+			WeakReference<ZPersistent> {
+
+		public final ZPersistentMeta meta;
+
+		public final String id;
+
+		public LoadedObjectRef(ZPersistent ob,
+				ReferenceQueue<ZPersistent> queue) {
+			super(ob, queue);
+			this.meta = ob.getMeta();
+			this.id = ob.getId();
+		}
+	}
+
+	/**
+	 * The most recently used loaded objects, with a maximum size. The least
+	 * recently used object is removed when the maximum size is exceeded (and
+	 * it remains loaded only while it is referenced elsewhere).
+	 */
+	private final static class RecentObjects extends
+			LinkedHashMap<ZPersistent, Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		public RecentObjects(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<ZPersistent, Boolean> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	/**
+	 * Task run by the <code>SerialExecutor</code>, completing a
+	 * <code>CompletableFuture</code> with the result of a
+	 * <code>Callable</code>. The callable is not called if the future was
+	 * cancelled.
+	 */
+	private final static class AsyncTask<T> implements Runnable {
+
+		public final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		private final Callable<T> callable;
+
+		public AsyncTask(Callable<T> callable) {
+			this.callable = callable;
+		}
+
+		public void run() {
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.complete(callable.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Executor running the submitted tasks one at a time, in submission order,
+	 * on the asynchronous executor of the <code>ZManager</code>. After
+	 * <code>shutdown()</code> the queued tasks are cancelled and no other
+	 * task is accepted.
+	 */
+	private final static class SerialExecutor implements Executor {
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final Condition idle = lock.newCondition();
+
+		private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+		private Runnable active; // initially null
+
+		private Thread activeThread; // initially null
+
+		private boolean shutdown; // initially false
+
+		public void execute(Runnable task) {
+			lock.lock();
+			try {
+				if (shutdown) {
+					cancel(task);
+					throw new ZormException("The session is closed.");
+				}
+				tasks.add(task);
+				if (active == null) {
+					scheduleNext();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Cancel the queued tasks and wait for the running task to finish
+		 * (unless it is the running task that calls this function).
+		 */
+		public void shutdown() {
+			lock.lock();
+			try {
+				shutdown = true;
+				for (Runnable queuedTask : tasks) {
+					cancel(queuedTask);
+				}
+				tasks.clear();
+				if (activeThread == Thread.currentThread()) {
+					return;
+				}
+				boolean interrupted = false;
+				while (active != null) {
+					try {
+						idle.await();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void scheduleNext() {
+			lock.lock();
+			try {
+				final Runnable task = tasks.poll();
+				active = task;
+				activeThread = null;
+				if (task == null) {
+					idle.signalAll();
+					return;
+				}
+				try {
+					ZManager.getAsyncExecutor().execute(new Runnable() {
+						public void run() {
+							setActiveThread(Thread.currentThread());
+							try {
+								task.run();
+							} finally {
+								scheduleNext();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					// cancel the rejected tasks, so that the callers waiting
+					// for their results are not blocked forever
+					cancel(task);
+					for (Runnable queuedTask : tasks) {
+						cancel(queuedTask);
+					}
+					active = null;
+					tasks.clear();
+					idle.signalAll();
+					throw new ZormException(
+							"Error submitting an asynchronous operation.", e);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void setActiveThread(Thread thread) {
+			lock.lock();
+			try {
+				activeThread = thread;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private static void cancel(Runnable task) {
+			if (task instanceof AsyncTask<?>) {
+				((AsyncTask<?>) task).future.cancel(false);
+			}
+		}
+	}
+
 	/**
 	 * Make the constructor to have package access because only the
 	 * <code>ZManager</code> need to create </code>ZSession</code> objects.
@@ -109,6 +605,7 @@ public class ZSession {
 	 */
 	ZSession() {
 		setAutoFetchingFieldsOnRead(ZManager.isAutoFetchingFieldsOnRead());
+		ZManager.getMetrics().sessionOpened();
 	}
 
 	/**
@@ -136,19 +633,54 @@ public class ZSession {
 	/**
 	 * Get the SQL connection associated with this object. If no connection was
 	 * set (via <code>setSqlConnection(Connection)</code>), than a new
-	 * connection is retrieved by calling
-	 * <code>ZManager.getNewConnection()</code>.
+	 * connection is borrowed from the connection pool of the
+	 * <code>ZManager</code> or, if no pool is set, retrieved by calling
+	 * <code>ZManager.getNewSqlConnection()</code>.
 	 * 
 	 * @return the SQL connection associated with this object.
 	 */
 	public final Connection getSqlConnection() {
 		checkSessionNotClosed();
 		if (m_sqlConn == null) {
-			m_sqlConn = ZManager.getNewSqlConnection();
+			ZConnectionPool connectionPool = ZManager.getConnectionPool();
+			m_sqlConn = openSqlConnection(connectionPool);
+			m_connectionPool = connectionPool;
 		}
 		return m_sqlConn;
 	}
 
+	/**
+	 * Returns a SQL connection borrowed from the specified pool or, if the
+	 * pool is null, a new connection from the <code>ZManager</code>.
+	 * 
+	 * @param connectionPool
+	 * @return a SQL connection
+	 */
+	private static Connection openSqlConnection(
+			ZConnectionPool connectionPool) {
+		if (connectionPool != null) {
+			return connectionPool.borrowConnection();
+		}
+		return ZManager.getNewSqlConnection();
+	}
+
+	/**
+	 * Return the specified SQL connection to the pool it was borrowed from
+	 * or, if the pool is null, close it.
+	 * 
+	 * @param connectionPool
+	 * @param sqlConn
+	 * @throws SQLException
+	 */
+	private static void releaseSqlConnection(ZConnectionPool connectionPool,
+			Connection sqlConn) throws SQLException {
+		if (connectionPool != null) {
+			connectionPool.returnConnection(sqlConn);
+		} else if (!sqlConn.isClosed()) {
+			sqlConn.close();
+		}
+	}
+
 	/**
 	 * Set the SQL connection for this session. This function is used by the
 	 * <code>ZManager</code>.
@@ -217,6 +749,33 @@ public class ZSession {
 		return m_sqlStatement;
 	}
 
+	/**
+	 * Returns a <code>PreparedStatement</code> for the specified SQL query.
+	 * The statements are cached by the session (the least recently used
+	 * statement is closed when more than
+	 * <code>ZManager.getStatementCacheSize()</code> statements are cached).
+	 * 
+	 * @param sql
+	 * @return a <code>PreparedStatement</code> for the specified SQL query
+	 */
+	public final PreparedStatement getPreparedStatement(String sql) {
+		checkSessionNotClosed();
+		if (m_queryStatements == null) {
+			m_queryStatements = new StatementCache<String, PreparedStatement>(
+					ZManager.getStatementCacheSize());
+		}
+		PreparedStatement stmt = m_queryStatements.get(sql);
+		if (stmt == null) {
+			try {
+				stmt = getSqlConnection().prepareStatement(sql);
+			} catch (Exception e) {
+				throw new ZormException("Error creating SQL Statement", e);
+			}
+			m_queryStatements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
 	/**
 	 * Returns the number of queries made in this session by the ZORM framework.
 	 * 
@@ -276,46 +835,109 @@ public class ZSession {
 
 	/**
 	 * Get the <code>ZPersistent</code> objects with the specified meta and
-	 * ids.
+	 * ids. The objects that are not already loaded in this session are
+	 * retrieved using "select ... in ..." queries.
 	 * 
 	 * @param meta
 	 * @param ids
 	 * @return the <code>ZPersistent</code> objects with the specified meta
-	 *         and ids
+	 *         and ids, in the order of the specified ids. The objects that were
+	 *         not found in the database are returned as null values.
 	 */
 	public final ZPersistent[] get(ZPersistentMeta meta, String[] ids) {
 		checkIfMetaHasIdField(meta);
-		// [TODO] optimize it by using "select ... in ..." queries
-		ZPersistent[] obs = new ZPersistent[ids.length];
-		int i = 0;
-		for (String id : ids) {
-			obs[i++] = getSingle(meta, id, true, null);
-		}
-		return obs;
-
+		return getMultiple(meta, ids, true, null);
 	}
 
 	/**
 	 * Get the <code>ZPersistent</code> objects with the specified meta, ids
-	 * and fields loaded.
+	 * and fields loaded. The objects that are not already loaded in this
+	 * session are retrieved using "select ... in ..." queries.
 	 * 
 	 * @param meta
 	 * @param ids
 	 * @param fields
 	 * @return the <code>ZPersistent</code> objects with the specified meta,
-	 *         ids and fields loaded
+	 *         ids and fields loaded, in the order of the specified ids. The
+	 *         objects that were not found in the database are returned as
+	 *         null values.
 	 */
 	public final ZPersistent[] get(ZPersistentMeta meta, String[] ids,
 			ZField[] fields) {
-		// TODO: optimize it by using "select ... in ..." queries
 		checkIfMetaHasIdField(meta);
-		ZPersistent[] obs = new ZPersistent[ids.length];
-		int i = 0;
-		for (String id : ids) {
-			obs[i++] = getSingle(meta, id, true, fields);
-		}
-		return obs;
+		return getMultiple(meta, ids, true, fields);
+	}
+
+	/**
+	 * Get asynchronously the <code>ZPersistent</code> object with the
+	 * specified meta and id.
+	 * 
+	 * @param meta
+	 * @param id
+	 * @return a <code>CompletableFuture</code> holding the
+	 *         <code>ZPersistent</code> object with the specified meta and id
+	 *         (or null if the object was not found in the database)
+	 * @see #get(ZPersistentMeta, String)
+	 * @see #runAsync(Callable)
+	 */
+	public final CompletableFuture<ZPersistent> getAsync(final ZPersistentMeta meta,
+			final String id) {
+		checkIfMetaHasIdField(meta);
+		return runAsync(new Callable<ZPersistent>() {
+			public ZPersistent call() {
+				return get(meta, id);
+			}
+		});
+	}
+
+	/**
+	 * Get asynchronously the <code>ZPersistent</code> objects with the
+	 * specified meta and ids.
+	 * 
+	 * @param meta
+	 * @param ids
+	 * @return a <code>CompletableFuture</code> holding the
+	 *         <code>ZPersistent</code> objects with the specified meta and ids
+	 * @see #get(ZPersistentMeta, String[])
+	 * @see #runAsync(Callable)
+	 */
+	public final CompletableFuture<ZPersistent[]> getAsync(final ZPersistentMeta meta,
+			String[] ids) {
+		checkIfMetaHasIdField(meta);
+		final String[] idsCopy = ids.clone();
+		return runAsync(new Callable<ZPersistent[]>() {
+			public ZPersistent[] call() {
+				return get(meta, idsCopy);
+			}
+		});
+	}
 
+	/**
+	 * Run the specified task asynchronously, on the executor returned by
+	 * <code>ZManager.getAsyncExecutor()</code>. The tasks submitted to a
+	 * session are run one at a time, in the order in which they were
+	 * submitted, because the session (and its SQL connection) must not be
+	 * used concurrently. For the same reason, the session must not be used
+	 * directly until the returned future is done (the dependent actions of the
+	 * future that use the session should be chained on it, or submitted with
+	 * this function). Independent operations can run concurrently only in
+	 * different sessions.
+	 * 
+	 * @param task
+	 * @return a <code>CompletableFuture</code> holding the result of the task
+	 */
+	public final <T> CompletableFuture<T> runAsync(Callable<T> task) {
+		checkSessionNotClosed();
+		AsyncTask<T> asyncTask = new AsyncTask<T>(task);
+		SerialExecutor asyncTasks;
+		synchronized (this) {
+			if (m_asyncTasks == null) {
+				m_asyncTasks = new SerialExecutor();
+			}
+			asyncTasks = m_asyncTasks;
+		}
+		asyncTasks.execute(asyncTask);
+		return asyncTask.future;
 	}
 
 	/**
@@ -343,20 +965,55 @@ public class ZSession {
 	 */
 	public final ZPersistent[] getShallow(ZPersistentMeta meta, String[] ids) {
 		checkIfMetaHasIdField(meta);
-		ZPersistent[] obs = new ZPersistent[ids.length];
-		int i = 0;
-		for (String id : ids) {
-			obs[i++] = getSingle(meta, id, false, null);
-		}
-		return obs;
-
+		return getMultiple(meta, ids, false, null);
 	}
 
 	/**
-	 * Get the <code>ZPersistent</code> object with the specified meta by
-	 * initializing it from a <code>ResultSet</code>.
+	 * Load in this session the objects referenced by the specified objects
+	 * through a reference field (a field holding the id of another object),
+	 * so that the later calls of <code>get(refMeta, id)</code> don't touch
+	 * the database. The distinct non null values of the reference field are
+	 * collected and the referenced objects that are not already loaded are
+	 * retrieved using "select ... in ..." queries (one query per
+	 * <code>ZManager.getMaxIdsPerQuery()</code> ids).
 	 * 
-	 * @param meta
+	 * @param obs
+	 *            the objects holding the references, having the meta of the
+	 *            reference field (e.g. the results of
+	 *            <code>ZSelectQuery.executeUniqueSelect()</code>); the null
+	 *            elements are ignored
+	 * @param refField
+	 *            the reference field
+	 * @param refMeta
+	 *            the meta of the referenced objects
+	 * @return the referenced objects, in the order in which they are first
+	 *         referenced. The objects that were not found in the database
+	 *         are returned as null values.
+	 */
+	public final ZPersistent[] prefetch(Object[] obs, ZStringField refField,
+			ZPersistentMeta refMeta) {
+		checkIfMetaHasIdField(refMeta);
+		LinkedHashSet<String> refIds = new LinkedHashSet<String>();
+		for (Object ob : obs) {
+			if (ob == null) {
+				continue;
+			}
+			String refId = refField.getValue((ZPersistent) ob);
+			if (refId != null) {
+				refIds.add(refId);
+			}
+		}
+		return getMultiple(refMeta, refIds.toArray(new String[refIds.size()]),
+				true, null);
+	}
+
+	/**
+	 * Get the <code>ZPersistent</code> object with the specified meta by
+	 * initializing it from a <code>ResultSet</code>. The hydrator of the
+	 * fields is cached by the meta, so this function can be called for every
+	 * row of a query.
+	 * 
+	 * @param meta
 	 * @param fields
 	 * @param rs
 	 * @param firstFieldPos
@@ -369,6 +1026,27 @@ public class ZSession {
 	public final ZPersistent getAndFetchFromResultSet(ZPersistentMeta meta,
 			ZField[] fields, ResultSet rs, int firstFieldPos)
 			throws SQLException {
+		return getAndFetchFromResultSet(meta.getHydrator(fields), rs,
+				firstFieldPos);
+	}
+
+	/**
+	 * Get the <code>ZPersistent</code> object with the meta of the specified
+	 * hydrator by initializing it from a <code>ResultSet</code>.
+	 * 
+	 * @param hydrator
+	 * @param rs
+	 * @param firstFieldPos
+	 *            the position of the first field in the <code>ResultSet</code>
+	 *            (the id field, if the meta has one). The other fields must
+	 *            follow, in order.
+	 * @return the <code>ZPersistent</code> object initialized from the
+	 *         <code>ResultSet</code>
+	 * @throws SQLException
+	 */
+	final ZPersistent getAndFetchFromResultSet(ZHydrator hydrator,
+			ResultSet rs, int firstFieldPos) throws SQLException {
+		ZPersistentMeta meta = hydrator.getMeta();
 		ZStringField idField = meta.getIdField();
 		ZPersistent ob;
 		int fieldPos = firstFieldPos;
@@ -383,9 +1061,8 @@ public class ZSession {
 			ob = getShallow(meta, id);
 			fieldPos++;
 		}
-		for (ZField field : fields) {
-			setFieldFromSqlValue(ob, field, rs.getObject(fieldPos++));
-		}
+		hydrator.hydrate(ob, rs, fieldPos, true);
+		ZManager.getMetrics().addRowsHydrated(1);
 		return ob;
 	}
 
@@ -395,23 +1072,219 @@ public class ZSession {
 	 * 
 	 */
 	public final void dettachAll() {
-		for (ZPersistent ob : getLoadedObjects().values()) {
+		// dettach() removes the object from the cache
+		for (ZPersistent ob : getLoadedObjects()) {
 			ob.dettach();
 		}
 	}
 
 	/**
-	 * Save all
-	 * <code>ZPersistent<code> objects (not new) attached to this session.
+	 * Evict from this session the loaded objects with the specified meta that
+	 * are not modified (the modified objects are kept until they are saved).
+	 * The evicted objects are dettached from this session.
+	 * 
+	 * @param meta
+	 * @return the number of evicted objects
+	 */
+	public final int evict(ZPersistentMeta meta) {
+		int numEvicted = 0;
+		for (ZPersistent ob : getLoadedObjects(meta)) {
+			if (evictLoadedObject(ob)) {
+				numEvicted++;
+			}
+		}
+		return numEvicted;
+	}
+
+	/**
+	 * Evict from this session the loaded object with the specified meta and
+	 * id, if it is not modified. The evicted object is dettached from this
+	 * session.
+	 * 
+	 * @param meta
+	 * @param id
+	 * @return true if the object was evicted, false if it was not loaded or
+	 *         it is modified
+	 */
+	public final boolean evict(ZPersistentMeta meta, String id) {
+		checkIfMetaHasIdField(meta);
+		ZPersistent ob = getLoadedObject(meta, id);
+		return (ob != null) && evictLoadedObject(ob);
+	}
+
+	/**
+	 * Evict from this session the loaded objects accepted by the specified
+	 * filter that are not modified. The evicted objects are dettached from
+	 * this session.
+	 * 
+	 * @param filter
+	 * @return the number of evicted objects
+	 */
+	public final int evictIf(ZPersistentFilter filter) {
+		int numEvicted = 0;
+		for (ZPersistent ob : getLoadedObjects()) {
+			if (filter.accept(ob) && evictLoadedObject(ob)) {
+				numEvicted++;
+			}
+		}
+		return numEvicted;
+	}
+
+	/**
+	 * Save all the modified <code>ZPersistent<code> objects attached to this
+	 * session, including the new objects created with
+	 * <code>getNew(Class)</code>. Only the objects registered as modified
+	 * are visited, so the cost does not depend on the number of loaded
+	 * objects. The writes are grouped and executed in JDBC batches (as if the
+	 * deferringWrites mode was set), together with any pending writes.
 	 *
 	 */
 	public final void saveAll() {
-		for (ZPersistent ob : getLoadedObjects().values()) {
-			ob.save();
+		if ((m_dirtyObjects == null) || m_dirtyObjects.isEmpty()) {
+			flush();
+			return;
+		}
+		ArrayList<ZPersistent> dirtyObjects = new ArrayList<ZPersistent>(
+				m_dirtyObjects);
+		boolean deferringWrites = m_deferringWrites;
+		m_deferringWrites = true;
+		try {
+			for (ZPersistent ob : dirtyObjects) {
+				if (isAttachedHere(ob)) {
+					ob.save();
+				}
+			}
+		} finally {
+			m_deferringWrites = deferringWrites;
+		}
+		flush();
+		// the saved objects were unregistered when they were written
+		for (ZPersistent ob : dirtyObjects) {
+			if (!isAttachedHere(ob) || (!ob.isNew() && !ob.isModified())) {
+				unregisterDirty(ob);
+			}
+		}
+	}
+
+	/**
+	 * Save asynchronously all the modified <code>ZPersistent<code> objects
+	 * attached to this session, including the new objects.
+	 * 
+	 * @return a <code>CompletableFuture</code> completed when the objects are
+	 *         saved
+	 * @see #saveAll()
+	 * @see #runAsync(Callable)
+	 */
+	public final CompletableFuture<Object> saveAllAsync() {
+		return runAsync(new Callable<Object>() {
+			public Object call() {
+				saveAll();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns the deferringWrites state. If true,
+	 * <code>ZPersistent.save()</code> only adds the object to the pending
+	 * writes of this session, and the pending writes are executed in JDBC
+	 * batches by <code>flush()</code> or <code>commit()</code>.
+	 * 
+	 * @return the deferringWrites state
+	 */
+	public final boolean isDeferringWrites() {
+		return m_deferringWrites;
+	}
+
+	/**
+	 * Set the deferringWrites state. If true, <code>ZPersistent.save()</code>
+	 * only adds the object to the pending writes of this session, and the
+	 * pending writes are executed in JDBC batches by <code>flush()</code> or
+	 * <code>commit()</code>. Note that the queries don't see the pending
+	 * writes until they are flushed. The default value is false.
+	 * 
+	 * @param deferringWrites
+	 */
+	public final void setDeferringWrites(boolean deferringWrites) {
+		m_deferringWrites = deferringWrites;
+	}
+
+	/**
+	 * Execute the pending writes (the objects saved while the deferringWrites
+	 * state was set), in the order in which the objects were first saved.
+	 * The consecutive objects of the same meta and with the same modified
+	 * fields are inserted (or updated) using JDBC batches. If a write fails,
+	 * the writes that were not executed remain pending (they can be discarded
+	 * with <code>rollback()</code>).
+	 */
+	public final void flush() {
+		if ((m_pendingWrites == null) || m_pendingWrites.isEmpty()) {
+			return;
+		}
+		// the objects are removed from the pending writes as they are
+		// written, so the writes that fail (and the ones after them) remain
+		// pending
+		ArrayList<ZPersistent> pendingWrites = new ArrayList<ZPersistent>(
+				m_pendingWrites);
+		for (ZPersistent ob : pendingWrites) {
+			if (!ob.isNew() && !ob.isModified()) {
+				m_pendingWrites.remove(ob);
+			}
+		}
+		// the consecutive writes using the same statement are grouped in a
+		// batch, so the writes are executed in the order of the save() calls
+		// (the rows referenced by foreign keys are written first)
+		StatementKey batchKey = null;
+		ArrayList<ZPersistent> batch = new ArrayList<ZPersistent>();
+		for (ZPersistent ob : pendingWrites) {
+			StatementKey key;
+			if (ob.isNew()) {
+				key = getInsertKey(ob);
+			} else if (ob.isModified()) {
+				key = getUpdateKey(ob);
+				if (isUsingSqlExprForUpdate(key.fields)) {
+					writeBatch(batchKey, batch);
+					batchKey = null;
+					saveExistingToDb(ob);
+					continue;
+				}
+			} else {
+				continue;
+			}
+			if (!key.equals(batchKey)) {
+				writeBatch(batchKey, batch);
+				batchKey = key;
+			}
+			batch.add(ob);
+		}
+		writeBatch(batchKey, batch);
+	}
+
+	/**
+	 * Write the specified pending objects to database using the insert (or
+	 * update) statement specified by the key, and clear the list.
+	 * 
+	 * @param key
+	 * @param obs
+	 */
+	private void writeBatch(StatementKey key, ArrayList<ZPersistent> obs) {
+		if (obs.isEmpty()) {
+			return;
 		}
+		if (key.kind == STATEMENT_UPDATE) {
+			saveExistingToDb(key, obs);
+		} else {
+			saveNewToDb(key, obs);
+		}
+		obs.clear();
 	}
 
+	/**
+	 * Flush the pending writes and commit the current transaction of the SQL
+	 * connection (if the connection is not in auto commit mode).
+	 */
 	public final void commit() {
+		flush();
 		if (m_sqlConn != null) {
 			try {
 				if (!m_sqlConn.getAutoCommit()) {
@@ -421,6 +1294,23 @@ public class ZSession {
 				throw new ZormException("Error making a commit to SQL Conn", e);
 			}
 		}
+		// the objects might have been cached again by other sessions before
+		// the commit
+		if (m_writtenObjects != null) {
+			for (Map.Entry<ZPersistentMeta, HashSet<String>> entry : m_writtenObjects
+					.entrySet()) {
+				for (String id : entry.getValue()) {
+					ZManager.getSharedCache().invalidate(entry.getKey(), id);
+				}
+			}
+			m_writtenObjects = null;
+		}
+		if (m_writtenTables != null) {
+			for (String table : m_writtenTables) {
+				ZManager.getQueryCache().invalidate(table);
+			}
+			m_writtenTables = null;
+		}
 	}
 
 	public final void saveAllAndCommit() {
@@ -428,7 +1318,15 @@ public class ZSession {
 		commit();
 	}
 
+	/**
+	 * Discard the pending writes and rollback the current transaction of the
+	 * SQL connection (if the connection is not in auto commit mode). The
+	 * objects whose writes are discarded keep their modified state.
+	 */
 	public final void rollback() {
+		if (m_pendingWrites != null) {
+			m_pendingWrites.clear();
+		}
 		if (m_sqlConn != null) {
 			try {
 				if (!m_sqlConn.getAutoCommit()) {
@@ -439,6 +1337,8 @@ public class ZSession {
 						e);
 			}
 		}
+		m_writtenObjects = null;
+		m_writtenTables = null;
 	}
 
 	/**
@@ -452,36 +1352,86 @@ public class ZSession {
 
 	/**
 	 * Close the session by releasing SQL resources and removing the session
-	 * from the <code>ZManager</code> thread local pool.
+	 * from the <code>ZManager</code> thread local pool. The asynchronous
+	 * operations not yet started are cancelled, and the running one is waited
+	 * for before the SQL resources are released. If the SQL connection was
+	 * borrowed from a <code>ZConnectionPool</code>, it is returned to the
+	 * pool instead of being closed.
 	 */
 	public final void close() {
 		if (isClosed()) {
 			return;
 		}
-		// close the SQL statement
-		if (m_sqlStatement != null) {
-			try {
+		m_closed = true;
+		ZManager.getMetrics().sessionClosed();
+		SerialExecutor asyncTasks;
+		synchronized (this) {
+			asyncTasks = m_asyncTasks;
+		}
+		if (asyncTasks != null) {
+			// the running operation might still use the SQL connection
+			asyncTasks.shutdown();
+		}
+		ZormException error = null;
+		try {
+			// close the prepared statements
+			if (m_preparedQueries != null) {
+				for (PreparedQuery query : m_preparedQueries.values()) {
+					error = closeStatement(query.stmt, error);
+				}
+				m_preparedQueries = null;
+			}
+			if (m_queryStatements != null) {
+				for (PreparedStatement stmt : m_queryStatements.values()) {
+					error = closeStatement(stmt, error);
+				}
+				m_queryStatements = null;
+			}
+			// close the SQL statement
+			if (m_sqlStatement != null) {
 				// [MEMO] here, m_sqlStatement.isClosed() should be used, but
 				// isClosed() gives an AbstractMethodError (with mysql driver)
-				m_sqlStatement.close();
-			} catch (Exception e) {
-				throw new ZormException("Error closing the SQL Statement", e);
-			} finally {
+				error = closeStatement(m_sqlStatement, error);
 				m_sqlStatement = null;
 			}
-		}
-		// close the SQL connection
-		if (m_sqlConn != null) {
-			try {
-				if (!m_sqlConn.isClosed()) {
-					m_sqlConn.close();
+		} finally {
+			// close the SQL connection (or return it to the pool)
+			if (m_sqlConn != null) {
+				try {
+					releaseSqlConnection(m_connectionPool, m_sqlConn);
+				} catch (Exception e) {
+					throw new ZormException(
+							"Error closing the SQL Connection", e);
+				} finally {
+					m_sqlConn = null;
+					m_connectionPool = null;
 				}
-			} catch (Exception e) {
-				throw new ZormException("Error closing the SQL Connection", e);
-			} finally {
-				m_sqlConn = null;
 			}
 		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Close the specified SQL statement. If closing it fails and no error was
+	 * specified, the returned error holds the failure.
+	 * 
+	 * @param stmt
+	 * @param error
+	 *            the error of a previous statement (null if none)
+	 * @return the first error
+	 */
+	private static ZormException closeStatement(Statement stmt,
+			ZormException error) {
+		try {
+			stmt.close();
+		} catch (Exception e) {
+			if (error == null) {
+				error = new ZormException("Error closing the SQL Statement", e);
+			}
+		}
+		return error;
 	}
 
 	/**
@@ -498,6 +1448,59 @@ public class ZSession {
 		}
 	}
 
+	/**
+	 * Record the execution of the specified query. This method is called
+	 * after <code>logQuery(String)</code>, when the query was executed and
+	 * its rows were read.
+	 * 
+	 * @see #queryExecuted(String, Object[], long, long, int)
+	 * 
+	 * @param query
+	 * @param startTime
+	 * @param fetchStartTime
+	 * @param numRows
+	 */
+	public final void queryExecuted(String query, long startTime,
+			long fetchStartTime, int numRows) {
+		queryExecuted(query, null, startTime, fetchStartTime, numRows);
+	}
+
+	/**
+	 * Record the execution of the specified query: the execution and fetch
+	 * time is added to the metrics of the <code>ZManager</code>, and the
+	 * query is logged (as a warning) if this time exceeds
+	 * <code>ZManager.getSlowQueryThreshold()</code>. If
+	 * <code>ZManager.isExplainingSlowQueries()</code> is true, the plan of a
+	 * slow select query is also logged (at most once per
+	 * <code>ZManager.getSlowQueryExplainInterval()</code>); the plan is read
+	 * asynchronously, using another SQL connection.
+	 * 
+	 * @param query
+	 * @param parameters
+	 *            the values of the parameters of the query, used to explain
+	 *            it (if null, only the queries without parameters are
+	 *            explained)
+	 * @param startTime
+	 *            the value of <code>System.nanoTime()</code> before the query
+	 *            was executed
+	 * @param fetchStartTime
+	 *            the value of <code>System.nanoTime()</code> after the query
+	 *            was executed, before its rows were read
+	 * @param numRows
+	 *            the number of rows read or affected by the query
+	 */
+	public final void queryExecuted(String query, Object[] parameters,
+			long startTime, long fetchStartTime, int numRows) {
+		long endTime = System.nanoTime();
+		ZManager.getMetrics().addQuery(query, endTime - startTime);
+		long slowQueryThreshold = ZManager.getSlowQueryThreshold();
+		if ((slowQueryThreshold > 0)
+				&& (endTime - startTime >= slowQueryThreshold * 1000000L)) {
+			logSlowQuery(query, parameters, fetchStartTime - startTime,
+					endTime - fetchStartTime, numRows);
+		}
+	}
+
 	/**
 	 * Fetch the specified field from the database. If the field has autoFetched
 	 * flag set, than all the autoFetched fields that were not inizialied are
@@ -509,11 +1512,19 @@ public class ZSession {
 	 */
 	final void fetchFieldInternal(ZPersistent ob, ZField field) {
 		if (isAutoFetchingFieldsOnRead()) {
+			ZManager.getMetrics().addLazyFetch();
+			ZField[] fields;
 			if (field.isAutoFetched()) {
-				fetchFromDb(ob, getNotInitializedFields(ob, ob.getMeta()
-						.getAutoFetchedFields()));
+				fields = getNotInitializedFields(ob, ob.getMeta()
+						.getAutoFetchedFields());
 			} else {
-				fetchFromDb(ob, new ZField[] { field });
+				fields = new ZField[] { field };
+			}
+			Map<String, ZPersistent> obs = getSiblingsToFetch(ob, field);
+			if (obs == null) {
+				fetchFromDb(ob, fields);
+			} else if (!fetchFromDb(ob.getMeta(), obs, fields).contains(ob)) {
+				throw new ZormPersistentObjectNotFoundException(ob);
 			}
 		} else {
 			throw new ZormException("Cannot automatically fetch field: "
@@ -521,6 +1532,129 @@ public class ZSession {
 		}
 	}
 
+	/**
+	 * Fetch the non-initialized specified fields of the specified objects
+	 * from the database, using "select ... in ..." queries (one query per
+	 * <code>ZManager.getMaxIdsPerQuery()</code> objects of the same meta).
+	 * Only the fields belonging to the meta of an object are fetched for it,
+	 * and the new objects are ignored.
+	 * 
+	 * @param obs
+	 *            the objects (the null elements are ignored)
+	 * @param fields
+	 */
+	public final void fetch(ZPersistent[] obs, ZField[] fields) {
+		// the objects to be fetched, by meta and id
+		LinkedHashMap<ZPersistentMeta, LinkedHashMap<String, ZPersistent>> obsByMeta = new LinkedHashMap<ZPersistentMeta, LinkedHashMap<String, ZPersistent>>();
+		for (ZPersistent ob : obs) {
+			if ((ob == null) || ob.isNew()) {
+				continue;
+			}
+			ZPersistentMeta meta = ob.getMeta();
+			checkIfMetaHasIdField(meta);
+			for (ZField field : fields) {
+				if ((field.getPersistentMeta() == meta)
+						&& !ob.isFieldInitialized(field)) {
+					LinkedHashMap<String, ZPersistent> metaObs = obsByMeta
+							.get(meta);
+					if (metaObs == null) {
+						metaObs = new LinkedHashMap<String, ZPersistent>();
+						obsByMeta.put(meta, metaObs);
+					}
+					metaObs.put(ob.getId(), ob);
+					break;
+				}
+			}
+		}
+		for (Map.Entry<ZPersistentMeta, LinkedHashMap<String, ZPersistent>> entry : obsByMeta
+				.entrySet()) {
+			ZPersistentMeta meta = entry.getKey();
+			ArrayList<ZField> metaFields = new ArrayList<ZField>();
+			for (ZField field : fields) {
+				if (field.getPersistentMeta() == meta) {
+					metaFields.add(field);
+				}
+			}
+			fetchFromDb(meta, entry.getValue(), metaFields
+					.toArray(new ZField[metaFields.size()]));
+		}
+	}
+
+	/**
+	 * Returns true if the results of the queries reading the specified tables
+	 * can be read from (and added to) the query cache: none of the tables was
+	 * written in the current transaction. This method is used by
+	 * <code>ZCompiledQuery</code>.
+	 * 
+	 * @param tableNames
+	 * @return true if the query cache can be used for the tables
+	 */
+	public final boolean isUsingQueryCache(String[] tableNames) {
+		if (m_writtenTables == null) {
+			return true;
+		}
+		for (String tableName : tableNames) {
+			if (m_writtenTables.contains(tableName.toLowerCase(Locale.ENGLISH))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remember that the specified objects were loaded together (e.g. by a
+	 * query), so that an uninitialized field automatically fetched for one of
+	 * them is fetched at once for up to
+	 * <code>ZManager.getLazyFetchBatchSize()</code> of them. The objects are
+	 * split in consecutive groups of that size, and each object references
+	 * only its group, so the objects of the other groups can be garbage
+	 * collected. This method is used by <code>ZCompiledQuery</code>.
+	 * 
+	 * @param obs
+	 *            the objects, having the same meta (the null elements are
+	 *            ignored)
+	 */
+	public final void setLoadedTogether(Object[] obs) {
+		int batchSize = ZManager.getLazyFetchBatchSize();
+		if (batchSize < 2) {
+			return;
+		}
+		int n = 0;
+		for (Object ob : obs) {
+			if (ob != null) {
+				n++;
+			}
+		}
+		if (n < 2) {
+			return;
+		}
+		ZPersistent[] siblings = null;
+		int numSiblings = 0;
+		for (Object ob : obs) {
+			if (ob == null) {
+				continue;
+			}
+			if (siblings == null) {
+				if (((ZPersistent) ob).getMeta().getIdField() == null) {
+					return;
+				}
+				// the last group may be smaller
+				siblings = new ZPersistent[Math.min(batchSize, n)];
+				numSiblings = 0;
+			}
+			siblings[numSiblings++] = (ZPersistent) ob;
+			if (numSiblings == siblings.length) {
+				if (numSiblings > 1) {
+					for (ZPersistent sibling : siblings) {
+						sibling.setSiblings(siblings);
+					}
+				}
+				n -= numSiblings;
+				siblings = null;
+			}
+		}
+	}
+
 	/**
 	 * Fetch the non-initialized specified fields from the database.
 	 * 
@@ -547,13 +1681,73 @@ public class ZSession {
 	 * @param ob
 	 */
 	final void addToCache(ZPersistent ob) {
-		String key = getLoadedObjectsKey(ob.getMeta(), ob.getId());
-		ZPersistent oldOb = getLoadedObjects().put(key, ob);
+		ZPersistent oldOb = putLoadedObject(ob);
 		if (oldOb != null) {
 			oldOb.setSessionBackdoor(null);
 		}
 	}
 
+	/**
+	 * Register the specified object as modified, to be saved by
+	 * <code>saveAll()</code>. This method is used by
+	 * <code>ZPersistent</code> when a field is modified.
+	 * 
+	 * @param ob
+	 */
+	final void addDirtyObject(ZPersistent ob) {
+		if (m_dirtyObjects == null) {
+			m_dirtyObjects = new LinkedHashSet<ZPersistent>();
+		}
+		m_dirtyObjects.add(ob);
+	}
+
+	/**
+	 * Remove the specified object from the objects registered as modified.
+	 * This method is used by <code>ZPersistent.dettach()</code>.
+	 * 
+	 * @param ob
+	 */
+	final void removeDirtyObject(ZPersistent ob) {
+		if (m_dirtyObjects != null) {
+			m_dirtyObjects.remove(ob);
+		}
+	}
+
+	/**
+	 * Mark the specified object as saved: its fields are not modified anymore
+	 * and it is removed from the objects registered as modified.
+	 * 
+	 * @param ob
+	 */
+	private void setSaved(ZPersistent ob) {
+		ob.setModified(false);
+		setWritten(ob);
+	}
+
+	/**
+	 * Remove the specified object, which was written to the database, from
+	 * the pending writes and from the objects registered as modified.
+	 * 
+	 * @param ob
+	 */
+	private void setWritten(ZPersistent ob) {
+		if (m_pendingWrites != null) {
+			m_pendingWrites.remove(ob);
+		}
+		unregisterDirty(ob);
+	}
+
+	/**
+	 * Remove the specified object from the objects registered as modified,
+	 * so that it is registered again when one of its fields is modified.
+	 * 
+	 * @param ob
+	 */
+	private void unregisterDirty(ZPersistent ob) {
+		removeDirtyObject(ob);
+		ob.setDirtyRegistered(false);
+	}
+
 	/**
 	 * Remove the specified <code>ZPersistent</code> object from cache. This
 	 * method is used by <code>ZPersistent.dettach()</code>.
@@ -565,8 +1759,7 @@ public class ZSession {
 		if (meta.getIdField() == null) {
 			return;
 		}
-		getLoadedObjects().remove(getLoadedObjectsKey(meta, ob.getId()));
-
+		removeLoadedObject(meta, ob.getId());
 	}
 
 	/**
@@ -576,7 +1769,11 @@ public class ZSession {
 	 * @param ob
 	 */
 	final void saveInternal(ZPersistent ob) {
-		if (ob.isNew()) {
+		if (m_deferringWrites) {
+			if (ob.isNew() || ob.isModified()) {
+				getPendingWrites().add(ob);
+			}
+		} else if (ob.isNew()) {
 			saveNewToDb(ob);
 		} else {
 			saveExistingToDb(ob);
@@ -595,11 +1792,18 @@ public class ZSession {
 	 */
 	final boolean deleteInternal(ZPersistentMeta meta, String id) {
 		checkIfMetaHasIdField(meta);
-		String query = constructDeleteQuery(meta, id);
-		logQuery(query);
-		Statement stmt = getSqlStatement();
+		// keep the order of the writes
+		flush();
+		PreparedQuery query = getPreparedQuery(new StatementKey(
+				STATEMENT_DELETE, meta, NO_FIELDS, 0));
+		logQuery(query.sql);
 		try {
-			int rowsAffected = stmt.executeUpdate(query);
+			PreparedStatement stmt = query.stmt;
+			meta.getIdField().setSqlParameter(stmt, 1, id);
+			long startTime = System.nanoTime();
+			int rowsAffected = stmt.executeUpdate();
+			queryExecuted(query.sql, startTime, System.nanoTime(),
+					rowsAffected);
 			if (rowsAffected == 0) {
 				return false;
 			} else if (rowsAffected > 1) {
@@ -614,50 +1818,337 @@ public class ZSession {
 					"Error trying to delete persistent object with id field: "
 							+ meta.getIdField() + " from SQL database", e);
 		}
-		getLoadedObjects().remove(getLoadedObjectsKey(meta, id));
+		setDeleted(meta, id);
+		invalidateQueryCache(meta);
 		return true;
 	}
 
 	/**
-	 * Checks that the session is not closed. If it is closed, an exception is
-	 * throwned.
+	 * Delete the persistent objects with the specified meta and ids from the
+	 * database, using "delete ... in ..." queries. The number of ids in a
+	 * query is limited by <code>ZManager.getMaxIdsPerQuery()</code>. The
+	 * deleted objects are dettached from the session. If only some of the
+	 * objects of a query exist, the ones that didn't exist cannot be told
+	 * apart, so a <code>ZormException</code> is throwned (the existing
+	 * objects are deleted and can be restored by rolling back the
+	 * transaction).
+	 * 
+	 * @param meta
+	 * @param ids
+	 * @return an array with the results for each of the specified ids: true,
+	 *         if the object was deleted from the database, false if it didn't
+	 *         exist (or the id was null or specified more than once).
 	 */
-	private void checkSessionNotClosed() {
-		if (isClosed()) {
-			throw new ZormException("Session is closed.");
+	public final boolean[] delete(ZPersistentMeta meta, String[] ids) {
+		checkIfMetaHasIdField(meta);
+		// keep the order of the writes
+		flush();
+		LinkedHashSet<String> idsToDelete = new LinkedHashSet<String>(Arrays
+				.asList(ids));
+		idsToDelete.remove(null);
+		Set<String> deletedIds = deleteFromDb(meta, idsToDelete);
+		boolean[] deleted = new boolean[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			deleted[i] = deletedIds.remove(ids[i]);
 		}
+		return deleted;
 	}
 
 	/**
-	 * Checks if the specified <code>ZPersistentMeta</code> object has an id
-	 * field. If not, a <code>ZormException</code> is throwned.
+	 * Delete the specified persistent objects from the database, using
+	 * "delete ... in ..." queries (one or more for each meta), as
+	 * <code>delete(ZPersistentMeta, String[])</code> does. The objects must
+	 * be attached to this session and must not be new; the null elements are
+	 * skipped. Note that <code>ZPersistent.delete()</code> is not called for
+	 * the objects.
 	 * 
-	 * @param meta
+	 * @param obs
+	 * @return an array with the results for each of the specified objects:
+	 *         true, if the object was deleted from the database, false if it
+	 *         didn't exist (or the element was null or the object was
+	 *         specified more than once).
 	 */
-	private static void checkIfMetaHasIdField(ZPersistentMeta meta) {
-		if (meta.getIdField() == null) {
-			throw new ZormException(meta.toString()
-					+ " meta does not have an id field specified.");
+	public final boolean[] delete(ZPersistent[] obs) {
+		// group the ids by meta
+		LinkedHashMap<ZPersistentMeta, LinkedHashSet<String>> idsByMeta;
+		idsByMeta = new LinkedHashMap<ZPersistentMeta, LinkedHashSet<String>>();
+		for (ZPersistent ob : obs) {
+			if (ob == null) {
+				continue;
+			}
+			if (ob.getSession() != this) {
+				throw new ZormException("Persistent object: " + ob
+						+ " must be attached to this session to be deleted.");
+			}
+			if (ob.isNew()) {
+				throw new ZormException("Persistent object: " + ob
+						+ " must not be new to be deleted.");
+			}
+			ZPersistentMeta meta = ob.getMeta();
+			checkIfMetaHasIdField(meta);
+			LinkedHashSet<String> ids = idsByMeta.get(meta);
+			if (ids == null) {
+				ids = new LinkedHashSet<String>();
+				idsByMeta.put(meta, ids);
+			}
+			ids.add(ob.getId());
+		}
+		// keep the order of the writes
+		flush();
+		HashMap<ZPersistentMeta, Set<String>> deletedIdsByMeta;
+		deletedIdsByMeta = new HashMap<ZPersistentMeta, Set<String>>();
+		for (Map.Entry<ZPersistentMeta, LinkedHashSet<String>> entry : idsByMeta
+				.entrySet()) {
+			deletedIdsByMeta.put(entry.getKey(), deleteFromDb(entry.getKey(),
+					entry.getValue()));
+		}
+		boolean[] deleted = new boolean[obs.length];
+		for (int i = 0; i < obs.length; i++) {
+			deleted[i] = (obs[i] != null)
+					&& deletedIdsByMeta.get(obs[i].getMeta()).remove(
+							obs[i].getId());
 		}
+		return deleted;
 	}
 
 	/**
-	 * Contructs the SQL select query using the specified table name, id and
-	 * fields.
+	 * Delete the persistent objects with the specified meta and ids from the
+	 * database, using one "delete ... in ..." query for each chunk of at most
+	 * <code>ZManager.getMaxIdsPerQuery()</code> ids. The number of rows
+	 * deleted by a query tells the result of all its ids only if it is 0 (no
+	 * object existed) or the number of ids (all the objects existed); for any
+	 * other number a <code>ZormException</code> is throwned, after the objects
+	 * of the chunk are dettached (their rows don't exist anymore; the
+	 * transaction can be rolled back to restore them). The deleted objects are
+	 * dettached from the session.
 	 * 
-	 * @param tableName
-	 * @param id
-	 * @param fields
-	 * @return the SQL select query
+	 * @param meta
+	 * @param ids
+	 *            the distinct, non-null ids
+	 * @return the ids of the objects that were deleted
 	 */
-	private static String constructSelectQuery(ZPersistentMeta meta, String id,
-			ZField[] fields) {
-		StringBuilder query = new StringBuilder(SELECT_BUFFER_CAPACITY);
-		query.append("SELECT ");
-		int i = 0;
-		for (ZField field : fields) {
-			if (i++ > 0) {
-				query.append(", ");
+	private Set<String> deleteFromDb(ZPersistentMeta meta,
+			Collection<String> ids) {
+		Set<String> deletedIds = new HashSet<String>();
+		ZStringField idField = meta.getIdField();
+		int maxIds = ZManager.getMaxIdsPerQuery();
+		Iterator<String> idIterator = ids.iterator();
+		ArrayList<String> chunk = new ArrayList<String>(Math.min(maxIds, ids
+				.size()));
+		while (idIterator.hasNext()) {
+			chunk.clear();
+			while (idIterator.hasNext() && chunk.size() < maxIds) {
+				chunk.add(idIterator.next());
+			}
+			int numIds = getInListSize(chunk.size());
+			PreparedQuery query = getPreparedQuery(new StatementKey(
+					STATEMENT_DELETE_IN, meta, NO_FIELDS, numIds));
+			logQuery(query.sql);
+			int rowsAffected;
+			try {
+				PreparedStatement stmt = query.stmt;
+				for (int i = 0; i < numIds; i++) {
+					// the list is padded by repeating the last id
+					String id = chunk.get(Math.min(i, chunk.size() - 1));
+					idField.setSqlParameter(stmt, i + 1, id);
+				}
+				long startTime = System.nanoTime();
+				rowsAffected = stmt.executeUpdate();
+				queryExecuted(query.sql, startTime, System.nanoTime(),
+						rowsAffected);
+			} catch (Exception e) {
+				throw new ZormException("Error trying to delete "
+						+ chunk.size() + " persistent objects: " + meta
+						+ " from SQL database", e);
+			}
+			if (rowsAffected == 0) {
+				continue;
+			}
+			invalidateQueryCache(meta);
+			// none of the rows exists anymore
+			for (String id : chunk) {
+				setDeleted(meta, id);
+			}
+			if (rowsAffected > chunk.size()) {
+				throw new ZormException(
+						rowsAffected
+								+ " were affected while trying to delete "
+								+ chunk.size()
+								+ " persistent objects with id field: "
+								+ idField
+								+ ". This means that the id field specified is not a primary key.");
+			} else if (rowsAffected < chunk.size()) {
+				throw new ZormException("Only " + rowsAffected + " of "
+						+ chunk.size() + " persistent objects: " + meta
+						+ " were deleted from SQL database, so the ones that"
+						+ " didn't exist are not known: " + chunk + '.');
+			}
+			deletedIds.addAll(chunk);
+		}
+		return deletedIds;
+	}
+
+	/**
+	 * Update the session after the object with the specified meta and id was
+	 * deleted from the database: the loaded object (if any) is removed from
+	 * the pending writes and from the objects registered as modified, and is
+	 * dettached from the session.
+	 * 
+	 * @param meta
+	 * @param id
+	 */
+	private void setDeleted(ZPersistentMeta meta, String id) {
+		ZPersistent ob = getLoadedObject(meta, id);
+		removeLoadedObject(meta, id);
+		if (ob != null) {
+			setWritten(ob);
+			ob.setSessionBackdoor(null);
+		}
+		invalidateSharedCache(meta, id);
+	}
+
+	/**
+	 * Returns true if the shared cache can be used for the object with the
+	 * specified meta and id: the meta is cached and the object was not written
+	 * in the current transaction.
+	 * 
+	 * @param meta
+	 * @param id
+	 * @return true if the shared cache can be used for the object
+	 */
+	private boolean isUsingSharedCache(ZPersistentMeta meta, String id) {
+		if (meta.getSharedCacheSize() <= 0) {
+			return false;
+		}
+		if (m_writtenObjects == null) {
+			return true;
+		}
+		HashSet<String> ids = m_writtenObjects.get(meta);
+		return (ids == null) || !ids.contains(id);
+	}
+
+	/**
+	 * Remove the written object with the specified meta and id from the shared
+	 * cache. If the SQL connection is not in auto commit mode, the object is
+	 * removed again from the shared cache when the transaction is committed.
+	 * 
+	 * @param meta
+	 * @param id
+	 */
+	private void invalidateSharedCache(ZPersistentMeta meta, String id) {
+		if (meta.getSharedCacheSize() <= 0) {
+			return;
+		}
+		ZManager.getSharedCache().invalidate(meta, id);
+		try {
+			if (getSqlConnection().getAutoCommit()) {
+				return;
+			}
+		} catch (SQLException e) {
+			throw new ZormException(
+					"Error reading the autoCommit mode of SQL Conn", e);
+		}
+		if (m_writtenObjects == null) {
+			m_writtenObjects = new HashMap<ZPersistentMeta, HashSet<String>>();
+		}
+		HashSet<String> ids = m_writtenObjects.get(meta);
+		if (ids == null) {
+			ids = new HashSet<String>();
+			m_writtenObjects.put(meta, ids);
+		}
+		ids.add(id);
+	}
+
+	/**
+	 * Remove the results of the queries reading the table of the specified
+	 * meta from the query cache. If the SQL connection is not in auto commit
+	 * mode, the results are removed again from the query cache when the
+	 * transaction is committed.
+	 * 
+	 * @param meta
+	 */
+	private void invalidateQueryCache(ZPersistentMeta meta) {
+		String table = meta.getTableName().toLowerCase(Locale.ENGLISH);
+		ZManager.getQueryCache().invalidate(table);
+		try {
+			if (getSqlConnection().getAutoCommit()) {
+				return;
+			}
+		} catch (SQLException e) {
+			throw new ZormException(
+					"Error reading the autoCommit mode of SQL Conn", e);
+		}
+		if (m_writtenTables == null) {
+			m_writtenTables = new HashSet<String>();
+		}
+		m_writtenTables.add(table);
+	}
+
+	/**
+	 * Checks that the session is not closed. If it is closed, an exception is
+	 * throwned.
+	 */
+	private void checkSessionNotClosed() {
+		if (isClosed()) {
+			throw new ZormException("Session is closed.");
+		}
+	}
+
+	/**
+	 * Checks if the specified <code>ZPersistentMeta</code> object has an id
+	 * field. If not, a <code>ZormException</code> is throwned.
+	 * 
+	 * @param meta
+	 */
+	private static void checkIfMetaHasIdField(ZPersistentMeta meta) {
+		if (meta.getIdField() == null) {
+			throw new ZormException(meta.toString()
+					+ " meta does not have an id field specified.");
+		}
+	}
+
+	/**
+	 * Contructs the SQL query corresponding to the specified statement key.
+	 * 
+	 * @param key
+	 * @return the SQL query
+	 */
+	private static String constructQuery(StatementKey key) {
+		switch (key.kind) {
+		case STATEMENT_SELECT:
+			return constructSelectQuery(key.meta, key.fields);
+		case STATEMENT_SELECT_IN:
+			return constructSelectInQuery(key.meta, key.numIds, key.fields);
+		case STATEMENT_INSERT:
+		case STATEMENT_INSERT_READING_ID:
+			return constructInsertQuery(key.meta, key.fields);
+		case STATEMENT_UPDATE:
+			return constructUpdateQuery(key.meta, key.fields, null);
+		case STATEMENT_DELETE:
+			return constructDeleteQuery(key.meta);
+		case STATEMENT_DELETE_IN:
+			return constructDeleteInQuery(key.meta, key.numIds);
+		default:
+			throw new AssertionError("Unknown statement kind: " + key.kind);
+		}
+	}
+
+	/**
+	 * Contructs the parameterized SQL select query using the specified meta
+	 * and fields. The id is the only parameter.
+	 * 
+	 * @param meta
+	 * @param fields
+	 * @return the SQL select query
+	 */
+	private static String constructSelectQuery(ZPersistentMeta meta,
+			ZField[] fields) {
+		StringBuilder query = new StringBuilder(SELECT_BUFFER_CAPACITY);
+		query.append("SELECT ");
+		int i = 0;
+		for (ZField field : fields) {
+			if (i++ > 0) {
+				query.append(", ");
 			}
 			query.append(field.getName());
 		}
@@ -665,59 +2156,93 @@ public class ZSession {
 		query.append(meta.getTableName());
 		query.append(" WHERE ");
 		query.append(meta.getIdField().getName());
-		query.append(" = ");
-		EncodeUtil.writeSqlEncoded(query, id);
+		query.append(" = ?");
 		return query.toString();
 	}
 
 	/**
-	 * Contruct the SQL insert query using the specified
-	 * <code>ZPersistent</code> object.
+	 * Contructs the parameterized SQL select query using the specified meta,
+	 * number of ids and fields. The id field is the first selected column and
+	 * the ids are the parameters.
+	 * 
+	 * @param meta
+	 * @param numIds
+	 * @param fields
+	 * @return the SQL select query
+	 */
+	private static String constructSelectInQuery(ZPersistentMeta meta,
+			int numIds, ZField[] fields) {
+		StringBuilder query = new StringBuilder(SELECT_BUFFER_CAPACITY
+				+ numIds * 3);
+		String idFieldName = meta.getIdField().getName();
+		query.append("SELECT ");
+		query.append(idFieldName);
+		for (ZField field : fields) {
+			query.append(", ");
+			query.append(field.getName());
+		}
+		query.append(" FROM ");
+		query.append(meta.getTableName());
+		query.append(" WHERE ");
+		query.append(idFieldName);
+		query.append(" IN (");
+		for (int i = 0; i < numIds; i++) {
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append('?');
+		}
+		query.append(')');
+		return query.toString();
+	}
+
+	/**
+	 * Contruct the parameterized SQL insert query using the specified meta
+	 * and fields. The values of the fields are the parameters.
 	 * 
+	 * @param meta
 	 * @param fields
 	 * @return the SQL insert query
 	 */
-	private static String constructInsertQuery(ZPersistent ob) {
-		ZField[] fields = getModifiedFields(ob);
+	private static String constructInsertQuery(ZPersistentMeta meta,
+			ZField[] fields) {
 		StringBuilder query = new StringBuilder(UPDATE_BUFFER_CAPACITY);
 		query.append("INSERT INTO ");
-		query.append(ob.getMeta().getTableName());
+		query.append(meta.getTableName());
 		query.append(" (");
-		if (fields.length > 0) {
-			int i = 0;
-			for (ZField field : fields) {
-				if (i++ > 0) {
-					query.append(", ");
-				}
-				query.append(field.getName());
+		int i = 0;
+		for (ZField field : fields) {
+			if (i++ > 0) {
+				query.append(", ");
 			}
+			query.append(field.getName());
 		}
 		query.append(") VALUES (");
-		if (fields.length > 0) {
-			int i = 0;
-			for (ZField field : fields) {
-				if (i++ > 0) {
-					query.append(", ");
-				}
-				Object value = ob.getFieldValue(field);
-				EncodeUtil.writeSqlEncoded(query, field.toSqlValue(value));
+		for (i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				query.append(", ");
 			}
+			query.append('?');
 		}
 		query.append(')');
 		return query.toString();
 	}
 
 	/**
-	 * Contruct the SQL update query using the specified
-	 * <code>ZPersistent</code> object.
+	 * Contruct the parameterized SQL update query using the specified meta
+	 * and fields. The values of the fields are the parameters, followed by the
+	 * id. If a <code>ZPersistent</code> object is specified, than the fields
+	 * using SQL expressions for update are written as SQL expressions (and
+	 * are not parameters).
 	 * 
+	 * @param meta
 	 * @param fields
-	 * @return the SQL insert query
+	 * @param exprOb
+	 *            the object used for the SQL expressions (can be null)
+	 * @return the SQL update query
 	 */
-	private static String constructUpdateQuery(ZPersistent ob) {
-		ZPersistentMeta meta = ob.getMeta();
-		ZStringField idField = meta.getIdField();
-		ZField[] fields = getModifiedFields(ob);
+	private static String constructUpdateQuery(ZPersistentMeta meta,
+			ZField[] fields, ZPersistent exprOb) {
 		StringBuilder query = new StringBuilder(UPDATE_BUFFER_CAPACITY);
 		query.append("UPDATE ");
 		query.append(meta.getTableName());
@@ -729,39 +2254,108 @@ public class ZSession {
 			}
 			query.append(field.getName());
 			query.append(" = ");
-			Object value = ob.getFieldValue(field);
-			if (field.isUsingSqlExprForUpdate()) {
-				query.append(field.toSqlExpr(value));
+			if ((exprOb != null) && field.isUsingSqlExprForUpdate()) {
+				query.append(field.toSqlExpr(exprOb.getFieldValue(field)));
 			} else {
-				EncodeUtil.writeSqlEncoded(query, field.toSqlValue(value));
+				query.append('?');
 			}
 		}
 		query.append(" WHERE ");
-		query.append(idField.getName());
-		query.append(" = ");
-		EncodeUtil.writeSqlEncoded(query, idField.toSqlValue(ob
-				.getFieldValue(idField)));
+		query.append(meta.getIdField().getName());
+		query.append(" = ?");
 		return query.toString();
 	}
 
 	/**
-	 * Contructs the SQL delete query using the specified table name and id.
+	 * Contructs the parameterized SQL delete query using the specified meta.
+	 * The id is the only parameter.
 	 * 
-	 * @param tableName
-	 * @param id
+	 * @param meta
 	 * @return the SQL delete query
 	 */
-	private static String constructDeleteQuery(ZPersistentMeta meta, String id) {
+	private static String constructDeleteQuery(ZPersistentMeta meta) {
 		StringBuilder query = new StringBuilder(DELETE_BUFFER_CAPACITY);
 		query.append("DELETE FROM ");
 		query.append(meta.getTableName());
 		query.append(" WHERE ");
 		query.append(meta.getIdField().getName());
-		query.append(" = ");
-		EncodeUtil.writeSqlEncoded(query, id);
+		query.append(" = ?");
 		return query.toString();
 	}
 
+	/**
+	 * Contructs the parameterized SQL delete query using the specified meta
+	 * and number of ids. The ids are the parameters.
+	 * 
+	 * @param meta
+	 * @param numIds
+	 * @return the SQL delete query
+	 */
+	private static String constructDeleteInQuery(ZPersistentMeta meta,
+			int numIds) {
+		StringBuilder query = new StringBuilder(DELETE_BUFFER_CAPACITY
+				+ numIds * 3);
+		query.append("DELETE FROM ");
+		query.append(meta.getTableName());
+		query.append(" WHERE ");
+		query.append(meta.getIdField().getName());
+		query.append(" IN (");
+		for (int i = 0; i < numIds; i++) {
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append('?');
+		}
+		query.append(')');
+		return query.toString();
+	}
+
+	/**
+	 * Returns the number of parameters used in a "select ... in ..." query
+	 * for the specified number of ids. The number is rounded up to a power of
+	 * two (but not more than <code>ZManager.getMaxIdsPerQuery()</code>), so
+	 * that only a few statements are prepared for each meta and fields.
+	 * 
+	 * @param numIds
+	 * @return the number of parameters used in a "select ... in ..." query
+	 */
+	private static int getInListSize(int numIds) {
+		int size = 1;
+		while (size < numIds) {
+			size <<= 1;
+		}
+		return Math.max(numIds, Math.min(size, ZManager.getMaxIdsPerQuery()));
+	}
+
+	/**
+	 * Returns the key of the update statement used to save the specified
+	 * non-new <code>ZPersistent</code> object.
+	 * 
+	 * @param ob
+	 * @return the key of the update statement
+	 */
+	private static StatementKey getUpdateKey(ZPersistent ob) {
+		return new StatementKey(STATEMENT_UPDATE, ob.getMeta(),
+				getModifiedFields(ob), 0);
+	}
+
+	/**
+	 * Returns true if any of the specified fields use SQL expressions for
+	 * update.
+	 * 
+	 * @param fields
+	 * @return true if any of the specified fields use SQL expressions for
+	 *         update
+	 */
+	private static boolean isUsingSqlExprForUpdate(ZField[] fields) {
+		for (ZField field : fields) {
+			if (field.isUsingSqlExprForUpdate()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Returns an array with the modified fields from the specified
 	 * <code>ZPersistent</code> object.
@@ -823,28 +2417,257 @@ public class ZSession {
 	}
 
 	/**
-	 * Returns the dictionary containing the loaded <code>ZPersistent</code>
-	 * objects.
+	 * Returns the prepared statement corresponding to the specified key from
+	 * the statement cache. If it does not exist, the statement is prepared
+	 * and added to the cache (the least recently used statement is closed if
+	 * more than <code>ZManager.getStatementCacheSize()</code> statements are
+	 * cached). The returned statement must be used before another statement
+	 * is requested.
+	 * 
+	 * @param key
+	 * @return the prepared statement corresponding to the specified key
+	 */
+	private PreparedQuery getPreparedQuery(StatementKey key) {
+		if (m_preparedQueries == null) {
+			m_preparedQueries = new StatementCache<StatementKey, PreparedQuery>(
+					ZManager.getStatementCacheSize());
+		}
+		PreparedQuery query = m_preparedQueries.get(key);
+		if (query == null) {
+			ZStringField generatedIdField = null;
+			if (key.kind == STATEMENT_INSERT_READING_ID) {
+				generatedIdField = key.meta.getIdField();
+			}
+			ZHydrator hydrator = null;
+			if ((key.kind == STATEMENT_SELECT)
+					|| (key.kind == STATEMENT_SELECT_IN)) {
+				hydrator = key.meta.getHydrator(key.fields);
+			}
+			query = prepareQuery(constructQuery(key), generatedIdField,
+					hydrator);
+			// the fields array can be owned by the caller
+			m_preparedQueries.put(new StatementKey(key.kind, key.meta,
+					key.fields.clone(), key.numIds), query);
+		}
+		return query;
+	}
+
+	/**
+	 * Prepare the specified SQL query.
+	 * 
+	 * @param sql
+	 * @param generatedIdField
+	 *            the autogenerated id field to be returned by the statement
+	 *            (null if no autogenerated field must be returned)
+	 * @param hydrator
+	 *            the hydrator of the selected fields (null if the query is
+	 *            not a select)
+	 * @return the prepared query
+	 */
+	private PreparedQuery prepareQuery(String sql,
+			ZStringField generatedIdField, ZHydrator hydrator) {
+		Connection sqlConn = getSqlConnection();
+		try {
+			PreparedStatement stmt = (generatedIdField == null) ? sqlConn
+					.prepareStatement(sql) : sqlConn.prepareStatement(sql,
+					new String[] { generatedIdField.getName() });
+			return new PreparedQuery(sql, stmt, hydrator);
+		} catch (Exception e) {
+			throw new ZormException("Error preparing SQL Statement: " + sql, e);
+		}
+	}
+
+	/**
+	 * Returns the set of pending writes (lazy initialized).
+	 * 
+	 * @return the set of pending writes
+	 */
+	private LinkedHashSet<ZPersistent> getPendingWrites() {
+		if (m_pendingWrites == null) {
+			m_pendingWrites = new LinkedHashSet<ZPersistent>();
+		}
+		return m_pendingWrites;
+	}
+
+	/**
+	 * Returns a list with all the loaded <code>ZPersistent</code> objects
+	 * (a copy, so that the objects can be dettached while iterating it).
+	 * 
+	 * @return a list with all the loaded <code>ZPersistent</code> objects
+	 */
+	private ArrayList<ZPersistent> getLoadedObjects() {
+		ArrayList<ZPersistent> obs = new ArrayList<ZPersistent>();
+		if (m_loadedObjects != null) {
+			for (HashMap<String, Object> metaObs : m_loadedObjects.values()) {
+				addLoadedObjects(obs, metaObs);
+			}
+		}
+		return obs;
+	}
+
+	/**
+	 * Returns a list with the loaded <code>ZPersistent</code> objects with
+	 * the specified meta (a copy, so that the objects can be dettached while
+	 * iterating it).
+	 * 
+	 * @param meta
+	 * @return a list with the loaded <code>ZPersistent</code> objects with
+	 *         the specified meta
+	 */
+	private ArrayList<ZPersistent> getLoadedObjects(ZPersistentMeta meta) {
+		ArrayList<ZPersistent> obs = new ArrayList<ZPersistent>();
+		if (m_loadedObjects != null) {
+			HashMap<String, Object> metaObs = m_loadedObjects.get(meta);
+			if (metaObs != null) {
+				addLoadedObjects(obs, metaObs);
+			}
+		}
+		return obs;
+	}
+
+	/**
+	 * Add to the specified list the objects from the specified dictionary of
+	 * loaded objects (the garbage collected objects are skipped).
+	 * 
+	 * @param obs
+	 * @param metaObs
+	 */
+	private static void addLoadedObjects(ArrayList<ZPersistent> obs,
+			HashMap<String, Object> metaObs) {
+		for (Object value : metaObs.values()) {
+			ZPersistent ob = toLoadedObject(value);
+			if (ob != null) {
+				obs.add(ob);
+			}
+		}
+	}
+
+	/**
+	 * Returns the object corresponding to a value of a dictionary of loaded
+	 * objects (null if the object was garbage collected).
+	 * 
+	 * @param value
+	 * @return the object corresponding to the value
+	 */
+	private static ZPersistent toLoadedObject(Object value) {
+		if (value instanceof LoadedObjectRef) {
+			return ((LoadedObjectRef) value).get();
+		}
+		return (ZPersistent) value;
+	}
+
+	/**
+	 * Add the specified object to the loaded objects, replacing the object
+	 * with the same meta and id, if any. If the identity map capacity is
+	 * positive, the object is held through a weak reference and it becomes
+	 * the most recently used object.
+	 * 
+	 * @param ob
+	 * @return the replaced object (null if there was none)
+	 */
+	private ZPersistent putLoadedObject(ZPersistent ob) {
+		ZPersistentMeta meta = ob.getMeta();
+		if (m_loadedObjects == null) {
+			m_loadedObjects = new HashMap<ZPersistentMeta, HashMap<String, Object>>();
+		}
+		HashMap<String, Object> metaObs = m_loadedObjects.get(meta);
+		if (metaObs == null) {
+			metaObs = new HashMap<String, Object>();
+			m_loadedObjects.put(meta, metaObs);
+		}
+		Object value = ob;
+		if (m_identityMapCapacity > 0) {
+			if (m_recentObjects == null) {
+				m_recentObjects = new RecentObjects(m_identityMapCapacity);
+				m_collectedObjects = new ReferenceQueue<ZPersistent>();
+			} else {
+				removeCollectedObjects();
+			}
+			m_recentObjects.put(ob, Boolean.TRUE);
+			value = new LoadedObjectRef(ob, m_collectedObjects);
+		}
+		return toLoadedObject(metaObs.put(ob.getId(), value));
+	}
+
+	/**
+	 * Remove the entries of the loaded objects that were garbage collected.
+	 */
+	private void removeCollectedObjects() {
+		Reference<? extends ZPersistent> ref;
+		while ((ref = m_collectedObjects.poll()) != null) {
+			LoadedObjectRef objectRef = (LoadedObjectRef) ref;
+			HashMap<String, Object> metaObs = m_loadedObjects
+					.get(objectRef.meta);
+			// the entry may have been replaced meanwhile
+			if ((metaObs != null) && (metaObs.get(objectRef.id) == objectRef)) {
+				metaObs.remove(objectRef.id);
+			}
+		}
+	}
+
+	/**
+	 * Evict the specified loaded object, if it is not modified.
 	 * 
-	 * @return the dictionary containing the loaded <code>ZPersistent</code>
-	 *         objects.
+	 * @param ob
+	 * @return true if the object was evicted
 	 */
-	private HashMap<String, ZPersistent> getLoadedObjects() {
+	private boolean evictLoadedObject(ZPersistent ob) {
+		if (ob.isModified()) {
+			return false;
+		}
+		ob.dettach();
+		ob.setSessionBackdoor(null);
+		return true;
+	}
+
+	/**
+	 * Returns the loaded <code>ZPersistent</code> object with the specified
+	 * meta and id, or null if it is not loaded.
+	 * 
+	 * @param meta
+	 * @param id
+	 * @return the loaded <code>ZPersistent</code> object with the specified
+	 *         meta and id
+	 */
+	private ZPersistent getLoadedObject(ZPersistentMeta meta, String id) {
 		if (m_loadedObjects == null) {
-			m_loadedObjects = new HashMap<String, ZPersistent>();
+			return null;
 		}
-		return m_loadedObjects;
+		HashMap<String, Object> metaObs = m_loadedObjects.get(meta);
+		if (metaObs == null) {
+			return null;
+		}
+		Object value = metaObs.get(id);
+		if (!(value instanceof LoadedObjectRef)) {
+			return (ZPersistent) value;
+		}
+		ZPersistent ob = ((LoadedObjectRef) value).get();
+		if (ob != null) {
+			// the object becomes the most recently used
+			m_recentObjects.put(ob, Boolean.TRUE);
+		}
+		return ob;
 	}
 
 	/**
-	 * Get the key to search in the loadedObjects dictionary.
+	 * Remove the loaded <code>ZPersistent</code> object with the specified
+	 * meta and id (if it is loaded).
 	 * 
 	 * @param meta
 	 * @param id
-	 * @return the key to search in the loadedObjects dictionary
 	 */
-	private String getLoadedObjectsKey(ZPersistentMeta meta, String id) {
-		return meta.getTableName() + ':' + id;
+	private void removeLoadedObject(ZPersistentMeta meta, String id) {
+		if (m_loadedObjects == null) {
+			return;
+		}
+		HashMap<String, Object> metaObs = m_loadedObjects.get(meta);
+		if (metaObs == null) {
+			return;
+		}
+		ZPersistent ob = toLoadedObject(metaObs.remove(id));
+		if ((ob != null) && (m_recentObjects != null)) {
+			m_recentObjects.remove(ob);
+		}
 	}
 
 	/**
@@ -862,9 +2685,10 @@ public class ZSession {
 	 */
 	private ZPersistent getSingle(ZPersistentMeta meta, String id,
 			boolean fetchFromDb, ZField[] fields) {
-		String key = getLoadedObjectsKey(meta, id);
-		ZPersistent ob = getLoadedObjects().get(key);
+		ZPersistent ob = getLoadedObject(meta, id);
 		boolean obInLoadedObjects = (ob != null);
+		ZManager.getMetrics().addIdentityMapLookups(obInLoadedObjects ? 1 : 0,
+				obInLoadedObjects ? 0 : 1);
 		if (obInLoadedObjects) {
 			if (fields == null) {
 				return ob;
@@ -889,6 +2713,274 @@ public class ZSession {
 		return ob;
 	}
 
+	/**
+	 * Get multiple <code>ZPersistent</code> objects. The objects already
+	 * loaded in this session are taken from cache and the rest are fetched
+	 * from the database using "select ... in ..." queries.
+	 * 
+	 * @param meta
+	 * @param ids
+	 * @param fetchFromDb
+	 *            if true, fetch the necesary fields from the database
+	 * @param fields
+	 *            the fields to be fetched from the database; if null, only the
+	 *            autofetched fields are retrieved from the database, and only
+	 *            for the objects that did not exist in cache
+	 * @return the objects, in the order of the specified ids (null for the
+	 *         objects that were not found in the database)
+	 */
+	private ZPersistent[] getMultiple(ZPersistentMeta meta, String[] ids,
+			boolean fetchFromDb, ZField[] fields) {
+		ZPersistent[] obs = new ZPersistent[ids.length];
+		// objects to be fetched from the database, keyed by id
+		LinkedHashMap<String, ZPersistent> obsToFetch = new LinkedHashMap<String, ZPersistent>();
+		ZStringField idField = meta.getIdField();
+		int numHits = 0;
+		for (int i = 0; i < ids.length; i++) {
+			String id = ids[i];
+			ZPersistent ob = getLoadedObject(meta, id);
+			if (ob != null) {
+				numHits++;
+				if (fetchFromDb && (fields != null)
+						&& (getNotInitializedFields(ob, fields).length > 0)) {
+					obsToFetch.put(id, ob);
+				}
+			} else {
+				ob = obsToFetch.get(id);
+				if (ob == null) {
+					ob = FactoryManager.newInstance(meta.getPersistentType());
+					validateFieldValue(idField, id);
+					ob.setFieldValueInternal(idField, id);
+					ob.setNew(false);
+					if (fetchFromDb) {
+						obsToFetch.put(id, ob);
+					} else {
+						ob.attach(this);
+					}
+				}
+			}
+			obs[i] = ob;
+		}
+		ZManager.getMetrics().addIdentityMapLookups(numHits,
+				ids.length - numHits);
+		if (obsToFetch.isEmpty()) {
+			setLoadedTogether(obs);
+			return obs;
+		}
+
+		Set<ZPersistent> foundObs = fetchFromDb(meta, obsToFetch,
+				(fields == null) ? meta.getAutoFetchedFields() : fields);
+		for (ZPersistent ob : foundObs) {
+			if (!ob.isAttached()) {
+				ob.attach(this);
+			}
+		}
+		// the objects that were not found are reported as null values
+		for (int i = 0; i < obs.length; i++) {
+			if (obsToFetch.containsKey(ids[i]) && !foundObs.contains(obs[i])) {
+				obs[i] = null;
+			}
+		}
+		setLoadedTogether(obs);
+		return obs;
+	}
+
+	/**
+	 * Returns true if the specified object is attached to this session: a new
+	 * object must have this session, and an object that is not new must also
+	 * be the loaded object with its meta and id.
+	 * 
+	 * @param ob
+	 * @return true if the specified object is attached to this session
+	 */
+	private boolean isAttachedHere(ZPersistent ob) {
+		if (ob.getSession() != this) {
+			return false;
+		}
+		return ob.isNew() || (getLoadedObject(ob.getMeta(), ob.getId()) == ob);
+	}
+
+	/**
+	 * Returns the objects loaded together with the specified object whose
+	 * specified field must be fetched at once with the field of the object,
+	 * keyed by id (the object is the first). Only the group of the object is
+	 * visited (see <code>setLoadedTogether(Object[])</code>), so the cost
+	 * doesn't depend on the number of objects loaded together.
+	 * 
+	 * @param ob
+	 * @param field
+	 * @return the objects whose field must be fetched, or null if the field
+	 *         must be fetched only for the specified object
+	 */
+	private Map<String, ZPersistent> getSiblingsToFetch(ZPersistent ob,
+			ZField field) {
+		ZPersistent[] siblings = ob.getSiblings();
+		int batchSize = ZManager.getLazyFetchBatchSize();
+		if ((siblings == null) || (batchSize < 2)) {
+			return null;
+		}
+		LinkedHashMap<String, ZPersistent> obs = new LinkedHashMap<String, ZPersistent>();
+		obs.put(ob.getId(), ob);
+		for (ZPersistent sibling : siblings) {
+			if (obs.size() == batchSize) {
+				break;
+			}
+			if ((sibling.getSession() == this) && !sibling.isNew()
+					&& !sibling.isFieldInitialized(field)
+					&& !obs.containsKey(sibling.getId())) {
+				obs.put(sibling.getId(), sibling);
+			}
+		}
+		return (obs.size() < 2) ? null : obs;
+	}
+
+	/**
+	 * Fetch the specified fields of multiple <code>ZPersistent</code> objects
+	 * having the same meta, using "select ... in ..." queries. The number of
+	 * ids in a query is limited by <code>ZManager.getMaxIdsPerQuery()</code>.
+	 * Only the fields that are not initialized are set in each object.
+	 * 
+	 * @param meta
+	 * @param obs
+	 *            the objects to be fetched, keyed by id
+	 * @param fields
+	 * @return the objects that were found in the database
+	 */
+	private Set<ZPersistent> fetchFromDb(ZPersistentMeta meta,
+			Map<String, ZPersistent> obs, ZField[] fields) {
+		Set<ZPersistent> foundObs = new HashSet<ZPersistent>();
+		if (fields.length == 0) {
+			foundObs.addAll(obs.values());
+			return foundObs;
+		}
+		ZStringField idField = meta.getIdField();
+		// take the objects found in the shared cache
+		boolean usingSharedCache = (meta.getSharedCacheSize() > 0);
+		Collection<String> ids = obs.keySet();
+		if (usingSharedCache) {
+			ids = new ArrayList<String>(obs.size());
+			for (Map.Entry<String, ZPersistent> entry : obs.entrySet()) {
+				if (isUsingSharedCache(meta, entry.getKey())
+						&& ZManager.getSharedCache().copyTo(entry.getValue(),
+								fields)) {
+					foundObs.add(entry.getValue());
+				} else {
+					ids.add(entry.getKey());
+				}
+			}
+		}
+		int maxIds = ZManager.getMaxIdsPerQuery();
+		Iterator<String> idIterator = ids.iterator();
+		ArrayList<String> chunk = new ArrayList<String>(Math.min(maxIds, ids
+				.size()));
+		while (idIterator.hasNext()) {
+			chunk.clear();
+			while (idIterator.hasNext() && chunk.size() < maxIds) {
+				chunk.add(idIterator.next());
+			}
+			int numIds = getInListSize(chunk.size());
+			PreparedQuery query = getPreparedQuery(new StatementKey(
+					STATEMENT_SELECT_IN, meta, fields, numIds));
+			long cacheVersion = usingSharedCache ? ZManager.getSharedCache()
+					.getVersion(meta) : 0;
+			logQuery(query.sql);
+			ResultSet rs = null;
+			try {
+				PreparedStatement stmt = query.stmt;
+				for (int i = 0; i < numIds; i++) {
+					// the list is padded by repeating the last id
+					String id = chunk.get(Math.min(i, chunk.size() - 1));
+					idField.setSqlParameter(stmt, i + 1, id);
+				}
+				long startTime = System.nanoTime();
+				rs = stmt.executeQuery();
+				long fetchStartTime = System.nanoTime();
+				int numRows = 0;
+				IdMatcher idMatcher = new IdMatcher(chunk);
+				while (rs.next()) {
+					numRows++;
+					String rowId = (String) fromSqlValue(idField, rs
+							.getObject(1));
+					List<String> matchedIds = idMatcher.match(rowId);
+					boolean exactMatch = (matchedIds.size() == 1)
+							&& matchedIds.get(0).equals(rowId);
+					// an id that doesn't match any requested id is ignored
+					// (the requested objects are reported as not found)
+					for (String id : matchedIds) {
+						ZPersistent ob = obs.get(id);
+						if (!foundObs.add(ob)) {
+							if (!exactMatch) {
+								continue;
+							}
+							throw new ZormException(
+									"More than 1 row was returned while trying to to read persistent object: "
+											+ ob.toString()
+											+ " from SQL database. This means that the id field specified is not a primary key.");
+						}
+						hydrate(ob, query.hydrator, rs, fields,
+								usingSharedCache, cacheVersion);
+					}
+				}
+				queryExecuted(query.sql, startTime, fetchStartTime, numRows);
+				ZManager.getMetrics().addRowsHydrated(numRows);
+			} catch (Exception e) {
+				throw new ZormException("Error trying to read " + meta
+						+ " persistent objects from SQL database.", e);
+			} finally {
+				try {
+					if (rs != null) {
+						rs.close();
+					}
+				} catch (Exception e) {
+					throw new ZormException("Error closing the SQL ResultSet.", e);
+				} finally {
+					rs = null;
+				}
+			}
+		}
+		return foundObs;
+	}
+
+	/**
+	 * Set the specified fields of the <code>ZPersistent</code> object that are
+	 * not initialized from the current row of the "select ... in ..." query
+	 * (the values start at the second column). If the shared cache is used,
+	 * the values read are also put in the shared cache.
+	 * 
+	 * @param ob
+	 * @param hydrator
+	 * @param rs
+	 * @param fields
+	 * @param usingSharedCache
+	 * @param cacheVersion
+	 *            the version of the shared cache region before the query was
+	 *            executed
+	 * @throws SQLException
+	 */
+	private void hydrate(ZPersistent ob, ZHydrator hydrator, ResultSet rs,
+			ZField[] fields, boolean usingSharedCache, long cacheVersion)
+			throws SQLException {
+		if (!usingSharedCache) {
+			hydrator.hydrate(ob, rs, 2, false);
+			return;
+		}
+		Object[] values = new Object[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			ZField field = fields[i];
+			Object value = fromSqlValue(field, rs.getObject(i + 2));
+			if (!ob.isFieldInitialized(field)) {
+				validateFieldValue(field, value);
+				ob.setFieldValueInternal(field, value);
+			}
+			values[i] = value;
+		}
+		ZPersistentMeta meta = ob.getMeta();
+		if (isUsingSharedCache(meta, ob.getId())) {
+			ZManager.getSharedCache().put(meta, ob.getId(), fields, values,
+					cacheVersion);
+		}
+	}
+
 	/**
 	 * Fetch the specified fields of the <code>ZPersistent</code> object.
 	 * 
@@ -900,21 +2992,31 @@ public class ZSession {
 			return;
 		}
 		ZPersistentMeta meta = ob.getMeta();
-		String query = constructSelectQuery(meta, ob.getId(), fields);
-		logQuery(query);
-		Statement stmt = getSqlStatement();
+		boolean usingSharedCache = isUsingSharedCache(meta, ob.getId());
+		if (usingSharedCache && ZManager.getSharedCache().copyTo(ob, fields)) {
+			return;
+		}
+		long cacheVersion = usingSharedCache ? ZManager.getSharedCache()
+				.getVersion(meta) : 0;
+		PreparedQuery query = getPreparedQuery(new StatementKey(
+				STATEMENT_SELECT, meta, fields, 0));
+		logQuery(query.sql);
 		ResultSet rs = null;
 		boolean missingObject = false;
 		try {
-			rs = stmt.executeQuery(query);
+			PreparedStatement stmt = query.stmt;
+			meta.getIdField().setSqlParameter(stmt, 1, ob.getId());
+			long startTime = System.nanoTime();
+			rs = stmt.executeQuery();
+			long fetchStartTime = System.nanoTime();
 			if (rs.next()) {
-				int i = 1;
-				for (ZField field : fields) {
-					setFieldFromSqlValue(ob, field, rs.getObject(i++));
-				}
+				query.hydrator.hydrate(ob, rs, 1, true);
+				ZManager.getMetrics().addRowsHydrated(1);
 			} else {
 				missingObject = true;
 			}
+			queryExecuted(query.sql, startTime, fetchStartTime,
+					missingObject ? 0 : 1);
 			if (rs.next()) {
 				throw new ZormException(
 						"More than 1 row was returned while trying to to read persistent object: "
@@ -938,14 +3040,25 @@ public class ZSession {
 		if (missingObject) {
 			throw new ZormPersistentObjectNotFoundException(ob);
 		}
+		if (usingSharedCache) {
+			Object[] values = new Object[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				values[i] = ob.getFieldValueInternal(fields[i]);
+			}
+			ZManager.getSharedCache().put(meta, ob.getId(), fields, values,
+					cacheVersion);
+		}
 	}
 
 	/**
-	 * Save the specified new <code>ZPersistent</code> object to database.
+	 * Returns the key of the insert statement used to save the specified new
+	 * <code>ZPersistent</code> object. The object is checked to have all the
+	 * non-autogenerated fields initialized.
 	 * 
 	 * @param ob
+	 * @return the key of the insert statement
 	 */
-	private void saveNewToDb(ZPersistent ob) {
+	private static StatementKey getInsertKey(ZPersistent ob) {
 		ZPersistentMeta meta = ob.getMeta();
 		ZStringField idField = meta.getIdField();
 		boolean mustReadIdField = (idField != null)
@@ -959,53 +3072,140 @@ public class ZSession {
 						+ " must be initialized before saving.");
 			}
 		}
+		return new StatementKey(mustReadIdField ? STATEMENT_INSERT_READING_ID
+				: STATEMENT_INSERT, meta, getModifiedFields(ob), 0);
+	}
 
-		String query = constructInsertQuery(ob);
-		logQuery(query);
-		Statement stmt = getSqlStatement();
-		ResultSet rs = null;
-		try {
-			int rowsAffected = (mustReadIdField) ? stmt.executeUpdate(query)
-					: stmt.executeUpdate(query, new String[] { idField
-							.getName() });
-			if (rowsAffected != 1) {
-				throw new ZormException(
-						rowsAffected
-								+ " rows were affected while trying to save the persistent object: "
-								+ ob.toString() + '.');
-			}
-			if (mustReadIdField) {
-				rs = stmt.getGeneratedKeys();
-				if (rs.next()) {
-					setFieldFromSqlValue(ob, idField, rs.getObject(1));
+	/**
+	 * Save the specified new <code>ZPersistent</code> object to database.
+	 * 
+	 * @param ob
+	 */
+	private void saveNewToDb(ZPersistent ob) {
+		ArrayList<ZPersistent> obs = new ArrayList<ZPersistent>(1);
+		obs.add(ob);
+		saveNewToDb(getInsertKey(ob), obs);
+	}
 
+	/**
+	 * Save the specified new <code>ZPersistent</code> objects to database.
+	 * All the objects must use the insert statement specified by the key.
+	 * Multiple objects are saved using JDBC batches of at most
+	 * <code>ZManager.getMaxBatchSize()</code> objects.
+	 * 
+	 * @param key
+	 * @param obs
+	 */
+	private void saveNewToDb(StatementKey key, List<ZPersistent> obs) {
+		ZPersistentMeta meta = key.meta;
+		ZStringField idField = meta.getIdField();
+		boolean mustReadIdField = (key.kind == STATEMENT_INSERT_READING_ID);
+		boolean batch = (obs.size() > 1);
+		int maxBatchSize = ZManager.getMaxBatchSize();
+		PreparedQuery query = getPreparedQuery(key);
+		for (int first = 0; first < obs.size(); first += maxBatchSize) {
+			List<ZPersistent> batchObs = obs.subList(first, Math.min(first
+					+ maxBatchSize, obs.size()));
+			logQuery(query.sql);
+			ResultSet rs = null;
+			try {
+				PreparedStatement stmt = query.stmt;
+				int[] rowsAffected;
+				for (ZPersistent ob : batchObs) {
+					int i = 1;
+					for (ZField field : key.fields) {
+						field.setSqlParameter(stmt, i++, ob
+								.getFieldValue(field));
+					}
+					if (batch) {
+						stmt.addBatch();
+					}
+				}
+				long startTime = System.nanoTime();
+				if (batch) {
+					rowsAffected = stmt.executeBatch();
 				} else {
-					throw new ZormException(
-							"Error while trying to process the autogenerated id field: "
-									+ idField + '.');
+					rowsAffected = new int[] { stmt.executeUpdate() };
 				}
-			}
-		} catch (Exception e) {
-			throw new ZormException(
-					"Error trying to save the new persistent object: "
-							+ ob.toString() + " from SQL database", e);
-		} finally {
-			try {
-				if (rs != null) {
-					rs.close();
+				queryExecuted(query.sql, startTime, System.nanoTime(),
+						batchObs.size());
+				for (int i = 0; i < rowsAffected.length; i++) {
+					if ((rowsAffected[i] != 1)
+							&& (rowsAffected[i] != Statement.SUCCESS_NO_INFO)) {
+						throw new ZormException(
+								rowsAffected[i]
+										+ " rows were affected while trying to save the persistent object: "
+										+ batchObs.get(i).toString() + '.');
+					}
+				}
+				if (mustReadIdField) {
+					rs = stmt.getGeneratedKeys();
+					for (ZPersistent ob : batchObs) {
+						if (rs.next()) {
+							setFieldFromSqlValue(ob, idField, rs.getObject(1));
+						} else {
+							throw new ZormException(
+									"Error while trying to process the autogenerated id field: "
+											+ idField + '.');
+						}
+					}
 				}
 			} catch (Exception e) {
-				throw new ZormException("Error closing the SQL ResultSet.", e);
+				if (batch) {
+					throw new ZormException("Error trying to save "
+							+ batchObs.size() + " new persistent objects: "
+							+ meta + " to SQL database", e);
+				}
+				throw new ZormException(
+						"Error trying to save the new persistent object: "
+								+ batchObs.get(0).toString()
+								+ " from SQL database", e);
 			} finally {
-				rs = null;
+				if (batch) {
+					clearBatch(query.stmt);
+				}
+				try {
+					if (rs != null) {
+						rs.close();
+					}
+				} catch (Exception e) {
+					throw new ZormException("Error closing the SQL ResultSet.", e);
+				} finally {
+					rs = null;
+				}
 			}
+
+			// the objects of each inserted batch are saved, even if a later
+			// batch fails; persistent objects without id fields remain in
+			// the new state
+			if (idField != null) {
+				for (ZPersistent ob : batchObs) {
+					ob.setNew(false);
+					setSaved(ob);
+					putLoadedObject(ob);
+					invalidateSharedCache(meta, ob.getId());
+				}
+			} else {
+				for (ZPersistent ob : batchObs) {
+					setWritten(ob);
+				}
+			}
+			invalidateQueryCache(meta);
 		}
+	}
 
-		// persistent objects without id fields remain in the new state
-		if (idField != null) {
-			ob.setNew(false);
-			ob.setModified(false);
-			getLoadedObjects().put(getLoadedObjectsKey(meta, ob.getId()), ob);
+	/**
+	 * Clear the batch of the specified cached statement, so the rows of a
+	 * failed batch are not executed with the next batch. A failure is only
+	 * logged, to not hide the error of the batch.
+	 * 
+	 * @param stmt
+	 */
+	private static void clearBatch(PreparedStatement stmt) {
+		try {
+			stmt.clearBatch();
+		} catch (Exception e) {
+			ZManager.getLogger().warn("Error clearing the SQL batch", e);
 		}
 	}
 
@@ -1018,32 +3218,259 @@ public class ZSession {
 		if (!ob.isModified()) {
 			return;
 		}
-		String query = constructUpdateQuery(ob);
-		logQuery(query);
-		Statement stmt = getSqlStatement();
-		boolean missingObject = false;
+		ArrayList<ZPersistent> obs = new ArrayList<ZPersistent>(1);
+		obs.add(ob);
+		saveExistingToDb(getUpdateKey(ob), obs);
+	}
+
+	/**
+	 * Save the specified non-new and modified <code>ZPersistent</code>
+	 * objects to database. All the objects must use the update statement
+	 * specified by the key. Multiple objects are saved using JDBC batches of
+	 * at most <code>ZManager.getMaxBatchSize()</code> objects, and the number
+	 * of rows affected is checked for each object (unless the JDBC driver
+	 * doesn't report it). If the key has fields using SQL expressions for
+	 * update, than only one object can be specified.
+	 * 
+	 * @param key
+	 * @param obs
+	 */
+	private void saveExistingToDb(StatementKey key, List<ZPersistent> obs) {
+		ZPersistentMeta meta = key.meta;
+		ZStringField idField = meta.getIdField();
+		boolean usingSqlExpr = isUsingSqlExprForUpdate(key.fields);
+		boolean batch = (obs.size() > 1);
+		if (usingSqlExpr && batch) {
+			throw new AssertionError(
+					"Fields using SQL expressions cannot be updated in batches");
+		}
+		int maxBatchSize = ZManager.getMaxBatchSize();
+		// the SQL expressions depend on the values, so these queries are not
+		// cached
+		PreparedQuery query = (usingSqlExpr) ? prepareQuery(
+				constructUpdateQuery(meta, key.fields, obs.get(0)), null, null)
+				: getPreparedQuery(key);
+		ZPersistent missingOb = null;
 		try {
-			int rowsAffected = stmt.executeUpdate(query);
-			if (rowsAffected == 0) {
-				missingObject = true;
-			} else if (rowsAffected > 1) {
-				throw new ZormException(
-						rowsAffected
-								+ " were affected while trying to save the persistent object: "
-								+ ob.toString()
-								+ ". This means that the id field specified is not a primary key.");
+			for (int first = 0; first < obs.size(); first += maxBatchSize) {
+				List<ZPersistent> batchObs = obs.subList(first, Math.min(first
+						+ maxBatchSize, obs.size()));
+				logQuery(query.sql);
+				int[] rowsAffected;
+				try {
+					PreparedStatement stmt = query.stmt;
+					for (ZPersistent ob : batchObs) {
+						int i = 1;
+						for (ZField field : key.fields) {
+							if (!field.isUsingSqlExprForUpdate()) {
+								field.setSqlParameter(stmt, i++, ob
+										.getFieldValue(field));
+							}
+						}
+						idField.setSqlParameter(stmt, i, ob.getId());
+						if (batch) {
+							stmt.addBatch();
+						}
+					}
+					long startTime = System.nanoTime();
+					if (batch) {
+						rowsAffected = stmt.executeBatch();
+					} else {
+						rowsAffected = new int[] { stmt.executeUpdate() };
+					}
+					queryExecuted(query.sql, startTime, System.nanoTime(),
+							batchObs.size());
+				} catch (Exception e) {
+					if (batch) {
+						throw new ZormException("Error trying to save "
+								+ batchObs.size() + " persistent objects: "
+								+ meta + " to SQL database", e);
+					}
+					throw new ZormException(
+							"Error trying to save persistent object: "
+									+ batchObs.get(0).toString()
+									+ " from SQL database", e);
+				} finally {
+					if (batch) {
+						clearBatch(query.stmt);
+					}
+				}
+				for (int i = 0; i < rowsAffected.length; i++) {
+					ZPersistent ob = batchObs.get(i);
+					if (rowsAffected[i] == 0) {
+						if (missingOb == null) {
+							missingOb = ob;
+						}
+						continue;
+					} else if (rowsAffected[i] > 1) {
+						throw new ZormException(
+								rowsAffected[i]
+										+ " were affected while trying to save the persistent object: "
+										+ ob.toString()
+										+ ". This means that the id field specified is not a primary key.");
+					}
+					setSaved(ob);
+					if (getLoadedObject(meta, ob.getId()) != null) {
+						putLoadedObject(ob);
+					}
+					invalidateSharedCache(meta, ob.getId());
+				}
+			}
+		} finally {
+			if (usingSqlExpr) {
+				try {
+					query.stmt.close();
+				} catch (Exception e) {
+					throw new ZormException("Error closing the SQL Statement",
+							e);
+				}
 			}
-		} catch (Exception e) {
-			throw new ZormException("Error trying to save persistent object: "
-					+ ob.toString() + " from SQL database", e);
 		}
-		if (missingObject) {
-			throw new ZormPersistentObjectNotFoundException(ob);
+		invalidateQueryCache(meta);
+		if (missingOb != null) {
+			throw new ZormPersistentObjectNotFoundException(missingOb);
 		}
-		ob.setModified(false);
-		String key = getLoadedObjectsKey(ob.getMeta(), ob.getId());
-		if (getLoadedObjects().get(key) != null) {
-			getLoadedObjects().put(key, ob);
+	}
+
+	/**
+	 * Log a slow query and, if the explaining of the slow queries is enabled
+	 * and the query was not explained during the last slowQueryExplainInterval,
+	 * submit the explaining of the query to the asynchronous executor of the
+	 * <code>ZManager</code>.
+	 * 
+	 * @param query
+	 * @param parameters
+	 * @param executionTime
+	 *            in nanoseconds
+	 * @param fetchTime
+	 *            in nanoseconds
+	 * @param numRows
+	 */
+	private void logSlowQuery(final String query, Object[] parameters,
+			long executionTime, long fetchTime, int numRows) {
+		ZManager.getLogger().warn(
+				"SESSION" + getSessionId() + ": slow query ("
+						+ (executionTime + fetchTime) / 1000000 + " ms: "
+						+ executionTime / 1000000 + " ms execution, "
+						+ fetchTime / 1000000 + " ms fetch, " + numRows
+						+ " rows): \"" + query + '"');
+		if (!ZManager.isExplainingSlowQueries()
+				|| (ZMetrics.getQueryKind(query) != ZMetrics.QUERY_SELECT)) {
+			return;
+		}
+		if (parameters == null) {
+			if (query.indexOf('?') >= 0) {
+				return;
+			}
+			parameters = NO_PARAMETERS;
+		}
+		if (!markExplained(query)) {
+			return;
+		}
+		final Object[] explainedParameters = parameters;
+		ZManager.getAsyncExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					explainQuery(query, explainedParameters);
+				} catch (Exception e) {
+					ZManager.getLogger().warn(
+							"Error explaining the slow query: \"" + query
+									+ '"', e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record that the specified slow query is explained now, unless it was
+	 * already explained during the last slowQueryExplainInterval.
+	 * 
+	 * @param query
+	 * @return true if the query must be explained
+	 */
+	private static boolean markExplained(String query) {
+		long now = System.nanoTime();
+		long interval = ZManager.getSlowQueryExplainInterval() * 1000000L;
+		Long lastTime = EXPLAINED_QUERIES.get(query);
+		if (lastTime != null) {
+			return (now - lastTime >= interval)
+					&& EXPLAINED_QUERIES.replace(query, lastTime, now);
+		}
+		if (EXPLAINED_QUERIES.size() >= MAX_EXPLAINED_QUERIES) {
+			// forget the queries explained before the last interval
+			Iterator<Long> it = EXPLAINED_QUERIES.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next() >= interval) {
+					it.remove();
+				}
+			}
+			if (EXPLAINED_QUERIES.size() >= MAX_EXPLAINED_QUERIES) {
+				return false;
+			}
+		}
+		return EXPLAINED_QUERIES.putIfAbsent(query, now) == null;
+	}
+
+	/**
+	 * Log the plan of the specified select query, using "EXPLAIN" on a new
+	 * SQL connection. If the connections are pooled, the query is explained
+	 * only if a connection of the pool is available (the explaining must not
+	 * take the connections of the sessions), and the connection is returned
+	 * to the pool.
+	 * 
+	 * @param query
+	 * @param parameters
+	 * @throws SQLException
+	 */
+	private static void explainQuery(String query, Object[] parameters)
+			throws SQLException {
+		ZConnectionPool connectionPool = ZManager.getConnectionPool();
+		Connection sqlConn;
+		if (connectionPool != null) {
+			sqlConn = connectionPool.tryBorrowConnection();
+			if (sqlConn == null) {
+				ZManager.getLogger().warn(
+						"No SQL connection available to explain the slow query: \""
+								+ query + '"');
+				return;
+			}
+		} else {
+			sqlConn = ZManager.getNewSqlConnection();
+		}
+		try {
+			PreparedStatement stmt = sqlConn.prepareStatement("EXPLAIN "
+					+ query);
+			try {
+				for (int i = 0; i < parameters.length; i++) {
+					Object value = parameters[i];
+					if (value instanceof java.util.Date) {
+						value = new Timestamp(((java.util.Date) value)
+								.getTime());
+					}
+					stmt.setObject(i + 1, value);
+				}
+				ResultSet rs = stmt.executeQuery();
+				StringBuilder plan = new StringBuilder();
+				plan.append("explain for slow query: \"").append(query)
+						.append('"');
+				ResultSetMetaData rsm = rs.getMetaData();
+				while (rs.next()) {
+					plan.append("\n  ");
+					for (int i = 1; i <= rsm.getColumnCount(); i++) {
+						if (i > 1) {
+							plan.append(", ");
+						}
+						plan.append(rsm.getColumnLabel(i)).append('=').append(
+								rs.getObject(i));
+					}
+				}
+				rs.close();
+				ZManager.getLogger().warn(plan.toString());
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			releaseSqlConnection(connectionPool, sqlConn);
 		}
 	}
 
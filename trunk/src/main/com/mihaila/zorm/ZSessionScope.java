@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm;
+
+import java.util.concurrent.Callable;
+
+import com.mihaila.zorm.exception.ZormException;
+
+/**
+ * Binds a <code>ZSession</code> to the current thread only for the duration
+ * of an explicit scope (see <code>runWithSession()</code>). Unlike
+ * <code>ZManagerThreadLocal</code>, the binding is always removed when the
+ * scope ends (the previous binding, if any, is restored), so short-lived
+ * threads don't keep sessions and SQL connections after their work is done.
+ * 
+ * <pre>
+ * Item item = ZSessionScope.runWithNewSession(new Callable&lt;Item&gt;() {
+ * 	public Item call() {
+ * 		return (Item) ZSessionScope.getSession().get(Item.META, &quot;1&quot;);
+ * 	}
+ * });
+ * </pre>
+ */
+public class ZSessionScope {
+
+	/**
+	 * Holds the session bound to the current thread by the innermost scope.
+	 */
+	private static final ThreadLocal<ZSession> m_boundSessions = new ThreadLocal<ZSession>();
+
+	/**
+	 * Returns the session bound to the current thread by the innermost
+	 * enclosing scope.
+	 * 
+	 * @return the session bound to the current thread
+	 * @throws ZormException
+	 *             if no session is bound to the current thread
+	 */
+	public static ZSession getSession() {
+		ZSession session = m_boundSessions.get();
+		if (session == null) {
+			throw new ZormException(
+					"No session is bound to the current thread (use ZSessionScope.runWithSession()).");
+		}
+		return session;
+	}
+
+	/**
+	 * Returns true if a session is bound to the current thread, false
+	 * otherwise.
+	 * 
+	 * @return true if a session is bound to the current thread
+	 */
+	public static boolean isBound() {
+		return m_boundSessions.get() != null;
+	}
+
+	/**
+	 * Runs the specified task with the specified session bound to the current
+	 * thread. The session is not closed when the task ends.
+	 * 
+	 * @param session
+	 * @param task
+	 * @return the result of the task
+	 * @throws ZormException
+	 *             if the task throws a checked exception (the runtime
+	 *             exceptions are propagated unchanged)
+	 */
+	public static <T> T runWithSession(ZSession session, Callable<T> task) {
+		if (session == null) {
+			throw new ZormException("The session must not be null.");
+		}
+		ZSession previousSession = m_boundSessions.get();
+		m_boundSessions.set(session);
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ZormException("Error running the task with session "
+					+ session.getSessionId() + '.', e);
+		} finally {
+			if (previousSession == null) {
+				m_boundSessions.remove();
+			} else {
+				m_boundSessions.set(previousSession);
+			}
+		}
+	}
+
+	/**
+	 * Runs the specified task with a new session bound to the current thread.
+	 * The session is closed when the task ends (its SQL connection is
+	 * returned to the pool, if a pool is used).
+	 * 
+	 * @param task
+	 * @return the result of the task
+	 * @see #runWithSession(ZSession, Callable)
+	 */
+	public static <T> T runWithNewSession(Callable<T> task) {
+		ZSession session = ZManager.getNewSession();
+		try {
+			return runWithSession(session, task);
+		} finally {
+			session.close();
+		}
+	}
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of the field values of persistent objects, shared by all
+ * the sessions (a second level cache). The cache is used only for the metas
+ * having a positive shared cache size (see
+ * <code>ZPersistentMeta.setSharedCacheSize(int)</code>); each meta has its
+ * own region, with LRU eviction and an optional time to live. The cache never
+ * hands out objects: each session receives its own copy of the field values.
+ * 
+ * Each region has a version, incremented when objects are invalidated. The
+ * values read from the database are put in the cache only if the version
+ * didn't change since before the read, so that a session cannot cache values
+ * that were read before the commit of another session which invalidated them.
+ */
+public class ZSharedCache {
+
+	/**
+	 * Marks the values of the fields that are not cached.
+	 */
+	private final static Object NOT_CACHED = new Object();
+
+	/**
+	 * The regions of the cache, one for each meta.
+	 */
+	private final ConcurrentHashMap<ZPersistentMeta, Region> m_regions = new ConcurrentHashMap<ZPersistentMeta, Region>();
+
+	/**
+	 * The number of lookups that found all the requested fields.
+	 */
+	private final AtomicLong m_numHits = new AtomicLong();
+
+	/**
+	 * The number of lookups that did not find all the requested fields.
+	 */
+	private final AtomicLong m_numMisses = new AtomicLong();
+
+	/**
+	 * Returns the number of lookups that found all the requested fields in
+	 * this cache.
+	 * 
+	 * @return the number of hits
+	 */
+	public final long getNumHits() {
+		return m_numHits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that did not find all the requested
+	 * fields in this cache.
+	 * 
+	 * @return the number of misses
+	 */
+	public final long getNumMisses() {
+		return m_numMisses.get();
+	}
+
+	/**
+	 * Returns the number of objects cached for the specified meta (including
+	 * the expired objects that were not yet evicted).
+	 * 
+	 * @param meta
+	 * @return the number of objects cached for the specified meta
+	 */
+	public final int size(ZPersistentMeta meta) {
+		Region region = m_regions.get(meta);
+		if (region == null) {
+			return 0;
+		}
+		synchronized (region) {
+			return region.size();
+		}
+	}
+
+	/**
+	 * Remove all the objects from this cache.
+	 */
+	public final void clear() {
+		for (Region region : m_regions.values()) {
+			synchronized (region) {
+				region.clear();
+				region.version++;
+			}
+		}
+	}
+
+	/**
+	 * Remove all the objects with the specified meta from this cache.
+	 * 
+	 * @param meta
+	 */
+	public final void clear(ZPersistentMeta meta) {
+		Region region = m_regions.get(meta);
+		if (region != null) {
+			synchronized (region) {
+				region.clear();
+				region.version++;
+			}
+		}
+	}
+
+	/**
+	 * Remove the object with the specified meta and id from this cache.
+	 * 
+	 * @param meta
+	 * @param id
+	 */
+	public final void invalidate(ZPersistentMeta meta, String id) {
+		Region region = m_regions.get(meta);
+		if (region != null) {
+			synchronized (region) {
+				region.remove(id);
+				region.version++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the current version of the region of the specified meta, to be
+	 * specified when the values read from the database are put in this cache.
+	 * 
+	 * @param meta
+	 * @return the current version of the region of the specified meta
+	 */
+	final long getVersion(ZPersistentMeta meta) {
+		Region region = getRegion(meta);
+		if (region == null) {
+			return 0;
+		}
+		synchronized (region) {
+			return region.version;
+		}
+	}
+
+	/**
+	 * Set the specified fields of the object from this cache, if all of them
+	 * are cached. The fields that are already initialized in the object are
+	 * not changed.
+	 * 
+	 * @param ob
+	 * @param fields
+	 * @return true, if all the fields were found in this cache
+	 */
+	final boolean copyTo(ZPersistent ob, ZField[] fields) {
+		Region region = getRegion(ob.getMeta());
+		if (region == null) {
+			return false;
+		}
+		Object[] values;
+		synchronized (region) {
+			values = region.getValues(ob.getId());
+		}
+		if (values != null) {
+			for (ZField field : fields) {
+				if (values[field.getIndex()] == NOT_CACHED) {
+					values = null;
+					break;
+				}
+			}
+		}
+		if (values == null) {
+			m_numMisses.incrementAndGet();
+			return false;
+		}
+		m_numHits.incrementAndGet();
+		for (ZField field : fields) {
+			if (!ob.isFieldInitialized(field)) {
+				ob.setFieldValueInternal(field, field.copyValue(values[field
+						.getIndex()]));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add the specified field values (as read from the database) of the
+	 * object with the specified meta and id to this cache. The values are
+	 * merged with the values already cached for the object. The values are
+	 * not added if the region of the meta was invalidated after the specified
+	 * version (they may have been read before the invalidated values were
+	 * committed).
+	 * 
+	 * @param meta
+	 * @param id
+	 * @param fields
+	 * @param fieldValues
+	 *            the values of the specified fields, in the same order
+	 * @param version
+	 *            the version of the region of the meta before the values were
+	 *            read from the database
+	 */
+	final void put(ZPersistentMeta meta, String id, ZField[] fields,
+			Object[] fieldValues, long version) {
+		Region region = getRegion(meta);
+		if (region == null) {
+			return;
+		}
+		Object[] values = new Object[meta.getAllFields().length];
+		Arrays.fill(values, NOT_CACHED);
+		for (int i = 0; i < fields.length; i++) {
+			values[fields[i].getIndex()] = fields[i].copyValue(fieldValues[i]);
+		}
+		synchronized (region) {
+			if (region.version != version) {
+				return;
+			}
+			// keep the values of the other fields
+			Object[] oldValues = region.getValues(id);
+			if (oldValues != null) {
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] == NOT_CACHED) {
+						values[i] = oldValues[i];
+					}
+				}
+			}
+			region.put(id, new CachedValues(values, meta
+					.getSharedCacheTtl()));
+		}
+	}
+
+	/**
+	 * Returns the region of the specified meta, or null if the meta is not
+	 * cached.
+	 * 
+	 * @param meta
+	 * @return the region of the specified meta
+	 */
+	private Region getRegion(ZPersistentMeta meta) {
+		if (meta.getSharedCacheSize() <= 0) {
+			return null;
+		}
+		Region region = m_regions.get(meta);
+		if (region == null) {
+			Region newRegion = new Region(meta);
+			region = m_regions.putIfAbsent(meta, newRegion);
+			if (region == null) {
+				region = newRegion;
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * The cached values of an object.
+	 */
+	private final static class CachedValues {
+
+		/**
+		 * The values of all the fields of the meta (NOT_CACHED for the fields
+		 * that are not cached).
+		 */
+		public final Object[] values;
+
+		/**
+		 * The time when this entry expires (0 if it never expires).
+		 */
+		public final long expirationTime;
+
+		public CachedValues(Object[] values, long ttl) {
+			this.values = values;
+			this.expirationTime = (ttl > 0) ? System.currentTimeMillis() + ttl
+					: 0;
+		}
+
+	}
+
+	/**
+	 * The cached objects of a meta, keyed by id, in access order. The access
+	 * must be synchronized on the region.
+	 */
+	private final static class Region extends
+			LinkedHashMap<String, CachedValues> {
+
+		private final static long serialVersionUID = 1L;
+
+		/**
+		 * The meta of the cached objects.
+		 */
+		private final ZPersistentMeta m_meta;
+
+		/**
+		 * The number of invalidations of this region.
+		 */
+		public long version; // initially 0
+
+		public Region(ZPersistentMeta meta) {
+			super(16, 0.75f, true);
+			m_meta = meta;
+		}
+
+		/**
+		 * Returns the cached values of the object with the specified id, or
+		 * null if the object is not cached or has expired.
+		 * 
+		 * @param id
+		 * @return the cached values
+		 */
+		public Object[] getValues(String id) {
+			CachedValues entry = get(id);
+			if (entry == null) {
+				return null;
+			}
+			if ((entry.expirationTime != 0)
+					&& (entry.expirationTime < System.currentTimeMillis())) {
+				remove(id);
+				return null;
+			}
+			return entry.values;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, CachedValues> eldest) {
+			return size() > m_meta.getSharedCacheSize();
+		}
+
+	}
+
+}
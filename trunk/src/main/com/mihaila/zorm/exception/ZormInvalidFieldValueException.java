@@ -36,7 +36,7 @@ public class ZormInvalidFieldValueException extends ZormException {
 	 */
 	public ZormInvalidFieldValueException(ZField field, Object value,
 			Throwable cause) {
-		super("Value: " + value.toString() + " is not valid for field: "
+		super("Value: " + value + " is not valid for field: "
 				+ field.toString(), cause);
 	}
 
@@ -22,6 +22,10 @@
 
 package com.mihaila.zorm.field;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
 import com.mihaila.zorm.ZField;
 import com.mihaila.zorm.ZPersistent;
 
@@ -32,6 +36,7 @@ public class ZBooleanField extends ZField {
 
 	public ZBooleanField() {
 		super();
+		setStorageKind(STORAGE_BOOLEAN);
 	}
 
 	/**
@@ -40,6 +45,7 @@ public class ZBooleanField extends ZField {
 	 */
 	public ZBooleanField(String name) {
 		super(name);
+		setStorageKind(STORAGE_BOOLEAN);
 	}
 
 	/* (non-Javadoc)
@@ -68,6 +74,48 @@ public class ZBooleanField extends ZField {
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see zorm.ZField#setSqlParameter(java.sql.PreparedStatement, int,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public void setSqlParameter(PreparedStatement stmt, int parameterIndex,
+			Object value) throws SQLException {
+		if (value == null) {
+			stmt.setNull(parameterIndex, Types.BOOLEAN);
+		} else {
+			stmt.setBoolean(parameterIndex, (Boolean) value);
+		}
+	}
+
+	/**
+	 * Returns the <code>boolean</code> value of this field from the specified
+	 * <code>ZPersistent</code> object, without boxing it. A
+	 * <code>ZormException</code> is throwned if the value is null.
+	 * 
+	 * @param persistent
+	 * @return the <code>boolean</code> value of this field from the specified
+	 *         <code>ZPersistent</code> object.
+	 */
+	public boolean getBoolean(ZPersistent persistent) {
+		return getPrimitiveFieldValue(persistent) != 0;
+	}
+
+	/**
+	 * Set the <code>boolean</code> value of this field from the specified
+	 * <code>ZPersistent</code> object. The value is not boxed unless
+	 * <code>ZPersistent.setFieldValue(ZField, Object)</code> or
+	 * <code>validate(Object)</code> is overwritten.
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	public void setBoolean(ZPersistent persistent, boolean value) {
+		setPrimitiveFieldValue(persistent, value ? 1 : 0);
+	}
+
 	/**
 	 * Returns the <code>Boolean</code> value of this field from the specified
 	 * <code>ZPersistent</code> object.
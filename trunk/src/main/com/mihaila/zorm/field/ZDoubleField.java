@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.field;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZPersistent;
+
+/**
+ * ZField corresponding to <code>java.lang.Double</code> type.
+ */
+public class ZDoubleField extends ZField {
+
+	public ZDoubleField() {
+		super();
+		setStorageKind(STORAGE_DOUBLE);
+	}
+
+	/**
+	 * @param name
+	 *            the column name in the SQL table
+	 */
+	public ZDoubleField(String name) {
+		super(name);
+		setStorageKind(STORAGE_DOUBLE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see zorm.ZField#validate(java.lang.Object)
+	 */
+	@Override
+	public void validate(Object value) {
+		if (value == null) {
+			checkIfNullValid();
+		} else {
+			@SuppressWarnings("unused")
+			double v = (Double) value;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see zorm.ZField#setSqlParameter(java.sql.PreparedStatement, int,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public void setSqlParameter(PreparedStatement stmt, int parameterIndex,
+			Object value) throws SQLException {
+		if (value == null) {
+			stmt.setNull(parameterIndex, Types.DOUBLE);
+		} else {
+			stmt.setDouble(parameterIndex, (Double) value);
+		}
+	}
+
+	/**
+	 * Returns the <code>double</code> value of this field from the specified
+	 * <code>ZPersistent</code> object, without boxing it. A
+	 * <code>ZormException</code> is throwned if the value is null.
+	 * 
+	 * @param persistent
+	 * @return the <code>double</code> value of this field from the specified
+	 *         <code>ZPersistent</code> object.
+	 */
+	public double getDouble(ZPersistent persistent) {
+		return Double.longBitsToDouble(getPrimitiveFieldValue(persistent));
+	}
+
+	/**
+	 * Set the <code>double</code> value of this field from the specified
+	 * <code>ZPersistent</code> object. The value is not boxed unless
+	 * <code>ZPersistent.setFieldValue(ZField, Object)</code> or
+	 * <code>validate(Object)</code> is overwritten.
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	public void setDouble(ZPersistent persistent, double value) {
+		setPrimitiveFieldValue(persistent, Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Returns the <code>Double</code> value of this field from the specified
+	 * <code>ZPersistent</code> object.
+	 * 
+	 * @param persistent
+	 * @return the <code>Double</code> value of this field from the specified
+	 *         <code>ZPersistent</code> object.
+	 */
+	public Double getValue(ZPersistent persistent) {
+		return (Double) persistent.getFieldValue(this);
+	}
+
+	/**
+	 * Set the <code>Double</code> value of this field from the specified
+	 * <code>ZPersistent</code> object.
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	public void setValue(ZPersistent persistent, Double value) {
+		persistent.setFieldValue(this, value);
+	}
+
+}
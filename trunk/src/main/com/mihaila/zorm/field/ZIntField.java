@@ -22,6 +22,10 @@
 
 package com.mihaila.zorm.field;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
 import com.mihaila.zorm.ZField;
 import com.mihaila.zorm.ZPersistent;
 
@@ -32,6 +36,7 @@ public class ZIntField extends ZField {
 
 	public ZIntField() {
 		super();
+		setStorageKind(STORAGE_INT);
 	}
 
 	/**
@@ -40,6 +45,7 @@ public class ZIntField extends ZField {
 	 */
 	public ZIntField(String name) {
 		super(name);
+		setStorageKind(STORAGE_INT);
 	}
 
 	/*
@@ -57,6 +63,48 @@ public class ZIntField extends ZField {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see zorm.ZField#setSqlParameter(java.sql.PreparedStatement, int,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public void setSqlParameter(PreparedStatement stmt, int parameterIndex,
+			Object value) throws SQLException {
+		if (value == null) {
+			stmt.setNull(parameterIndex, Types.INTEGER);
+		} else {
+			stmt.setInt(parameterIndex, (Integer) value);
+		}
+	}
+
+	/**
+	 * Returns the <code>int</code> value of this field from the specified
+	 * <code>ZPersistent</code> object, without boxing it. A
+	 * <code>ZormException</code> is throwned if the value is null.
+	 * 
+	 * @param persistent
+	 * @return the <code>int</code> value of this field from the specified
+	 *         <code>ZPersistent</code> object.
+	 */
+	public int getInt(ZPersistent persistent) {
+		return (int) getPrimitiveFieldValue(persistent);
+	}
+
+	/**
+	 * Set the <code>int</code> value of this field from the specified
+	 * <code>ZPersistent</code> object. The value is not boxed unless
+	 * <code>ZPersistent.setFieldValue(ZField, Object)</code> or
+	 * <code>validate(Object)</code> is overwritten.
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	public void setInt(ZPersistent persistent, int value) {
+		setPrimitiveFieldValue(persistent, value);
+	}
+
 	/**
 	 * Returns the <code>Integer</code> value of this field from the specified
 	 * <code>ZPersistent</code> object.
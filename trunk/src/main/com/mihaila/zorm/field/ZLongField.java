@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.field;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZPersistent;
+
+/**
+ * ZField corresponding to <code>java.lang.Long</code> type.
+ */
+public class ZLongField extends ZField {
+
+	public ZLongField() {
+		super();
+		setStorageKind(STORAGE_LONG);
+	}
+
+	/**
+	 * @param name
+	 *            the column name in the SQL table
+	 */
+	public ZLongField(String name) {
+		super(name);
+		setStorageKind(STORAGE_LONG);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see zorm.ZField#validate(java.lang.Object)
+	 */
+	@Override
+	public void validate(Object value) {
+		if (value == null) {
+			checkIfNullValid();
+		} else {
+			@SuppressWarnings("unused")
+			long v = (Long) value;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see zorm.ZField#setSqlParameter(java.sql.PreparedStatement, int,
+	 *      java.lang.Object)
+	 */
+	@Override
+	public void setSqlParameter(PreparedStatement stmt, int parameterIndex,
+			Object value) throws SQLException {
+		if (value == null) {
+			stmt.setNull(parameterIndex, Types.BIGINT);
+		} else {
+			stmt.setLong(parameterIndex, (Long) value);
+		}
+	}
+
+	/**
+	 * Returns the <code>long</code> value of this field from the specified
+	 * <code>ZPersistent</code> object, without boxing it. A
+	 * <code>ZormException</code> is throwned if the value is null.
+	 * 
+	 * @param persistent
+	 * @return the <code>long</code> value of this field from the specified
+	 *         <code>ZPersistent</code> object.
+	 */
+	public long getLong(ZPersistent persistent) {
+		return getPrimitiveFieldValue(persistent);
+	}
+
+	/**
+	 * Set the <code>long</code> value of this field from the specified
+	 * <code>ZPersistent</code> object. The value is not boxed unless
+	 * <code>ZPersistent.setFieldValue(ZField, Object)</code> or
+	 * <code>validate(Object)</code> is overwritten.
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	public void setLong(ZPersistent persistent, long value) {
+		setPrimitiveFieldValue(persistent, value);
+	}
+
+	/**
+	 * Returns the <code>Long</code> value of this field from the specified
+	 * <code>ZPersistent</code> object.
+	 * 
+	 * @param persistent
+	 * @return the <code>Long</code> value of this field from the specified
+	 *         <code>ZPersistent</code> object.
+	 */
+	public Long getValue(ZPersistent persistent) {
+		return (Long) persistent.getFieldValue(this);
+	}
+
+	/**
+	 * Set the <code>Long</code> value of this field from the specified
+	 * <code>ZPersistent</code> object.
+	 * 
+	 * @param persistent
+	 * @param value
+	 */
+	public void setValue(ZPersistent persistent, Long value) {
+		persistent.setFieldValue(this, value);
+	}
+
+}
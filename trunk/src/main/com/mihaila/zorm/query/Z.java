@@ -22,6 +22,8 @@
 
 package com.mihaila.zorm.query;
 
+import com.mihaila.zorm.ZField;
+
 /**
  * Contains static functions and constants used for constructing SQL queries.
  */
@@ -183,6 +185,57 @@ public class Z {
 		return com.mihaila.zutil.text.EncodeUtil.sqlEncode(ob.toString());
 	}
 
+	/**
+	 * Returns a new query parameter (a "?" placeholder) whose value is
+	 * specified when the compiled query is executed.
+	 * 
+	 * @return a new query parameter
+	 * @see ZSelectQuery#compile()
+	 */
+	public static ZQueryParameter param() {
+		return new ZQueryParameter(null);
+	}
+
+	/**
+	 * Returns a new query parameter (a "?" placeholder) whose value is
+	 * specified when the compiled query is executed and is set using the
+	 * specified field.
+	 * 
+	 * @param field
+	 * @return a new query parameter
+	 * @see ZSelectQuery#compile()
+	 */
+	public static ZQueryParameter param(ZField field) {
+		return new ZQueryParameter(field);
+	}
+
+	/**
+	 * Returns a new query parameter (a "?" placeholder) bound to the
+	 * specified value. Unlike <code>value(Object)</code>, the value is not
+	 * inlined in the SQL text, so the same SQL text (and prepared statement)
+	 * is used for different values. The parameter must be specified directly
+	 * as a fragment of the WHERE or HAVING clause.
+	 * 
+	 * @param value
+	 * @return a new query parameter
+	 */
+	public static ZQueryParameter bind(Object value) {
+		return new ZQueryParameter(null, value);
+	}
+
+	/**
+	 * Returns a new query parameter (a "?" placeholder) bound to the
+	 * specified value, which is set using the specified field.
+	 * 
+	 * @param field
+	 * @param value
+	 * @return a new query parameter
+	 * @see #bind(Object)
+	 */
+	public static ZQueryParameter bind(ZField field, Object value) {
+		return new ZQueryParameter(field, value);
+	}
+
 	/**
 	 * Returns a string representing the specified field with DESC keyword
 	 * appended, to be used in the SQL ORDER BY clause.
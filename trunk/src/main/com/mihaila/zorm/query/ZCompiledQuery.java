@@ -0,0 +1,804 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.query;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.query.ZSelectQuery.PrefetchInfo;
+import com.mihaila.zorm.query.ZSelectQuery.SelectInfo;
+
+/**
+ * An immutable SQL select query, created by <code>ZSelectQuery.compile()</code>.
+ * The SQL text, the layout of the selected items and the parameters are computed once, so the query can be executed many times,
+ * from any session and thread, with different parameter values. The query is
+ * executed using a <code>PreparedStatement</code> cached by the session.
+ */
+public final class ZCompiledQuery {
+
+	/**
+	 * Empty array of parameter values.
+	 */
+	final static Object[] NO_VALUES = new Object[0];
+
+	/**
+	 * Make the constructor to have package access because only the
+	 * <code>ZSelectQuery</code> needs to create <code>ZCompiledQuery</code>
+	 * objects.
+	 * 
+	 * @param sql
+	 * @param selectInfos
+	 *            the <code>SelectInfo</code> objects (must not be modified
+	 *            afterwards)
+	 * @param parameters
+	 *            the parameters, in the order of the placeholders
+	 * @param prefetchInfos
+	 *            the references to be prefetched after the query is executed
+	 * @param fetchSize
+	 * @param resultCacheTtl
+	 *            the time to live of the results in the query cache, in
+	 *            milliseconds (negative if the results are not cached)
+	 * @param resultCacheTables
+	 *            the tables (in lower case) whose writes invalidate the cached
+	 *            results
+	 */
+	ZCompiledQuery(String sql, SelectInfo[] selectInfos,
+			ZQueryParameter[] parameters, PrefetchInfo[] prefetchInfos,
+			int fetchSize, long resultCacheTtl, String[] resultCacheTables) {
+		m_sql = sql;
+		m_selectInfos = selectInfos;
+		boolean cachingResults = (resultCacheTtl >= 0);
+		for (int i = 0; i < selectInfos.length; i++) {
+			// the objects are cached by id
+			if (selectInfos[i].meta.getIdField() == null) {
+				cachingResults = false;
+			}
+		}
+		m_cachingResults = cachingResults;
+		m_resultCacheTtl = resultCacheTtl;
+		m_resultCacheTables = resultCacheTables;
+		m_parameters = parameters;
+		m_prefetchInfos = prefetchInfos;
+		m_fetchSize = fetchSize;
+		int numUnbound = 0;
+		for (ZQueryParameter parameter : parameters) {
+			if (!parameter.isBound()) {
+				numUnbound++;
+			}
+		}
+		m_numUnboundParameters = numUnbound;
+	}
+
+	/**
+	 * Returns the SQL text of this query.
+	 * 
+	 * @return the SQL text of this query
+	 */
+	public String getSql() {
+		return m_sql;
+	}
+
+	/**
+	 * Returns the number of parameters of this query (the number of values
+	 * that must be specified when the query is executed). The parameters with
+	 * bound values (see <code>Z.bind()</code>) are not counted.
+	 * 
+	 * @return the number of parameters of this query
+	 */
+	public int getNumParameters() {
+		return m_numUnboundParameters;
+	}
+
+	/**
+	 * Returns the values of the parameters with bound values (see
+	 * <code>Z.bind()</code>), in the order of the placeholders.
+	 * 
+	 * @return the bound values of the parameters
+	 */
+	public Object[] getBoundValues() {
+		Object[] values = new Object[m_parameters.length
+				- m_numUnboundParameters];
+		int i = 0;
+		for (ZQueryParameter parameter : m_parameters) {
+			if (parameter.isBound()) {
+				values[i++] = parameter.getValue();
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Executes the query in the specified session and returns only one object
+	 * as the result (the first selected item from the first row). A NULL
+	 * value is returned if the query didn't retrieve any results.
+	 * 
+	 * @param session
+	 * @param values
+	 *            the values of the parameters
+	 * @return the result of the query
+	 */
+	public Object executeUnique(ZSession session, Object... values) {
+		return executeQuery(session, values, true, true, true);
+	}
+
+	/**
+	 * Executes the query in the specified session and returns an array
+	 * containing the first selected item from all the rows.
+	 * 
+	 * @param session
+	 * @param values
+	 *            the values of the parameters
+	 * @return the result of the query
+	 * @see ZSelectQuery#executeUniqueSelect()
+	 */
+	public Object[] executeUniqueSelect(ZSession session, Object... values) {
+		return (Object[]) executeQuery(session, values, true, false, true);
+	}
+
+	/**
+	 * Executes the query in the specified session and returns a map with all
+	 * the selected items from the first row.
+	 * 
+	 * @param session
+	 * @param values
+	 *            the values of the parameters
+	 * @return the result of the query
+	 * @see ZSelectQuery#executeUniqueRow()
+	 */
+	@SuppressWarnings("unchecked")
+	// @SuppressWarnings because of the cast with generics
+	public Map<String, Object> executeUniqueRow(ZSession session,
+			Object... values) {
+		return (Map<String, Object>) executeQuery(session, values, false,
+				true, true);
+	}
+
+	/**
+	 * Executes the query in the specified session and returns a map with all
+	 * the selected items.
+	 * 
+	 * @param session
+	 * @param values
+	 *            the values of the parameters
+	 * @return the result of the query
+	 * @see ZSelectQuery#execute()
+	 */
+	@SuppressWarnings("unchecked")
+	// @SuppressWarnings because of the cast with generics
+	public Map<String, Object[]> execute(ZSession session, Object... values) {
+		return (Map<String, Object[]>) executeQuery(session, values, false,
+				false, true);
+	}
+
+	/**
+	 * Executes the query asynchronously in the specified session and returns
+	 * a <code>CompletableFuture</code> holding a map with all the selected
+	 * items.
+	 * 
+	 * @param session
+	 * @param values
+	 *            the values of the parameters
+	 * @return a <code>CompletableFuture</code> holding the result of the
+	 *         query
+	 * @see #execute(ZSession, Object[])
+	 * @see ZSession#runAsync(Callable)
+	 */
+	public CompletableFuture<Map<String, Object[]>> executeAsync(final ZSession session,
+			Object... values) {
+		checkSessionIsSet(session);
+		final Object[] valuesCopy = values.clone();
+		return session.runAsync(new Callable<Map<String, Object[]>>() {
+			public Map<String, Object[]> call() {
+				return execute(session, valuesCopy);
+			}
+		});
+	}
+
+	/**
+	 * Executes the query in the specified session and returns a forward-only
+	 * cursor over the results.
+	 * 
+	 * @param session
+	 * @param values
+	 *            the values of the parameters
+	 * @return a cursor over the results of the query
+	 * @see ZSelectQuery#iterate()
+	 */
+	public ZSelectCursor iterate(ZSession session, Object... values) {
+		return iterate(session, values, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return m_sql;
+	}
+
+	/**
+	 * Executes the query and returns a cursor over the results. The cursor
+	 * uses its own SQL statement.
+	 * 
+	 * @param session
+	 * @param values
+	 * @param usingPreparedStatement
+	 *            if false, and the query has no parameters, a simple
+	 *            <code>Statement</code> is used
+	 * @return a cursor over the results of the query
+	 */
+	ZSelectCursor iterate(ZSession session, Object[] values,
+			boolean usingPreparedStatement) {
+		checkSessionIsSet(session);
+		session.logQuery(m_sql);
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			long startTime;
+			if (usingPreparedStatement || (m_parameters.length > 0)) {
+				PreparedStatement preparedStmt = session.getSqlConnection()
+						.prepareStatement(m_sql, ResultSet.TYPE_FORWARD_ONLY,
+								ResultSet.CONCUR_READ_ONLY);
+				stmt = preparedStmt;
+				setParameters(preparedStmt, values);
+				if (m_fetchSize != 0) {
+					stmt.setFetchSize(m_fetchSize);
+				}
+				startTime = System.nanoTime();
+				rs = preparedStmt.executeQuery();
+			} else {
+				stmt = session.getSqlConnection().createStatement(
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				if (m_fetchSize != 0) {
+					stmt.setFetchSize(m_fetchSize);
+				}
+				startTime = System.nanoTime();
+				rs = stmt.executeQuery(m_sql);
+			}
+			long fetchStartTime = System.nanoTime();
+			ResultSetMetaData rsm = rs.getMetaData();
+			String[] names = getSelectedNames(rsm, getNumSelected(rsm));
+			return new ZSelectCursor(this, session, stmt, rs, names,
+					getExplainedParameters(values), startTime, fetchStartTime);
+		} catch (Exception e) {
+			ZSelectCursor.close(stmt, rs);
+			throw new ZormException("Error executing the query : " + m_sql
+					+ '.', e);
+		}
+	}
+
+	/**
+	 * Executes the SELECT query and returns the corect object (based on the
+	 * uniqueSelect and uniqueRow parameters).
+	 * 
+	 * @see ZSelectQuery.executeUnique()
+	 * @see ZSelectQuery.executeUniqueSelect()
+	 * @see ZSelectQuery.executeUniqueRow()
+	 * @see ZSelectQuery.execute()
+	 * 
+	 * @param session
+	 * @param values
+	 * @param uniqueSelect
+	 * @param uniqueRow
+	 * @param usingPreparedStatement
+	 *            if false, and the query has no parameters, the
+	 *            <code>Statement</code> of the session is used instead of a
+	 *            cached <code>PreparedStatement</code>
+	 * @return the object result.
+	 */
+	Object executeQuery(ZSession session, Object[] values,
+			boolean uniqueSelect, boolean uniqueRow,
+			boolean usingPreparedStatement) {
+		checkSessionIsSet(session);
+		ZQueryCache queryCache = ZManager.getQueryCache();
+		List<Object> cacheKey = null;
+		long cacheVersion = 0;
+		if (m_cachingResults && (ZManager.getQueryCacheSize() > 0)
+				&& session.isUsingQueryCache(m_resultCacheTables)) {
+			cacheKey = getCacheKey(values, uniqueSelect, uniqueRow);
+			ZQueryCache.Result cachedResult = queryCache.get(cacheKey);
+			if (cachedResult != null) {
+				// a cache hit is not a database query
+				if (ZManager.getLogger().isDebugEnabled()) {
+					ZManager.getLogger().debug(
+							"SESSION" + session.getSessionId()
+									+ ": cached query: \"" + m_sql + '"');
+				}
+				ArrayList<Object[]> rows = readCachedRows(session,
+						cachedResult.rows);
+				int nSelected = uniqueSelect ? 1 : cachedResult.names.length;
+				if (!rows.isEmpty()) {
+					processSelectedObjects(session, rows, nSelected);
+				}
+				return getResult(rows, cachedResult.names, nSelected,
+						uniqueSelect, uniqueRow);
+			}
+			cacheVersion = queryCache.getVersion();
+		}
+		session.logQuery(m_sql);
+		ResultSet rs = null;
+
+		try {
+			long startTime;
+			if (usingPreparedStatement || (m_parameters.length > 0)) {
+				PreparedStatement stmt = session.getPreparedStatement(m_sql);
+				setParameters(stmt, values);
+				startTime = System.nanoTime();
+				rs = stmt.executeQuery();
+			} else {
+				Statement stmt = session.getSqlStatement();
+				startTime = System.nanoTime();
+				rs = stmt.executeQuery(m_sql);
+			}
+			long fetchStartTime = System.nanoTime();
+			ResultSetMetaData rsm = rs.getMetaData();
+
+			// determine the number of selected items
+			int nSelected = getNumSelected(rsm);
+			if (uniqueSelect) {
+				nSelected = 1;
+			}
+
+			// get data
+			ArrayList<Object[]> rows = new ArrayList<Object[]>();
+			while (rs.next()) {
+				Object[] row = new Object[nSelected];
+				readRow(session, rs, row);
+				rows.add(row);
+				if (uniqueRow) {
+					break;
+				}
+			}
+			int nRows = rows.size();
+			session.queryExecuted(m_sql, getExplainedParameters(values),
+					startTime, fetchStartTime, nRows);
+			String[] names = uniqueSelect ? new String[1] : getSelectedNames(
+					rsm, nSelected);
+			if (cacheKey != null) {
+				queryCache.put(cacheKey, new ZQueryCache.Result(names,
+						getCachedRows(rows), m_resultCacheTables,
+						m_resultCacheTtl), cacheVersion);
+			}
+			if (nRows > 0) {
+				processSelectedObjects(session, rows, nSelected);
+			}
+			return getResult(rows, names, nSelected, uniqueSelect, uniqueRow);
+		} catch (Exception e) {
+			throw new ZormException("Error executing the query : " + m_sql
+					+ '.', e);
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (Exception e) {
+				throw new ZormException("Error closing the SQL ResultSet.", e);
+			} finally {
+				rs = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the result of the query from the specified rows (based on the
+	 * uniqueSelect and uniqueRow parameters).
+	 * 
+	 * @param rows
+	 * @param names
+	 *            the names of the selected items (not used if uniqueSelect is
+	 *            true)
+	 * @param nSelected
+	 * @param uniqueSelect
+	 * @param uniqueRow
+	 * @return the result of the query
+	 */
+	private static Object getResult(ArrayList<Object[]> rows, String[] names,
+			int nSelected, boolean uniqueSelect, boolean uniqueRow) {
+		int nRows = rows.size();
+		if (uniqueSelect) {
+			if (uniqueRow) {
+				return (nRows == 0) ? null : rows.get(0)[0];
+			} else {
+				Object[] result = new Object[nRows];
+				for (int i = 0; i < nRows; i++) {
+					result[i] = rows.get(i)[0];
+				}
+				return result;
+			}
+		} else {
+			Map<String, Object> resultMap = new HashMap<String, Object>();
+			for (int iSelected = 0; iSelected < nSelected; iSelected++) {
+				Object value;
+				if (uniqueRow) {
+					value = (nRows == 0) ? null : rows.get(0)[iSelected];
+				} else {
+					Object[] column = new Object[nRows];
+					for (int i = 0; i < nRows; i++) {
+						column[i] = rows.get(i)[iSelected];
+					}
+					value = column;
+				}
+				resultMap.put(names[iSelected], value);
+			}
+			return resultMap;
+		}
+	}
+
+	/**
+	 * Returns the key of the results of this query with the specified
+	 * parameter values in the query cache.
+	 * 
+	 * @param values
+	 * @param uniqueSelect
+	 * @param uniqueRow
+	 * @return the key of the results in the query cache
+	 */
+	private List<Object> getCacheKey(Object[] values, boolean uniqueSelect,
+			boolean uniqueRow) {
+		checkNumValues(values);
+		ArrayList<Object> key = new ArrayList<Object>(m_parameters.length + 3);
+		key.add(m_sql);
+		key.add(Boolean.valueOf(uniqueSelect));
+		key.add(Boolean.valueOf(uniqueRow));
+		int iValue = 0;
+		for (ZQueryParameter parameter : m_parameters) {
+			key.add(parameter.isBound() ? parameter.getValue()
+					: values[iValue++]);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the rows to be added to the query cache: the selected objects
+	 * are replaced by their ids.
+	 * 
+	 * @param rows
+	 * @return the rows to be cached
+	 */
+	private Object[][] getCachedRows(ArrayList<Object[]> rows) {
+		Object[][] cachedRows = new Object[rows.size()][];
+		for (int iRow = 0; iRow < cachedRows.length; iRow++) {
+			Object[] row = rows.get(iRow).clone();
+			int nMetas = Math.min(m_selectInfos.length, row.length);
+			for (int i = 0; i < nMetas; i++) {
+				if (row[i] != null) {
+					row[i] = ((ZPersistent) row[i]).getId();
+				}
+			}
+			cachedRows[iRow] = row;
+		}
+		return cachedRows;
+	}
+
+	/**
+	 * Returns the rows of a cached result, with the ids of the selected
+	 * objects replaced by the objects, which are retrieved in the specified
+	 * session (the objects not loaded in the session are fetched with "select
+	 * ... in ..." queries).
+	 * 
+	 * @param session
+	 * @param cachedRows
+	 * @return the rows of the cached result
+	 */
+	private ArrayList<Object[]> readCachedRows(ZSession session,
+			Object[][] cachedRows) {
+		ArrayList<Object[]> rows = new ArrayList<Object[]>(cachedRows.length);
+		for (Object[] cachedRow : cachedRows) {
+			rows.add(cachedRow.clone());
+		}
+		if (rows.isEmpty()) {
+			return rows;
+		}
+		int nMetas = Math.min(m_selectInfos.length, rows.get(0).length);
+		for (int i = 0; i < nMetas; i++) {
+			ArrayList<String> ids = new ArrayList<String>(rows.size());
+			for (Object[] row : rows) {
+				if (row[i] != null) {
+					ids.add((String) row[i]);
+				}
+			}
+			ZPersistent[] obs = session.get(m_selectInfos[i].meta, ids
+					.toArray(new String[ids.size()]), m_selectInfos[i].fields);
+			int iOb = 0;
+			for (Object[] row : rows) {
+				if (row[i] != null) {
+					row[i] = obs[iOb++];
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Read the current row of the specified <code>ResultSet</code> into the
+	 * specified array. The <code>ZPersistentMeta</code> objects from the
+	 * SELECT clause are retrieved first (as <code>ZPersistent</code>
+	 * objects), followed by the other selected columns. Only the first
+	 * <code>row.length</code> selected items are read.
+	 * 
+	 * @param session
+	 * @param rs
+	 * @param row
+	 * @throws SQLException
+	 */
+	void readRow(ZSession session, ResultSet rs, Object[] row)
+			throws SQLException {
+		int nSelected = row.length;
+		int iSelected = 0;
+		int iColumn = 1;
+		for (int i = 0; i < m_selectInfos.length; i++) {
+			if (iSelected == nSelected) {
+				return;
+			}
+			SelectInfo selectInfo = m_selectInfos[i];
+			row[iSelected++] = session.getAndFetchFromResultSet(
+					selectInfo.meta, selectInfo.fields, rs, iColumn);
+			if (selectInfo.meta.getIdField() != null) {
+				iColumn++;
+			}
+			iColumn += selectInfo.fields.length;
+		}
+		while (iSelected < nSelected) {
+			row[iSelected++] = rs.getObject(iColumn++);
+		}
+	}
+
+	/**
+	 * Process the objects of each <code>ZPersistentMeta</code> from the
+	 * SELECT clause: the objects are marked as loaded together (for the
+	 * batch fetching of their lazy fields) and the objects they reference are
+	 * loaded, as specified with
+	 * <code>ZSelectQuery.prefetch(ZStringField, ZPersistentMeta)</code>.
+	 * 
+	 * @param session
+	 * @param rows
+	 * @param nSelected
+	 */
+	private void processSelectedObjects(ZSession session,
+			ArrayList<Object[]> rows, int nSelected) {
+		int nMetas = Math.min(m_selectInfos.length, nSelected);
+		for (int i = 0; i < nMetas; i++) {
+			Object[] obs = new Object[rows.size()];
+			for (int iRow = 0; iRow < obs.length; iRow++) {
+				obs[iRow] = rows.get(iRow)[i];
+			}
+			session.setLoadedTogether(obs);
+			for (PrefetchInfo prefetchInfo : m_prefetchInfos) {
+				if (m_selectInfos[i].meta == prefetchInfo.refField
+						.getPersistentMeta()) {
+					session.prefetch(obs, prefetchInfo.refField,
+							prefetchInfo.refMeta);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the parameters of the specified statement. The bound parameters use
+	 * their own values; the number of values must be equal to the number of
+	 * the other parameters.
+	 * 
+	 * @param stmt
+	 * @param values
+	 * @throws SQLException
+	 */
+	private void setParameters(PreparedStatement stmt, Object[] values)
+			throws SQLException {
+		checkNumValues(values);
+		int iValue = 0;
+		for (int i = 0; i < m_parameters.length; i++) {
+			ZQueryParameter parameter = m_parameters[i];
+			if (parameter.isBound()) {
+				parameter.setSqlParameter(stmt, i + 1, parameter.getValue());
+			} else {
+				parameter.setSqlParameter(stmt, i + 1, values[iValue++]);
+			}
+		}
+	}
+
+	/**
+	 * Checks that the number of the specified values is equal to the number
+	 * of the parameters without a bound value. If not, a
+	 * <code>ZormException</code> is throwned.
+	 * 
+	 * @param values
+	 */
+	private void checkNumValues(Object[] values) {
+		if (values.length != m_numUnboundParameters) {
+			throw new ZormException("The query: " + m_sql + " has "
+					+ m_numUnboundParameters + " unbound parameters, but "
+					+ values.length
+					+ " values were specified (the values of the parameters "
+					+ "are specified when the compiled query is executed).");
+		}
+	}
+
+	/**
+	 * Returns the values of all the parameters of the query (the bound values
+	 * and the specified values), used to explain the query if it is slow.
+	 * 
+	 * @param values
+	 * @return the values of all the parameters of the query, or null if the
+	 *         slow queries are not explained
+	 */
+	private Object[] getExplainedParameters(Object[] values) {
+		if (!ZManager.isExplainingSlowQueries()) {
+			return null;
+		}
+		Object[] result = new Object[m_parameters.length];
+		int iValue = 0;
+		for (int i = 0; i < m_parameters.length; i++) {
+			ZQueryParameter parameter = m_parameters[i];
+			result[i] = parameter.isBound() ? parameter.getValue()
+					: values[iValue++];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of selected items (the <code>ZPersistentMeta</code>
+	 * objects from the SELECT clause and the other selected columns) of the
+	 * query results.
+	 * 
+	 * @param rsm
+	 * @return the number of selected items
+	 * @throws SQLException
+	 */
+	private int getNumSelected(ResultSetMetaData rsm) throws SQLException {
+		int nSelected = 0;
+		int nNeededColumns = 0;
+		for (SelectInfo selectInfo : m_selectInfos) {
+			if (selectInfo.meta.getIdField() != null) {
+				nNeededColumns++;
+			}
+			nNeededColumns += selectInfo.fields.length;
+			nSelected++;
+		}
+		int nColumns = rsm.getColumnCount();
+		if (nNeededColumns > nColumns) {
+			throw new ZormException(
+					"Insufficient columns returned by the query: expected at least: "
+							+ nNeededColumns + "; actual: " + nColumns + '.');
+		}
+		nSelected += (nColumns - nNeededColumns);
+		if (nSelected == 0) {
+			throw new ZormException(
+					"The number of selected items is 0. This means that the select clause of the query was empty.");
+		}
+		return nSelected;
+	}
+
+	/**
+	 * Returns the names of the selected items: the table alias for the
+	 * <code>ZPersistentMeta</code> objects from the SELECT clause and the
+	 * column label for the other selected columns.
+	 * 
+	 * @param rsm
+	 * @param nSelected
+	 * @return the names of the selected items
+	 * @throws SQLException
+	 */
+	private String[] getSelectedNames(ResultSetMetaData rsm, int nSelected)
+			throws SQLException {
+		String[] names = new String[nSelected];
+		HashSet<String> usedNames = new HashSet<String>();
+		int iSelected = 0;
+		int iColumn = 1;
+		for (SelectInfo selectInfo : m_selectInfos) {
+			if (iSelected == nSelected) {
+				return names;
+			}
+			usedNames.add(selectInfo.tableAlias);
+			names[iSelected++] = selectInfo.tableAlias;
+			if (selectInfo.meta.getIdField() != null) {
+				iColumn++;
+			}
+			iColumn += selectInfo.fields.length;
+		}
+		while (iSelected < nSelected) {
+			String label = rsm.getColumnLabel(iColumn++);
+			if (!usedNames.add(label)) {
+				throw new ZormException("Duplicate selected item name: "
+						+ label + '.');
+			}
+			names[iSelected++] = label;
+		}
+		return names;
+	}
+
+	/**
+	 * Checks that the specified session is set. If not, a
+	 * <code>ZormException</code> is throwned.
+	 * 
+	 * @param session
+	 */
+	private static void checkSessionIsSet(ZSession session) {
+		if (session == null) {
+			throw new ZormException("The session is not set.");
+		}
+	}
+
+	/**
+	 * The SQL text of the query.
+	 */
+	private final String m_sql;
+
+	/**
+	 * The <code>SelectInfo</code> objects used in retrieving the results.
+	 */
+	private final SelectInfo[] m_selectInfos;
+
+	/**
+	 * The references to be prefetched after the query is executed.
+	 */
+	private final PrefetchInfo[] m_prefetchInfos;
+
+	/**
+	 * The parameters of the query, in the order of the placeholders.
+	 */
+	private final ZQueryParameter[] m_parameters;
+
+	/**
+	 * The number of parameters without a bound value.
+	 */
+	private final int m_numUnboundParameters;
+
+	/**
+	 * The number of rows to be fetched at once by the JDBC driver when the
+	 * query is iterated (0 means the driver default).
+	 */
+	private final int m_fetchSize;
+
+	/**
+	 * If true, the results of the query are cached in the query cache.
+	 */
+	private final boolean m_cachingResults;
+
+	/**
+	 * The time to live of the results in the query cache, in milliseconds (0
+	 * if the results don't expire).
+	 */
+	private final long m_resultCacheTtl;
+
+	/**
+	 * The tables (in lower case) whose writes invalidate the cached results.
+	 */
+	private final String[] m_resultCacheTables;
+
+}
@@ -22,6 +22,10 @@
 
 package com.mihaila.zorm.query;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class ZExpression {
 
 	/**
@@ -35,7 +39,7 @@ public class ZExpression {
 			m_expr.append(" AND ");
 		}
 		m_expr.append('(');
-		m_expr.append(fragment1);
+		appendFragment(fragment1);
 		m_expr.append(')');
 		return this;
 	}
@@ -52,9 +56,9 @@ public class ZExpression {
 			m_expr.append(" AND ");
 		}
 		m_expr.append('(');
-		m_expr.append(fragment1);
+		appendFragment(fragment1);
 		m_expr.append(' ');
-		m_expr.append(fragment2);
+		appendFragment(fragment2);
 		m_expr.append(')');
 		return this;
 	}
@@ -72,11 +76,11 @@ public class ZExpression {
 			m_expr.append(" AND ");
 		}
 		m_expr.append('(');
-		m_expr.append(fragment1);
+		appendFragment(fragment1);
 		m_expr.append(' ');
-		m_expr.append(fragment2);
+		appendFragment(fragment2);
 		m_expr.append(' ');
-		m_expr.append(fragment3);
+		appendFragment(fragment3);
 		m_expr.append(')');
 		return this;
 	}
@@ -88,6 +92,7 @@ public class ZExpression {
 	 * @return this
 	 */
 	public ZExpression expr(Object... fragments) {
+		m_modCount++;
 		if (m_expr.length() != 0) {
 			m_expr.append(" AND ");
 		}
@@ -97,8 +102,9 @@ public class ZExpression {
 			if (i++ > 0) {
 				m_expr.append(' ');
 			}
-			m_expr.append(fragment);
+			appendFragment(fragment);
 		}
+		m_expr.append(')');
 		return this;
 	}
 
@@ -116,11 +122,11 @@ public class ZExpression {
 			m_expr.append(" AND ");
 		}
 		m_expr.append('(');
-		m_expr.append(element);
+		appendFragment(element);
 		m_expr.append(" BETWEEN ");
-		m_expr.append(lowLimit);
+		appendFragment(lowLimit);
 		m_expr.append(" AND ");
-		m_expr.append(highLimit);
+		appendFragment(highLimit);
 		m_expr.append(')');
 		return this;
 	}
@@ -137,14 +143,14 @@ public class ZExpression {
 			m_expr.append(" AND ");
 		}
 		m_expr.append('(');
-		m_expr.append(element);
+		appendFragment(element);
 		m_expr.append(" IN (");
 		int i = 0;
 		for (Object value : values) {
 			if (i++ > 0) {
 				m_expr.append(", ");
 			}
-			m_expr.append(value);
+			appendFragment(value);
 		}
 		m_expr.append("))");
 		return this;
@@ -156,19 +162,61 @@ public class ZExpression {
 	 * @return this
 	 */
 	public ZExpression clear() {
+		m_modCount++;
 		m_expr.delete(0, m_expr.length());
+		if (m_parameters != null) {
+			m_parameters.clear();
+		}
 		return this;
 	}
 
 	/**
-	 * Get the internal string builder holding the expression.
+	 * Returns the parameters (<code>ZQueryParameter</code> objects) of this
+	 * expression, in the order in which they were added. Only the parameters
+	 * specified directly as fragments are tracked.
+	 * 
+	 * @return the parameters of this expression
+	 */
+	public List<ZQueryParameter> getParameters() {
+		if (m_parameters == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(m_parameters);
+	}
+
+	/**
+	 * Get the internal string builder holding the expression. Each call
+	 * counts as a modification of the expression, so the builder should be
+	 * obtained again for each change made after a query was executed.
 	 * 
 	 * @return the internal string builder holding the expression
 	 */
 	public StringBuilder getStringBuilder() {
+		// the caller can change the expression
+		m_modCount++;
+		return m_expr;
+	}
+
+	/**
+	 * Get the internal string builder holding the expression, without
+	 * counting it as a modification.
+	 * 
+	 * @return the internal string builder holding the expression
+	 */
+	final StringBuilder getExpr() {
 		return m_expr;
 	}
 
+	/**
+	 * Returns the number of modifications of this expression. The queries
+	 * use it to know when their compiled form is out of date.
+	 * 
+	 * @return the number of modifications of this expression
+	 */
+	final int getModCount() {
+		return m_modCount;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -179,8 +227,29 @@ public class ZExpression {
 		return m_expr.toString();
 	}
 
+	/**
+	 * Append the specified fragment to the expression, keeping track of the
+	 * parameters.
+	 * 
+	 * @param fragment
+	 */
+	private void appendFragment(Object fragment) {
+		m_modCount++;
+		if (fragment instanceof ZQueryParameter) {
+			if (m_parameters == null) {
+				m_parameters = new ArrayList<ZQueryParameter>();
+			}
+			m_parameters.add((ZQueryParameter) fragment);
+		}
+		m_expr.append(fragment);
+	}
+
 	private final static int BUFFER_CAPACITY = 128;
 
 	private StringBuilder m_expr = new StringBuilder(BUFFER_CAPACITY);
 
+	private ArrayList<ZQueryParameter> m_parameters; // initially null
+
+	private int m_modCount; // default 0
+
 }
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.query;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZPersistentMeta;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormException;
+
+/**
+ * Iterator over the pages of results of a <code>ZSelectQuery</code> using the
+ * keyset (seek) pagination, created by
+ * <code>ZSelectQuery.iteratePages(ZField[], boolean, int, boolean)</code>.
+ * Each page is a map with all the selected items, as returned by
+ * <code>ZSelectQuery.execute()</code>. A page is read with a query selecting
+ * the rows following the last row of the previous page, so reading a page
+ * doesn't get slower as the iteration advances.
+ * 
+ * If the reading ahead is enabled, the next page is read asynchronously in
+ * the session (see <code>ZSession.runAsync(Callable)</code>) as soon as a
+ * page is returned. Meanwhile, the objects of the returned page can be read
+ * (their selected fields are initialized), but the session must not be used
+ * directly (e.g. to fetch other fields) until the next page is requested or
+ * <code>close()</code> is called.
+ * 
+ * @see ZSelectQuery#seek(ZField[], Object[], boolean)
+ */
+public class ZPageIterator implements Iterator<Map<String, Object[]>>,
+		Iterable<Map<String, Object[]>> {
+
+	/**
+	 * The session in which the objects are initialized.
+	 */
+	private ZSession m_session;
+
+	/**
+	 * The query reading the first page.
+	 */
+	private ZCompiledQuery m_firstPageQuery;
+
+	/**
+	 * The query reading the page following the specified key values.
+	 */
+	private ZCompiledQuery m_nextPageQuery;
+
+	/**
+	 * The key fields of the pagination.
+	 */
+	private ZField[] m_keyFields;
+
+	/**
+	 * The names of the selected items holding the key fields.
+	 */
+	private String[] m_keyNames;
+
+	/**
+	 * The maximum number of rows of a page.
+	 */
+	private int m_pageSize;
+
+	/**
+	 * If true, the next page is read asynchronously after a page is returned.
+	 */
+	private boolean m_readingAhead;
+
+	/**
+	 * If true, the objects of the previous page are dettached from the
+	 * session when the next page is returned.
+	 */
+	private boolean m_dettachingPages; // default false
+
+	/**
+	 * The key values of the last row of the last returned page (null before
+	 * the first page is returned).
+	 */
+	private Object[] m_lastValues; // initially null
+
+	/**
+	 * The last page returned by <code>next()</code>.
+	 */
+	private Map<String, Object[]> m_lastPage; // initially null
+
+	/**
+	 * The page that was read, but not yet returned by <code>next()</code>.
+	 */
+	private Map<String, Object[]> m_page; // initially null
+
+	/**
+	 * The page being read ahead (null if no page is being read).
+	 */
+	private Future<Map<String, Object[]>> m_pageFuture; // initially null
+
+	/**
+	 * If true, there are no more pages to be read.
+	 */
+	private boolean m_finished; // default false
+
+	/**
+	 * Make the constructor to have package access because only the
+	 * <code>ZSelectQuery</code> needs to create <code>ZPageIterator</code>
+	 * objects.
+	 * 
+	 * @param session
+	 * @param firstPageQuery
+	 * @param nextPageQuery
+	 *            the query having the key values as parameters
+	 * @param keyFields
+	 * @param keyNames
+	 * @param pageSize
+	 * @param readingAhead
+	 */
+	ZPageIterator(ZSession session, ZCompiledQuery firstPageQuery,
+			ZCompiledQuery nextPageQuery, ZField[] keyFields,
+			String[] keyNames, int pageSize, boolean readingAhead) {
+		m_session = session;
+		m_firstPageQuery = firstPageQuery;
+		m_nextPageQuery = nextPageQuery;
+		m_keyFields = keyFields;
+		m_keyNames = keyNames;
+		m_pageSize = pageSize;
+		m_readingAhead = readingAhead;
+	}
+
+	/**
+	 * Returns the key values of the last row of the last page returned by
+	 * <code>next()</code> (null before the first page is returned). The
+	 * values can be used to continue the pagination later, with
+	 * <code>ZSelectQuery.seek(ZField[], Object[], boolean)</code>.
+	 * 
+	 * @return the key values of the last returned row
+	 */
+	public final Object[] getLastValues() {
+		return (m_lastValues == null) ? null : m_lastValues.clone();
+	}
+
+	/**
+	 * Returns true if the objects of the previous page are dettached from the
+	 * session when the next page is returned.
+	 * 
+	 * @return the dettachingPages state
+	 */
+	public final boolean isDettachingPages() {
+		return m_dettachingPages;
+	}
+
+	/**
+	 * If set to true, the <code>ZPersistent</code> objects of the previous
+	 * page are dettached from the session (removed from the object cache)
+	 * when the next page is returned. This keeps the session cache from
+	 * growing when a large number of pages is read. The modified objects stay
+	 * in the session, so their changes are not lost. The default value is
+	 * false.
+	 * 
+	 * @param dettachingPages
+	 */
+	public final void setDettachingPages(boolean dettachingPages) {
+		m_dettachingPages = dettachingPages;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public final boolean hasNext() {
+		if (m_page != null) {
+			return true;
+		}
+		if (m_pageFuture != null) {
+			m_page = waitForPage();
+		} else if (m_finished) {
+			return false;
+		} else if (m_lastValues == null) {
+			m_page = m_firstPageQuery.execute(m_session);
+		} else {
+			m_page = m_nextPageQuery.execute(m_session, m_lastValues);
+		}
+		if (getNumRows(m_page) == 0) {
+			m_page = null;
+			m_finished = true;
+		}
+		return (m_page != null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#next()
+	 */
+	public final Map<String, Object[]> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Map<String, Object[]> page = m_page;
+		m_page = null;
+		dettachLastPage();
+		int numRows = getNumRows(page);
+		m_lastValues = new Object[m_keyFields.length];
+		for (int i = 0; i < m_keyFields.length; i++) {
+			ZPersistent ob = (ZPersistent) page.get(m_keyNames[i])[numRows - 1];
+			m_lastValues[i] = ob.getFieldValue(m_keyFields[i]);
+		}
+		if (numRows < m_pageSize) {
+			m_finished = true;
+		} else if (m_readingAhead) {
+			m_pageFuture = m_nextPageQuery.executeAsync(m_session,
+					m_lastValues);
+		}
+		m_lastPage = page;
+		return page;
+	}
+
+	/**
+	 * The operation is not supported.
+	 * 
+	 * @see java.util.Iterator#remove()
+	 */
+	public final void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Iterable#iterator()
+	 */
+	public final Iterator<Map<String, Object[]>> iterator() {
+		return this;
+	}
+
+	/**
+	 * Stop the iteration: the page being read ahead, if any, is awaited (so
+	 * that the session can be used again) and discarded.
+	 */
+	public final void close() {
+		m_finished = true;
+		m_page = null;
+		if (m_pageFuture != null) {
+			waitForPage();
+		}
+	}
+
+	/**
+	 * Waits for the page being read ahead and returns it.
+	 * 
+	 * @return the page read ahead
+	 */
+	private Map<String, Object[]> waitForPage() {
+		Future<Map<String, Object[]>> pageFuture = m_pageFuture;
+		m_pageFuture = null;
+		try {
+			return pageFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ZormException("Interrupted while reading the next page.",
+					e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ZormException("Error reading the next page.", e
+					.getCause());
+		}
+	}
+
+	/**
+	 * Dettach the <code>ZPersistent</code> objects of the last page that are
+	 * not modified from the session, if the dettachingPages state is set.
+	 */
+	private void dettachLastPage() {
+		if (!m_dettachingPages || (m_lastPage == null)) {
+			return;
+		}
+		for (Object[] column : m_lastPage.values()) {
+			for (Object value : column) {
+				if (!(value instanceof ZPersistent)) {
+					continue;
+				}
+				ZPersistent ob = (ZPersistent) value;
+				ZPersistentMeta meta = ob.getMeta();
+				if ((ob.getSession() == m_session)
+						&& (meta.getIdField() != null)) {
+					// the modified objects are not evicted
+					m_session.evict(meta, ob.getId());
+				}
+			}
+		}
+		m_lastPage = null;
+	}
+
+	/**
+	 * Returns the number of rows of the specified page.
+	 * 
+	 * @param page
+	 * @return the number of rows of the page
+	 */
+	private static int getNumRows(Map<String, Object[]> page) {
+		for (Object[] column : page.values()) {
+			return column.length;
+		}
+		return 0;
+	}
+
+}
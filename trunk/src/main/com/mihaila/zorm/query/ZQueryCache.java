@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.query;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mihaila.zorm.ZManager;
+
+/**
+ * Process-wide cache of the results of the select queries, shared by all the
+ * sessions. Only the queries marked with
+ * <code>ZSelectQuery.cacheResults(long, String...)</code> are cached, keyed by
+ * their SQL text and parameter values. The cache holds the ids of the
+ * selected objects (which are retrieved again through the session cache) and
+ * the values of the other selected columns. The results are evicted in LRU
+ * order, when their time to live expires, or when a session writes to one of
+ * the tables read by the query. The writes made through the SQL connection of
+ * a session are not detected: the tables must be invalidated explicitly with
+ * <code>invalidate(String)</code>.
+ */
+public class ZQueryCache {
+
+	/**
+	 * The cached results, keyed by the query and the parameter values, in
+	 * access order.
+	 */
+	private final LinkedHashMap<List<Object>, Result> m_results = new LinkedHashMap<List<Object>, Result>(
+			16, 0.75f, true);
+
+	/**
+	 * The keys of the cached results, for each table (in lower case) read by
+	 * the queries.
+	 */
+	private final HashMap<String, HashSet<List<Object>>> m_keysByTable = new HashMap<String, HashSet<List<Object>>>();
+
+	/**
+	 * The number of invalidations made so far (used as a version of the
+	 * cache).
+	 */
+	private long m_numInvalidations; // default 0
+
+	/**
+	 * The value of <code>m_numInvalidations</code> after the last
+	 * invalidation of each table (in lower case).
+	 */
+	private final HashMap<String, Long> m_invalidationVersions = new HashMap<String, Long>();
+
+	/**
+	 * The number of lookups that found the query results.
+	 */
+	private final AtomicLong m_numHits = new AtomicLong();
+
+	/**
+	 * The number of lookups that did not find the query results.
+	 */
+	private final AtomicLong m_numMisses = new AtomicLong();
+
+	/**
+	 * Returns the number of lookups that found the query results in this
+	 * cache.
+	 * 
+	 * @return the number of hits
+	 */
+	public final long getNumHits() {
+		return m_numHits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that did not find the query results in
+	 * this cache.
+	 * 
+	 * @return the number of misses
+	 */
+	public final long getNumMisses() {
+		return m_numMisses.get();
+	}
+
+	/**
+	 * Returns the number of query results cached (including the expired
+	 * results that were not yet evicted).
+	 * 
+	 * @return the number of query results cached
+	 */
+	public final synchronized int size() {
+		return m_results.size();
+	}
+
+	/**
+	 * Remove all the query results from this cache.
+	 */
+	public final synchronized void clear() {
+		m_numInvalidations++;
+		m_results.clear();
+		m_keysByTable.clear();
+		// the results being read are older than any invalidation
+		m_invalidationVersions.clear();
+		m_invalidationVersions.put(null, Long.valueOf(m_numInvalidations));
+	}
+
+	/**
+	 * Remove the results of the queries reading the specified table from this
+	 * cache. The results of these queries being read by the sessions are not
+	 * cached.
+	 * 
+	 * @param tableName
+	 */
+	public final synchronized void invalidate(String tableName) {
+		String table = tableName.toLowerCase(Locale.ENGLISH);
+		m_numInvalidations++;
+		m_invalidationVersions.put(table, Long.valueOf(m_numInvalidations));
+		HashSet<List<Object>> keys = m_keysByTable.remove(table);
+		if (keys != null) {
+			for (List<Object> key : keys) {
+				removeResult(key);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current version of this cache, to be specified when the
+	 * results of a query read afterwards are added to this cache.
+	 * 
+	 * @return the current version of this cache
+	 */
+	final synchronized long getVersion() {
+		return m_numInvalidations;
+	}
+
+	/**
+	 * Returns the cached result with the specified key, or null if the result
+	 * is not cached or has expired.
+	 * 
+	 * @param key
+	 * @return the cached result
+	 */
+	final synchronized Result get(List<Object> key) {
+		Result result = m_results.get(key);
+		if ((result != null) && (result.expirationTime != 0)
+				&& (result.expirationTime < System.currentTimeMillis())) {
+			removeResult(key);
+			result = null;
+		}
+		if (result == null) {
+			m_numMisses.incrementAndGet();
+		} else {
+			m_numHits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Add the specified result to this cache, unless one of the tables read
+	 * by the query was invalidated after the specified version (the result
+	 * might be stale).
+	 * 
+	 * @param key
+	 * @param result
+	 * @param version
+	 *            the version of this cache before the query was executed
+	 */
+	final synchronized void put(List<Object> key, Result result, long version) {
+		int maxSize = ZManager.getQueryCacheSize();
+		if (maxSize <= 0) {
+			return;
+		}
+		if (isInvalidatedAfter(null, version)) {
+			return;
+		}
+		for (String table : result.tables) {
+			if (isInvalidatedAfter(table, version)) {
+				return;
+			}
+		}
+		removeResult(key);
+		m_results.put(key, result);
+		for (String table : result.tables) {
+			HashSet<List<Object>> keys = m_keysByTable.get(table);
+			if (keys == null) {
+				keys = new HashSet<List<Object>>();
+				m_keysByTable.put(table, keys);
+			}
+			keys.add(key);
+		}
+		// evict the least recently used results
+		Iterator<Map.Entry<List<Object>, Result>> it = m_results.entrySet()
+				.iterator();
+		while (m_results.size() > maxSize) {
+			Map.Entry<List<Object>, Result> eldest = it.next();
+			it.remove();
+			removeTableKeys(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	/**
+	 * Returns true if the specified table was invalidated after the specified
+	 * version (the null table stands for the whole cache).
+	 * 
+	 * @param table
+	 * @param version
+	 * @return true if the table was invalidated after the version
+	 */
+	private boolean isInvalidatedAfter(String table, long version) {
+		Long invalidationVersion = m_invalidationVersions.get(table);
+		return (invalidationVersion != null)
+				&& (invalidationVersion.longValue() > version);
+	}
+
+	/**
+	 * Remove the result with the specified key, if any.
+	 * 
+	 * @param key
+	 */
+	private void removeResult(List<Object> key) {
+		Result result = m_results.remove(key);
+		if (result != null) {
+			removeTableKeys(key, result);
+		}
+	}
+
+	/**
+	 * Remove the specified key from the keys of the tables read by the
+	 * specified result.
+	 * 
+	 * @param key
+	 * @param result
+	 */
+	private void removeTableKeys(List<Object> key, Result result) {
+		for (String table : result.tables) {
+			HashSet<List<Object>> keys = m_keysByTable.get(table);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					m_keysByTable.remove(table);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The cached result of a query: the selected objects are replaced by
+	 * their ids.
+	 */
+	final static class Result {
+
+		/**
+		 * The names of the selected items.
+		 */
+		public final String[] names;
+
+		/**
+		 * The rows read by the query.
+		 */
+		public final Object[][] rows;
+
+		/**
+		 * The tables (in lower case) read by the query.
+		 */
+		public final String[] tables;
+
+		/**
+		 * The time when this result expires (0 if it never expires).
+		 */
+		public final long expirationTime;
+
+		public Result(String[] names, Object[][] rows, String[] tables,
+				long ttl) {
+			this.names = names;
+			this.rows = rows;
+			this.tables = tables;
+			this.expirationTime = (ttl > 0) ? System.currentTimeMillis() + ttl
+					: 0;
+		}
+
+	}
+
+}
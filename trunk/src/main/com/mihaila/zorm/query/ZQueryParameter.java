@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.query;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import com.mihaila.zorm.ZField;
+
+/**
+ * A parameter of a SQL query (a "?" placeholder). The value of the parameter
+ * is either bound when the parameter is created (see <code>Z.bind()</code>)
+ * or specified when the compiled query is executed (see <code>Z.param()</code>
+ * and <code>ZSelectQuery.compile()</code>). If a field is specified, the
+ * value is set using the field, otherwise a setter is chosen based on the
+ * type of the value.
+ * 
+ * The parameters are tracked only when they are specified directly as
+ * expressions or fragments of the clauses of a <code>ZSelectQuery</code> (e.g.
+ * <code>where(Item.ID, EQUALS, Z.param(Item.ID))</code>), not inside
+ * expressions built with the <code>Z</code> functions;
+ * <code>ZSelectQuery.compile()</code> fails if the query has placeholders
+ * that are not tracked.
+ */
+public final class ZQueryParameter {
+
+	/**
+	 * @param field
+	 *            the field used to set the value (can be null)
+	 */
+	public ZQueryParameter(ZField field) {
+		m_field = field;
+		m_bound = false;
+		m_value = null;
+	}
+
+	/**
+	 * @param field
+	 *            the field used to set the value (can be null)
+	 * @param value
+	 *            the bound value
+	 */
+	public ZQueryParameter(ZField field, Object value) {
+		m_field = field;
+		m_bound = true;
+		m_value = value;
+	}
+
+	/**
+	 * Returns the field used to set the value of this parameter (null if the
+	 * value is set as an object).
+	 * 
+	 * @return the field used to set the value of this parameter
+	 */
+	public ZField getField() {
+		return m_field;
+	}
+
+	/**
+	 * Returns true if the value of this parameter was bound when the
+	 * parameter was created, false if it is specified when the query is
+	 * executed.
+	 * 
+	 * @return true if the value of this parameter is bound
+	 */
+	public boolean isBound() {
+		return m_bound;
+	}
+
+	/**
+	 * Returns the bound value of this parameter (null if the parameter is not
+	 * bound).
+	 * 
+	 * @return the bound value of this parameter
+	 */
+	public Object getValue() {
+		return m_value;
+	}
+
+	/**
+	 * Set the specified value as the value of this parameter in the specified
+	 * <code>PreparedStatement</code>.
+	 * 
+	 * @param stmt
+	 * @param parameterIndex
+	 * @param value
+	 * @throws SQLException
+	 */
+	void setSqlParameter(PreparedStatement stmt, int parameterIndex,
+			Object value) throws SQLException {
+		if (m_field != null) {
+			m_field.setSqlParameter(stmt, parameterIndex, value);
+		} else if (value == null) {
+			stmt.setNull(parameterIndex, Types.VARCHAR);
+		} else if (value instanceof String) {
+			stmt.setString(parameterIndex, (String) value);
+		} else if (value instanceof Integer) {
+			stmt.setInt(parameterIndex, (Integer) value);
+		} else if (value instanceof Long) {
+			stmt.setLong(parameterIndex, (Long) value);
+		} else if (value instanceof Boolean) {
+			stmt.setBoolean(parameterIndex, (Boolean) value);
+		} else if (value instanceof Double) {
+			stmt.setDouble(parameterIndex, (Double) value);
+		} else if (value instanceof java.util.Date) {
+			stmt.setTimestamp(parameterIndex, new Timestamp(
+					((java.util.Date) value).getTime()));
+		} else {
+			stmt.setObject(parameterIndex, value);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "?";
+	}
+
+	/**
+	 * The field used to set the value of this parameter.
+	 */
+	private final ZField m_field;
+
+	/**
+	 * True if the value of this parameter was bound when the parameter was
+	 * created.
+	 */
+	private final boolean m_bound;
+
+	/**
+	 * The bound value of this parameter.
+	 */
+	private final Object m_value;
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zorm.query;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZPersistentMeta;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormException;
+
+/**
+ * Forward-only cursor over the results of a <code>ZSelectQuery</code>. Each
+ * row is returned as an array containing the selected items, in the same
+ * order as the names returned by <code>getSelectedNames()</code>: the
+ * <code>ZPersistent</code> objects corresponding to the
+ * <code>ZPersistentMeta</code> objects from the SELECT clause, followed by
+ * the other selected columns.
+ * 
+ * The rows are read from the database one at a time, so the results are
+ * never held entirely in memory. By default, the objects of a row are
+ * dettached from the session when the next row is read, so the session
+ * cache doesn't grow either. The cursor must be closed after use (e.g. with
+ * a try-with-resources statement); it is closed automatically after the last
+ * row is read.
+ * 
+ * @see ZSelectQuery#iterate()
+ */
+public class ZSelectCursor implements Iterator<Object[]>, Iterable<Object[]>,
+		AutoCloseable {
+
+	/**
+	 * The query that created this cursor.
+	 */
+	private ZCompiledQuery m_query;
+
+	/**
+	 * The session in which the objects are initialized.
+	 */
+	private ZSession m_session;
+
+	/**
+	 * The SQL statement used only by this cursor.
+	 */
+	private Statement m_stmt;
+
+	/**
+	 * The result set from which the rows are read.
+	 */
+	private ResultSet m_rs;
+
+	/**
+	 * The names of the selected items.
+	 */
+	private String[] m_selectedNames;
+
+	/**
+	 * If true, the result set is positioned on a row that was not yet
+	 * returned by <code>next()</code>.
+	 */
+	private boolean m_rowAvailable; // default false
+
+	/**
+	 * If true, the objects of the previous row are dettached from the session
+	 * when the next row is read.
+	 */
+	private boolean m_dettachingRows = true; // default true
+
+	/**
+	 * The last row returned by <code>next()</code>.
+	 */
+	private Object[] m_lastRow; // initially null
+
+	/**
+	 * The values of the parameters of the query, used to explain the query if
+	 * it is slow (null, if unknown).
+	 */
+	private Object[] m_parameters;
+
+	/**
+	 * The value of <code>System.nanoTime()</code> before the query was
+	 * executed.
+	 */
+	private long m_startTime;
+
+	/**
+	 * The value of <code>System.nanoTime()</code> after the query was
+	 * executed.
+	 */
+	private long m_fetchStartTime;
+
+	/**
+	 * The number of rows returned by <code>next()</code>.
+	 */
+	private int m_numRows; // default 0
+
+	/**
+	 * Make the constructor to have package access because only the
+	 * <code>ZCompiledQuery</code> needs to create <code>ZSelectCursor</code>
+	 * objects.
+	 * 
+	 * @param query
+	 * @param session
+	 * @param stmt
+	 * @param rs
+	 * @param selectedNames
+	 * @param parameters
+	 * @param startTime
+	 * @param fetchStartTime
+	 */
+	ZSelectCursor(ZCompiledQuery query, ZSession session, Statement stmt,
+			ResultSet rs, String[] selectedNames, Object[] parameters,
+			long startTime, long fetchStartTime) {
+		m_query = query;
+		m_session = session;
+		m_stmt = stmt;
+		m_rs = rs;
+		m_selectedNames = selectedNames;
+		m_parameters = parameters;
+		m_startTime = startTime;
+		m_fetchStartTime = fetchStartTime;
+	}
+
+	/**
+	 * Returns the names of the selected items: the table alias for the
+	 * <code>ZPersistentMeta</code> objects from the SELECT clause and the
+	 * column label (or name) for the other selected columns.
+	 * 
+	 * @return the names of the selected items
+	 */
+	public final String[] getSelectedNames() {
+		return m_selectedNames;
+	}
+
+	/**
+	 * Returns true if the objects of the previous row are dettached from the
+	 * session when the next row is read.
+	 * 
+	 * @return the dettachingRows state
+	 */
+	public final boolean isDettachingRows() {
+		return m_dettachingRows;
+	}
+
+	/**
+	 * If set to true, the <code>ZPersistent</code> objects of the previous
+	 * row are dettached from the session (removed from the object cache) when
+	 * the next row is read. This keeps the session cache from growing when a
+	 * large number of rows is read. The modified objects are not dettached,
+	 * so that their changes can still be saved. The default value is true.
+	 * 
+	 * @param dettachingRows
+	 */
+	public final void setDettachingRows(boolean dettachingRows) {
+		m_dettachingRows = dettachingRows;
+	}
+
+	/**
+	 * Returns true if the cursor is closed.
+	 * 
+	 * @return true if the cursor is closed
+	 */
+	public final boolean isClosed() {
+		return (m_rs == null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public final boolean hasNext() {
+		if (m_rowAvailable) {
+			return true;
+		}
+		if (isClosed()) {
+			return false;
+		}
+		try {
+			m_rowAvailable = m_rs.next();
+		} catch (Exception e) {
+			close();
+			throw new ZormException("Error reading the results of the query: "
+					+ m_query + '.', e);
+		}
+		if (!m_rowAvailable) {
+			close();
+		}
+		return m_rowAvailable;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Iterator#next()
+	 */
+	public final Object[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		dettachLastRow();
+		Object[] row = new Object[m_selectedNames.length];
+		try {
+			m_query.readRow(m_session, m_rs, row);
+		} catch (Exception e) {
+			close();
+			throw new ZormException("Error reading the results of the query: "
+					+ m_query + '.', e);
+		}
+		m_rowAvailable = false;
+		m_lastRow = row;
+		m_numRows++;
+		return row;
+	}
+
+	/**
+	 * The operation is not supported.
+	 * 
+	 * @see java.util.Iterator#remove()
+	 */
+	public final void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Iterable#iterator()
+	 */
+	public final Iterator<Object[]> iterator() {
+		return this;
+	}
+
+	/**
+	 * Returns a sequential stream over the remaining rows. Closing the stream
+	 * closes this cursor.
+	 * 
+	 * @return a stream over the remaining rows
+	 */
+	public final Stream<Object[]> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED
+						| Spliterator.NONNULL), false).onClose(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Close the cursor by releasing the SQL resources. The execution of the
+	 * query is recorded in the session (the fetch time of a slow query is
+	 * the time until the cursor was closed).
+	 */
+	public final void close() {
+		if (isClosed()) {
+			return;
+		}
+		m_session.queryExecuted(m_query.getSql(), m_parameters, m_startTime,
+				m_fetchStartTime, m_numRows);
+		try {
+			close(m_stmt, m_rs);
+		} finally {
+			m_rowAvailable = false;
+			m_rs = null;
+			m_stmt = null;
+		}
+	}
+
+	/**
+	 * Close the specified SQL statement and result set (any of them can be
+	 * null).
+	 * 
+	 * @param stmt
+	 * @param rs
+	 */
+	static void close(Statement stmt, ResultSet rs) {
+		try {
+			if (rs != null) {
+				rs.close();
+			}
+		} catch (Exception e) {
+			throw new ZormException("Error closing the SQL ResultSet.", e);
+		} finally {
+			try {
+				if (stmt != null) {
+					stmt.close();
+				}
+			} catch (Exception e) {
+				throw new ZormException("Error closing the SQL Statement", e);
+			}
+		}
+	}
+
+	/**
+	 * Dettach the <code>ZPersistent</code> objects of the last row that are
+	 * not modified from the session, if the dettachingRows state is set.
+	 */
+	private void dettachLastRow() {
+		if (!m_dettachingRows || (m_lastRow == null)) {
+			return;
+		}
+		for (Object value : m_lastRow) {
+			if (!(value instanceof ZPersistent)) {
+				continue;
+			}
+			ZPersistent ob = (ZPersistent) value;
+			ZPersistentMeta meta = ob.getMeta();
+			if ((ob.getSession() == m_session) && (meta.getIdField() != null)) {
+				// the modified objects are not evicted
+				m_session.evict(meta, ob.getId());
+			}
+		}
+		m_lastRow = null;
+	}
+
+}
@@ -22,12 +22,14 @@
 
 package com.mihaila.zorm.query;
 
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.Statement;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 import com.mihaila.zorm.ZField;
 import com.mihaila.zorm.ZPersistentMeta;
@@ -127,32 +129,150 @@ public class ZSelectQuery {
 	private String m_extra;
 
 	/**
-	 * Contains the query after it was executed (or it was specifyed with a
-	 * <code>custom(String)</code> function call.
+	 * Contains the number of rows to be fetched at once by the JDBC driver
+	 * when the query is iterated (0 means the driver default).
+	 */
+	private int m_fetchSize; // default 0
+
+	/**
+	 * Contains the <code>PrefetchInfo</code> objects specifying the
+	 * referenced objects to be loaded after the query is executed. This field
+	 * is lazy loaded.
+	 */
+	private ArrayList<PrefetchInfo> m_prefetchInfoList;
+
+	/**
+	 * Contains the tables (in lower case) added to the FROM clause.
+	 */
+	private LinkedHashSet<String> m_fromTables = new LinkedHashSet<String>();
+
+	/**
+	 * Contains the parameters specified directly as expressions of the SELECT
+	 * clause, in order. This field is lazy loaded.
+	 */
+	private ArrayList<ZQueryParameter> m_selectParameters; // initially null
+
+	/**
+	 * Contains the parameters specified directly as expressions of the FROM
+	 * clause (e.g. in the join conditions), in order. This field is lazy
+	 * loaded.
+	 */
+	private ArrayList<ZQueryParameter> m_fromParameters; // initially null
+
+	/**
+	 * If true, the FROM clause contains expressions that are not plain table
+	 * names (joins, subqueries, quoted or qualified names), so the tables read
+	 * by the query are not all known.
+	 */
+	private boolean m_fromTablesUnknown; // default false
+
+	/**
+	 * Contains the time to live of the results in the query cache, in
+	 * milliseconds (negative if the results are not cached).
+	 */
+	private long m_resultCacheTtl = -1; // default -1
+
+	/**
+	 * Contains the tables (in lower case) read by the query besides the tables
+	 * from the FROM clause, whose writes invalidate the cached results.
+	 */
+	private String[] m_resultCacheTables; // initially null
+
+	/**
+	 * Contains the key fields of the keyset pagination (null if the keyset
+	 * pagination is not used).
+	 */
+	private ZField[] m_seekFields; // initially null
+
+	/**
+	 * Contains the parameters holding the key values of the last row of the
+	 * previous page (null for the first page).
+	 */
+	private ZQueryParameter[] m_seekParameters; // initially null
+
+	/**
+	 * If true, the rows are sorted descending by the key fields of the keyset
+	 * pagination.
+	 */
+	private boolean m_seekDescending; // default false
+
+	/**
+	 * Contains the query specifyed with a <code>customQuery(String)</code>
+	 * function call (null if the query is built from its clauses).
 	 */
 	private String m_query;
 
+	/**
+	 * The compiled form of this query used by the execute functions. It is
+	 * reset when this query is changed.
+	 */
+	private ZCompiledQuery m_compiledQuery; // initially null
+
+	/**
+	 * The modification counts of the WHERE and HAVING expressions when
+	 * <code>m_compiledQuery</code> was compiled.
+	 */
+	private int m_compiledWhereModCount, m_compiledHavingModCount;
+
 	/**
 	 * Structure to hold information about an SELECT item specified by an
 	 * <code>ZPersistentMeta</code> object.
 	 */
-	private final static class SelectInfo {
+	final static class SelectInfo {
+
+		/**
+		 * @param meta
+		 * @param fields
+		 * @param tableAlias
+		 */
+		SelectInfo(ZPersistentMeta meta, ZField[] fields, String tableAlias) {
+			this.meta = meta;
+			this.fields = fields;
+			this.tableAlias = tableAlias;
+		}
 
 		/**
 		 * The <code>ZPersistentMeta</code> object corresponding to this
 		 * SELECT item.
 		 */
-		public ZPersistentMeta meta;
+		public final ZPersistentMeta meta;
 
 		/**
 		 * The fields to be retrieved from the database.
 		 */
-		public ZField[] fields;
+		public final ZField[] fields;
 
 		/**
 		 * The alias of this SELECT item.
 		 */
-		public String tableAlias;
+		public final String tableAlias;
+
+	}
+
+	/**
+	 * Structure to hold information about the objects to be loaded through a
+	 * reference field of the selected objects.
+	 */
+	final static class PrefetchInfo {
+
+		/**
+		 * @param refField
+		 * @param refMeta
+		 */
+		PrefetchInfo(ZStringField refField, ZPersistentMeta refMeta) {
+			this.refField = refField;
+			this.refMeta = refMeta;
+		}
+
+		/**
+		 * The reference field (holding the ids of the referenced objects).
+		 */
+		public final ZStringField refField;
+
+		/**
+		 * The <code>ZPersistentMeta</code> object of the referenced objects.
+		 */
+		public final ZPersistentMeta refMeta;
 
 	}
 
@@ -235,15 +355,14 @@ public class ZSelectQuery {
 	 */
 	public final ZSelectQuery select(ZPersistentMeta meta, ZField[] fields,
 			String tableAlias) {
-		SelectInfo selectInfo = new SelectInfo();
-		selectInfo.meta = meta;
+		m_compiledQuery = null;
 		if ((fields == null) || (meta.getIdField() == null)) {
-			selectInfo.fields = meta.getAutoFetchedFields();
+			fields = meta.getAutoFetchedFields();
 		} else {
-			selectInfo.fields = filterIdField(meta, fields);
+			// the fields array is not shared with the caller
+			fields = filterIdField(meta, fields.clone());
 		}
-		selectInfo.tableAlias = tableAlias;
-		getSelectInfoList().add(selectInfo);
+		getSelectInfoList().add(new SelectInfo(meta, fields, tableAlias));
 		if (m_autoAddToFrom && (m_query == null)) {
 			String tableName = meta.getTableName();
 			if (tableAlias.equals(tableName)) {
@@ -262,11 +381,13 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery select(Object selectExpr) {
+		m_compiledQuery = null;
 		StringBuilder selectClause = getSelectClause();
 		if (selectClause.length() != 0) {
 			selectClause.append(", ");
 		}
 		selectClause.append(selectExpr);
+		m_selectParameters = addParameter(m_selectParameters, selectExpr);
 		return this;
 	}
 
@@ -278,6 +399,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery select(Object selectExpr, Object alias) {
+		m_compiledQuery = null;
 		StringBuilder selectClause = getSelectClause();
 		if (selectClause.length() != 0) {
 			selectClause.append(", ");
@@ -285,6 +407,7 @@ public class ZSelectQuery {
 		selectClause.append(selectExpr);
 		selectClause.append(' ');
 		selectClause.append(alias);
+		m_selectParameters = addParameter(m_selectParameters, selectExpr);
 		return this;
 	}
 
@@ -295,6 +418,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery distinct(boolean value) {
+		m_compiledQuery = null;
 		m_distinct = value;
 		return this;
 	}
@@ -348,10 +472,13 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery from(Object fromExpr) {
+		m_compiledQuery = null;
 		if (m_fromClause.length() != 0) {
 			m_fromClause.append(", ");
 		}
 		m_fromClause.append(fromExpr);
+		addFromTable(fromExpr);
+		m_fromParameters = addParameter(m_fromParameters, fromExpr);
 		return this;
 	}
 
@@ -363,12 +490,14 @@ public class ZSelectQuery {
 	 * @return this;
 	 */
 	public final ZSelectQuery from(Object tableName, Object tableAlias) {
+		m_compiledQuery = null;
 		if (m_fromClause.length() != 0) {
 			m_fromClause.append(", ");
 		}
 		m_fromClause.append(tableName);
 		m_fromClause.append(' ');
 		m_fromClause.append(tableAlias);
+		addFromTable(tableName);
 		return this;
 	}
 
@@ -385,10 +514,12 @@ public class ZSelectQuery {
 	 */
 	public final ZSelectQuery join(Join joinKind, Object tableName,
 			Object tableAlias, Object field1, Object field2) {
+		m_compiledQuery = null;
 		m_fromClause.append(' ');
 		m_fromClause.append(joinKind);
 		m_fromClause.append(" JOIN ");
 		m_fromClause.append(tableName);
+		addFromTable(tableName);
 		if (tableAlias != null) {
 			m_fromClause.append(' ');
 			m_fromClause.append(tableAlias);
@@ -398,6 +529,8 @@ public class ZSelectQuery {
 		m_fromClause.append(" = ");
 		m_fromClause.append(field2);
 		m_fromClause.append(')');
+		m_fromParameters = addParameter(m_fromParameters, field1);
+		m_fromParameters = addParameter(m_fromParameters, field2);
 		return this;
 	}
 
@@ -505,6 +638,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery groupBy(Object... groupByExprs) {
+		m_compiledQuery = null;
 		m_groupByArray = groupByExprs;
 		return this;
 	}
@@ -564,6 +698,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery orderBy(Object... sortByExprs) {
+		m_compiledQuery = null;
 		m_orderByArray = sortByExprs;
 		return this;
 	}
@@ -575,6 +710,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery skip(int value) {
+		m_compiledQuery = null;
 		m_skip = value;
 		return this;
 	}
@@ -586,10 +722,132 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery take(int value) {
+		m_compiledQuery = null;
 		m_take = value;
 		return this;
 	}
 
+	/**
+	 * Specify a page of the keyset (seek) pagination: the rows are sorted by
+	 * the specified key fields and only the rows following the last row of
+	 * the previous page are read, using a "WHERE (key1, key2) > (?, ?)"
+	 * condition. Unlike <code>skip(int)</code>, the database doesn't read the
+	 * rows of the previous pages, if there is an index on the key fields. The
+	 * key fields must identify the rows (e.g. they must end with the id
+	 * field). The size of the page is specified with <code>take(int)</code>.
+	 * 
+	 * @param keyFields
+	 * @param lastValues
+	 *            the values of the key fields of the last row of the previous
+	 *            page (null for the first page)
+	 * @param descending
+	 *            if true, the rows are sorted descending by the key fields
+	 * @return this
+	 * @see #iteratePages(ZField[], boolean, int, boolean)
+	 */
+	public final ZSelectQuery seek(ZField[] keyFields, Object[] lastValues,
+			boolean descending) {
+		m_compiledQuery = null;
+		if (m_query != null) {
+			throw new ZormException(
+					"The keyset pagination cannot be used with a custom query.");
+		}
+		if (keyFields.length == 0) {
+			throw new ZormException("No key fields were specified.");
+		}
+		m_seekFields = keyFields.clone();
+		m_seekDescending = descending;
+		m_seekParameters = null;
+		if (lastValues != null) {
+			if (lastValues.length != keyFields.length) {
+				throw new ZormException(keyFields.length
+						+ " key fields were specified, but "
+						+ lastValues.length + " values.");
+			}
+			m_seekParameters = new ZQueryParameter[keyFields.length];
+			for (int i = 0; i < keyFields.length; i++) {
+				m_seekParameters[i] = Z.bind(keyFields[i], lastValues[i]);
+			}
+		}
+		m_orderByArray = new Object[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			m_orderByArray[i] = descending ? Z.desc(keyFields[i])
+					: keyFields[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Specify the number of rows to be fetched at once from the database by
+	 * the JDBC driver when the query is executed with <code>iterate()</code>.
+	 * A value of 0 means the driver default (note that the MySQL driver
+	 * streams the rows one by one only if the value is
+	 * <code>Integer.MIN_VALUE</code>).
+	 * 
+	 * @param value
+	 * @return this
+	 */
+	public final ZSelectQuery fetchSize(int value) {
+		m_compiledQuery = null;
+		m_fetchSize = value;
+		return this;
+	}
+
+	/**
+	 * Specify that the objects referenced through the specified field of the
+	 * selected objects are loaded in the session after the query is
+	 * executed, using a few "select ... in ..." queries (see
+	 * <code>ZSession.prefetch(Object[], ZStringField, ZPersistentMeta)</code>).
+	 * The reference field should be one of the selected fields. The
+	 * referenced objects are not prefetched when the query is iterated.
+	 * 
+	 * @param refField
+	 * @param refMeta
+	 * @return this
+	 */
+	public final ZSelectQuery prefetch(ZStringField refField,
+			ZPersistentMeta refMeta) {
+		m_compiledQuery = null;
+		if (m_prefetchInfoList == null) {
+			m_prefetchInfoList = new ArrayList<PrefetchInfo>();
+		}
+		m_prefetchInfoList.add(new PrefetchInfo(refField, refMeta));
+		return this;
+	}
+
+	/**
+	 * Specify that the results of the query are cached in the query cache of
+	 * the manager (see <code>ZManager.getQueryCache()</code>), keyed by the
+	 * SQL text and the parameter values. Only the ids of the selected objects
+	 * are cached: the objects are retrieved again through the session cache.
+	 * The cached results are invalidated when a session writes to one of the
+	 * tables from the FROM clause or to one of the specified tables. The
+	 * tables must be specified if the query is a custom query or if the FROM
+	 * clause contains expressions that are not plain table names (e.g. joins,
+	 * subqueries, quoted or qualified names); otherwise
+	 * <code>compile()</code> throws a <code>ZormException</code>.
+	 * 
+	 * @param ttl
+	 *            the time to live of the results, in milliseconds (0 means
+	 *            that the results expire only when they are invalidated)
+	 * @param tableNames
+	 *            the other tables read by the query
+	 * @return this
+	 */
+	public final ZSelectQuery cacheResults(long ttl, String... tableNames) {
+		m_compiledQuery = null;
+		if (ttl < 0) {
+			throw new ZormException(
+					"The time to live of the cached results cannot be negative.");
+		}
+		m_resultCacheTtl = ttl;
+		m_resultCacheTables = new String[tableNames.length];
+		for (int i = 0; i < tableNames.length; i++) {
+			m_resultCacheTables[i] = tableNames[i].toLowerCase(Locale.ENGLISH);
+		}
+		return this;
+	}
+
 	/**
 	 * Specify an extra fragment to be appended at the end of the query.
 	 * 
@@ -597,6 +855,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery extra(String extraExpr) {
+		m_compiledQuery = null;
 		m_extra = extraExpr;
 		return this;
 	}
@@ -610,6 +869,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery customQuery(String query) {
+		m_compiledQuery = null;
 		m_query = query;
 		return this;
 	}
@@ -620,6 +880,7 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery clear() {
+		m_compiledQuery = null;
 		clearSelect();
 		clearFrom();
 		clearWhere();
@@ -629,6 +890,13 @@ public class ZSelectQuery {
 		m_orderByArray = null;
 		m_extra = null;
 		m_query = null;
+		m_fetchSize = 0;
+		m_prefetchInfoList = null;
+		m_resultCacheTtl = -1;
+		m_resultCacheTables = null;
+		m_seekFields = null;
+		m_seekParameters = null;
+		m_seekDescending = false;
 		m_skip = 0;
 		m_take = Integer.MAX_VALUE;
 		return this;
@@ -640,12 +908,14 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery clearSelect() {
+		m_compiledQuery = null;
 		if (m_selectInfoList != null) {
 			m_selectInfoList.clear();
 		}
 		if (m_selectClause != null) {
 			m_selectClause.delete(0, m_selectClause.length());
 		}
+		m_selectParameters = null;
 		return this;
 	}
 
@@ -655,7 +925,11 @@ public class ZSelectQuery {
 	 * @return this
 	 */
 	public final ZSelectQuery clearFrom() {
+		m_compiledQuery = null;
 		m_fromClause.delete(0, m_fromClause.length());
+		m_fromTables.clear();
+		m_fromTablesUnknown = false;
+		m_fromParameters = null;
 		return this;
 	}
 
@@ -715,7 +989,7 @@ public class ZSelectQuery {
 	 * @return the result of the query
 	 */
 	public final Object executeUnique() {
-		return (Object) executeQuery(true, true);
+		return executeQuery(true, true);
 	}
 
 	/**
@@ -760,6 +1034,229 @@ public class ZSelectQuery {
 		return (Map<String, Object[]>) executeQuery(false, false);
 	}
 
+	/**
+	 * Executes the query asynchronously and returns a
+	 * <code>CompletableFuture</code> holding a map with all the selected
+	 * items (see <code>execute()</code>). The query is compiled when this
+	 * function is called, so later changes of this query don't affect the
+	 * result.
+	 * 
+	 * @return a <code>CompletableFuture</code> holding the result of the
+	 *         query
+	 * @see ZSession#runAsync(java.util.concurrent.Callable)
+	 */
+	public final CompletableFuture<Map<String, Object[]>> executeAsync() {
+		checkSessionIsSet();
+		return getCompiledQuery().executeAsync(m_session);
+	}
+
+	/**
+	 * Executes the query and returns a forward-only cursor over the results.
+	 * Unlike the <code>execute...()</code> functions, the rows are not
+	 * buffered: each row is read from the database and its objects are
+	 * initialized only when <code>next()</code> is called. The number of
+	 * rows fetched at once by the JDBC driver can be specified with
+	 * <code>fetchSize(int)</code>.
+	 * 
+	 * The cursor uses its own SQL statement and must be closed after use,
+	 * e.g. with a try-with-resources statement (it is closed automatically
+	 * after the last row is read). The objects of a row are dettached from
+	 * the session when the next row is read (see
+	 * <code>ZSelectCursor.setDettachingRows(boolean)</code>).
+	 * 
+	 * @return a cursor over the results of the query
+	 */
+	public final ZSelectCursor iterate() {
+		checkSessionIsSet();
+		return getCompiledQuery().iterate(m_session,
+				ZCompiledQuery.NO_VALUES, false);
+	}
+
+	/**
+	 * Executes the query and returns a stream over the results, read by a
+	 * cursor (see <code>iterate()</code>). The stream must be closed after
+	 * use, which closes the cursor.
+	 * 
+	 * @return a stream over the results of the query
+	 */
+	public final Stream<Object[]> stream() {
+		return iterate().stream();
+	}
+
+	/**
+	 * Executes the query using the keyset pagination (see
+	 * <code>seek(ZField[], Object[], boolean)</code>) and returns an iterator
+	 * over the pages of results. Each page is a map with all the selected
+	 * items, as returned by <code>execute()</code>. The query is compiled
+	 * when this function is called, so later changes of this query don't
+	 * affect the pages. The limit, the ordering and the keyset pagination
+	 * state of this query are not changed.
+	 * 
+	 * The key fields must belong to the <code>ZPersistentMeta</code> objects
+	 * from the SELECT clause and must be selected (the key values of the last
+	 * row of a page are read from its objects).
+	 * 
+	 * @param keyFields
+	 * @param descending
+	 *            if true, the rows are sorted descending by the key fields
+	 * @param pageSize
+	 *            the maximum number of rows of a page
+	 * @param readingAhead
+	 *            if true, the next page is read asynchronously after a page is
+	 *            returned (see <code>ZPageIterator</code>)
+	 * @return an iterator over the pages of results
+	 */
+	public final ZPageIterator iteratePages(ZField[] keyFields,
+			boolean descending, int pageSize, boolean readingAhead) {
+		checkSessionIsSet();
+		if (m_query != null) {
+			throw new ZormException(
+					"The keyset pagination cannot be used with a custom query.");
+		}
+		if (m_skip != 0) {
+			throw new ZormException(
+					"The keyset pagination cannot be used with skip().");
+		}
+		if (pageSize < 1) {
+			throw new ZormException("The page size must be positive.");
+		}
+		// find the selected objects holding the key values
+		String[] keyNames = new String[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			ZField keyField = keyFields[i];
+			if (m_selectInfoList != null) {
+				for (SelectInfo selectInfo : m_selectInfoList) {
+					if ((selectInfo.meta == keyField.getPersistentMeta())
+							&& ((keyField == selectInfo.meta.getIdField()) || Arrays
+									.asList(selectInfo.fields).contains(
+											keyField))) {
+						keyNames[i] = selectInfo.tableAlias;
+						break;
+					}
+				}
+			}
+			if (keyNames[i] == null) {
+				throw new ZormException("The key field: " + keyField
+						+ " is not selected.");
+			}
+		}
+		// the page queries are compiled from a temporary state of this query,
+		// restored afterwards
+		int take = m_take;
+		Object[] orderByArray = m_orderByArray;
+		ZField[] seekFields = m_seekFields;
+		ZQueryParameter[] seekParameters = m_seekParameters;
+		boolean seekDescending = m_seekDescending;
+		ZCompiledQuery firstPageQuery;
+		ZCompiledQuery nextPageQuery;
+		try {
+			take(pageSize);
+			seek(keyFields, null, descending);
+			firstPageQuery = compile();
+			m_seekParameters = new ZQueryParameter[keyFields.length];
+			for (int i = 0; i < keyFields.length; i++) {
+				m_seekParameters[i] = Z.param(keyFields[i]);
+			}
+			nextPageQuery = compile();
+		} finally {
+			m_take = take;
+			m_orderByArray = orderByArray;
+			m_seekFields = seekFields;
+			m_seekParameters = seekParameters;
+			m_seekDescending = seekDescending;
+			m_compiledQuery = null;
+		}
+		return new ZPageIterator(m_session, firstPageQuery, nextPageQuery,
+				keyFields.clone(), keyNames, pageSize, readingAhead);
+	}
+
+	/**
+	 * Freezes the current state of this query into an immutable
+	 * <code>ZCompiledQuery</code>. The SQL text, the layout of the selected
+	 * items and the parameters (specified with <code>Z.param()</code>) are
+	 * computed once, and the compiled query can be executed many times, from
+	 * any session and thread, with different parameter values. Later changes
+	 * of this query don't affect the compiled query.
+	 * 
+	 * The parameters are tracked when they are specified directly as
+	 * expressions or fragments of the clauses (e.g.
+	 * <code>select(Z.bind(1))</code>, a join condition or
+	 * <code>where(Item.ID, EQUALS, Z.param(Item.ID))</code>). If the SQL text
+	 * has other placeholders (e.g. parameters used inside the
+	 * <code>Z</code> functions), a <code>ZormException</code> is throwned,
+	 * since their values could not be set.
+	 * 
+	 * @return the compiled query
+	 */
+	public final ZCompiledQuery compile() {
+		SelectInfo[] selectInfos;
+		if (m_selectInfoList == null) {
+			selectInfos = new SelectInfo[0];
+		} else {
+			selectInfos = new SelectInfo[m_selectInfoList.size()];
+			int i = 0;
+			// the SelectInfo objects are immutable
+			for (SelectInfo selectInfo : m_selectInfoList) {
+				selectInfos[i++] = selectInfo;
+			}
+		}
+		// the parameters in the order of the clauses
+		ArrayList<ZQueryParameter> parameters = new ArrayList<ZQueryParameter>();
+		if (m_selectParameters != null) {
+			parameters.addAll(m_selectParameters);
+		}
+		if (m_fromParameters != null) {
+			parameters.addAll(m_fromParameters);
+		}
+		if (m_whereExpr != null) {
+			parameters.addAll(m_whereExpr.getParameters());
+		}
+		if (m_seekParameters != null) {
+			parameters.addAll(Arrays.asList(m_seekParameters));
+		}
+		if (m_groupByArray != null) {
+			for (Object groupByExpr : m_groupByArray) {
+				addParameter(parameters, groupByExpr);
+			}
+		}
+		if (m_havingExpr != null) {
+			parameters.addAll(m_havingExpr.getParameters());
+		}
+		if (m_orderByArray != null) {
+			for (Object orderByExpr : m_orderByArray) {
+				addParameter(parameters, orderByExpr);
+			}
+		}
+		String sql = toString();
+		int numPlaceholders = countPlaceholders(sql);
+		if (numPlaceholders != parameters.size()) {
+			throw new ZormException("The query has " + numPlaceholders
+					+ " placeholders, but " + parameters.size()
+					+ " parameters are known (the parameters used inside"
+					+ " the Z functions or strings are not tracked): " + sql);
+		}
+		PrefetchInfo[] prefetchInfos;
+		if (m_prefetchInfoList == null) {
+			prefetchInfos = new PrefetchInfo[0];
+		} else {
+			prefetchInfos = m_prefetchInfoList
+					.toArray(new PrefetchInfo[m_prefetchInfoList.size()]);
+		}
+		if ((m_resultCacheTtl >= 0) && (m_resultCacheTables.length == 0)
+				&& ((m_query != null) || m_fromTablesUnknown)) {
+			throw new ZormException(
+					"The tables read by the query must be specified with cacheResults(long, String...) to cache the results of a custom query or of a query whose FROM clause contains expressions.");
+		}
+		LinkedHashSet<String> tables = new LinkedHashSet<String>(m_fromTables);
+		if (m_resultCacheTables != null) {
+			tables.addAll(Arrays.asList(m_resultCacheTables));
+		}
+		return new ZCompiledQuery(sql, selectInfos, parameters
+				.toArray(new ZQueryParameter[parameters.size()]),
+				prefetchInfos, m_fetchSize, m_resultCacheTtl, tables
+						.toArray(new String[tables.size()]));
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -774,10 +1271,10 @@ public class ZSelectQuery {
 		int queryLength = QUERY_EXTRA_BUFFER_CAPACITY;
 		queryLength += m_fromClause.length();
 		if (m_whereExpr != null) {
-			queryLength += m_whereExpr.getStringBuilder().length();
+			queryLength += m_whereExpr.getExpr().length();
 		}
 		if (m_havingExpr != null) {
-			queryLength += m_havingExpr.getStringBuilder().length();
+			queryLength += m_havingExpr.getExpr().length();
 		}
 		StringBuilder query = new StringBuilder(queryLength);
 		query.append("SELECT ");
@@ -823,9 +1320,20 @@ public class ZSelectQuery {
 		query.append(" FROM ");
 		query.append(m_fromClause);
 		// WHERE clause
-		if (m_whereExpr != null) {
+		if (m_seekParameters != null) {
+			query.append(" WHERE ");
+			if ((m_whereExpr != null)
+					&& (m_whereExpr.getExpr().length() != 0)) {
+				query.append('(');
+				query.append(m_whereExpr.getExpr());
+				query.append(") AND ");
+			}
+			query.append('(');
+			appendSeekCondition(query);
+			query.append(')');
+		} else if (m_whereExpr != null) {
 			query.append(" WHERE ");
-			query.append(m_whereExpr.getStringBuilder());
+			query.append(m_whereExpr.getExpr());
 		}
 		// GROUP BY clause
 		if ((m_groupByArray != null) && (m_groupByArray.length > 0)) {
@@ -841,7 +1349,7 @@ public class ZSelectQuery {
 		// HAVING clause
 		if (m_havingExpr != null) {
 			query.append(" HAVING ");
-			query.append(m_havingExpr.getStringBuilder());
+			query.append(m_havingExpr.getExpr());
 		}
 		// ORDER BY clause
 		if ((m_orderByArray != null) && (m_orderByArray.length > 0)) {
@@ -874,6 +1382,134 @@ public class ZSelectQuery {
 		return query.toString();
 	}
 
+	/**
+	 * Add the specified expression to the specified list of parameters, if
+	 * the expression is a <code>ZQueryParameter</code>.
+	 * 
+	 * @param parameters
+	 *            the list of parameters (can be null)
+	 * @param expr
+	 * @return the list of parameters (created if the expression is a
+	 *         parameter and the list is null)
+	 */
+	private final static ArrayList<ZQueryParameter> addParameter(
+			ArrayList<ZQueryParameter> parameters, Object expr) {
+		if (expr instanceof ZQueryParameter) {
+			if (parameters == null) {
+				parameters = new ArrayList<ZQueryParameter>();
+			}
+			parameters.add((ZQueryParameter) expr);
+		}
+		return parameters;
+	}
+
+	/**
+	 * Returns the number of "?" placeholders of the specified SQL query. The
+	 * question marks inside quoted strings and identifiers are not counted.
+	 * 
+	 * @param sql
+	 * @return the number of placeholders of the SQL query
+	 */
+	final static int countPlaceholders(String sql) {
+		int numPlaceholders = 0;
+		char quote = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (quote != 0) {
+				if (c == '\\') {
+					// escaped character (e.g. MySQL strings)
+					i++;
+				} else if (c == quote) {
+					// a doubled quote is read as two quoted strings
+					quote = 0;
+				}
+			} else if ((c == '\'') || (c == '"') || (c == '`')) {
+				quote = c;
+			} else if (c == '?') {
+				numPlaceholders++;
+			}
+		}
+		return numPlaceholders;
+	}
+
+	/**
+	 * Add the specified table name to the tables of the FROM clause. If it is
+	 * not a plain table name, the tables of the FROM clause are marked as
+	 * unknown.
+	 * 
+	 * @param tableName
+	 */
+	private final void addFromTable(Object tableName) {
+		String name = String.valueOf(tableName).trim();
+		if (isPlainTableName(name)) {
+			m_fromTables.add(name.toLowerCase(Locale.ENGLISH));
+		} else {
+			m_fromTablesUnknown = true;
+		}
+	}
+
+	/**
+	 * Returns true if the specified name contains only letters, digits,
+	 * underscores and dollar signs.
+	 * 
+	 * @param name
+	 * @return true if the specified name is a plain table name
+	 */
+	private final static boolean isPlainTableName(String name) {
+		if (name.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!Character.isLetterOrDigit(c) && (c != '_') && (c != '$')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that the session of this query is set. If not, a
+	 * <code>ZormException</code> is throwned.
+	 */
+	private final void checkSessionIsSet() {
+		if (m_session == null) {
+			throw new ZormException("The session is not set.");
+		}
+	}
+
+	/**
+	 * Append the condition selecting the rows following the last row of the
+	 * previous page of the keyset pagination: "(key1, key2) > (?, ?)" (the
+	 * row constructor is not used for a single key field).
+	 * 
+	 * @param query
+	 */
+	private final void appendSeekCondition(StringBuilder query) {
+		boolean usingRow = (m_seekFields.length > 1);
+		if (usingRow) {
+			query.append('(');
+		}
+		for (int i = 0; i < m_seekFields.length; i++) {
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append(m_seekFields[i]);
+		}
+		query.append(usingRow ? ") " : " ");
+		query.append(m_seekDescending ? Z.LESS : Z.GREATER);
+		query.append(usingRow ? " (" : " ");
+		for (int i = 0; i < m_seekParameters.length; i++) {
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append(m_seekParameters[i]);
+		}
+		if (usingRow) {
+			query.append(')');
+		}
+	}
+
 	/**
 	 * Returns the selectInfoList (lazy initialized).
 	 * 
@@ -941,147 +1577,30 @@ public class ZSelectQuery {
 	 * @return the object result.
 	 */
 	private final Object executeQuery(boolean uniqueSelect, boolean uniqueRow) {
-		if (m_session == null) {
-			throw new ZormException("The session is not set.");
-		}
-		m_query = toString();
-		m_session.logQuery(m_query);
-		Statement stmt = m_session.getSqlStatement();
-		ResultSet rs = null;
-
-		try {
-			rs = stmt.executeQuery(m_query);
-			ResultSetMetaData rsm = rs.getMetaData();
-
-			// determine the number of selected items and colums
-			int nSelected = 0;
-			int nNeededColumns = 0;
-			if (m_selectInfoList != null) {
-				for (SelectInfo selectInfo : m_selectInfoList) {
-					if (selectInfo.meta.getIdField() != null) {
-						nNeededColumns++;
-					}
-					nNeededColumns += selectInfo.fields.length;
-					nSelected++;
-				}
-			}
-			int nColumns = rsm.getColumnCount();
-			if (nNeededColumns > rsm.getColumnCount()) {
-				throw new ZormException(
-						"Insufficient columns returned by the query: expected at least: "
-								+ nNeededColumns + "; actual: " + nColumns
-								+ '.');
-			}
-			nSelected += (nColumns - nNeededColumns);
-			if (nSelected == 0) {
-				throw new ZormException(
-						"The number of selected items is 0. This means that the select clause of the query was empty.");
-			}
-			if (uniqueSelect) {
-				nSelected = 1;
-			}
-
-			// determine the number of rows
-			int nRows = 0;
-			if (rs.last()) {
-				nRows = rs.getRow();
-			}
-			rs.first();
-			if (uniqueRow && nRows > 1) {
-				nRows = 1;
-			}
-
-			// get data
-			Object[][] resultMatrix = new Object[nSelected][nRows];
-			for (int i = 0; i < nRows; i++) {
-				int iSelected = 0;
-				int iColumn = 1;
-				if (m_selectInfoList != null) {
-					for (SelectInfo selectInfo : m_selectInfoList) {
-						resultMatrix[iSelected++][i] = m_session
-								.getAndFetchFromResultSet(selectInfo.meta,
-										selectInfo.fields, rs, iColumn);
-						if (selectInfo.meta.getIdField() != null) {
-							iColumn++;
-						}
-						iColumn += selectInfo.fields.length;
-						if (iSelected == nSelected) {
-							// this can happen only when uniqueSelect is true
-							break;
-						}
-					}
-				}
-				while (iSelected < nSelected) {
-					resultMatrix[iSelected++][i] = rs.getObject(iColumn++);
-				}
-				if (!rs.next() && i != nRows - 1) {
-					throw new ZormException(
-							"Insufficient number of rows: expected: " + nRows
-									+ "; actual: " + i + '.');
-				}
-			}
+		checkSessionIsSet();
+		return getCompiledQuery().executeQuery(m_session,
+				ZCompiledQuery.NO_VALUES, uniqueSelect, uniqueRow, false);
+	}
 
-			// prepare the result
-			if (uniqueSelect) {
-				if (uniqueRow) {
-					return (nRows == 0) ? null : resultMatrix[0][0];
-				} else {
-					return resultMatrix[0];
-				}
-			} else {
-				Map<String, Object> resultMap = new HashMap<String, Object>();
-				int iSelected = 0;
-				int iColumn = 1;
-				if (m_selectInfoList != null) {
-					for (SelectInfo selectInfo : m_selectInfoList) {
-						ZPersistentMeta meta = selectInfo.meta;
-						if (meta.getIdField() != null) {
-							iColumn++;
-						}
-						Object value;
-						if (uniqueRow) {
-							value = (nRows == 0) ? null
-									: resultMatrix[iSelected][0];
-						} else {
-							value = resultMatrix[iSelected];
-						}
-						resultMap.put(selectInfo.tableAlias, value);
-						iSelected++;
-						iColumn += selectInfo.fields.length;
-					}
-				}
-				while (iSelected < nSelected) {
-					String label = rsm.getColumnLabel(iColumn);
-					if (resultMap.containsKey(label)) {
-						throw new ZormException(
-								"Duplicate selected item name: " + label + '.');
-					}
-					Object value;
-					if (uniqueRow) {
-						value = (nRows == 0) ? null
-								: resultMatrix[iSelected][0];
-					} else {
-						value = resultMatrix[iSelected];
-					}
-					resultMap.put(label, value);
-					iColumn++;
-					iSelected++;
-				}
-				return resultMap;
-			}
-		} catch (Exception e) {
-			throw new ZormException("Error executing the query : " + m_query
-					+ '.', e);
-		} finally {
-			try {
-				if (rs != null) {
-					rs.close();
-				}
-			} catch (Exception e) {
-				throw new ZormException("Error closing the SQL ResultSet.", e);
-			} finally {
-				rs = null;
-			}
+	/**
+	 * Returns the compiled form of this query used by the execute functions.
+	 * The query is compiled again only if it was changed since the last
+	 * execution.
+	 * 
+	 * @return the compiled form of this query
+	 */
+	private final ZCompiledQuery getCompiledQuery() {
+		int whereModCount = (m_whereExpr == null) ? 0 : m_whereExpr
+				.getModCount();
+		int havingModCount = (m_havingExpr == null) ? 0 : m_havingExpr
+				.getModCount();
+		if ((m_compiledQuery == null)
+				|| (whereModCount != m_compiledWhereModCount)
+				|| (havingModCount != m_compiledHavingModCount)) {
+			m_compiledQuery = compile();
+			m_compiledWhereModCount = whereModCount;
+			m_compiledHavingModCount = havingModCount;
 		}
+		return m_compiledQuery;
 	}
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mihaila.zorm.ZConnectionPool;
+import com.mihaila.zorm.exception.ZormException;
+
+/**
+ * Tests of the <code>ZConnectionPool</code>, using a fake JDBC driver (no
+ * database is needed).
+ */
+public class ConnectionPoolTest {
+
+	private final static String JDBC_URL = "jdbc:zormtest:pool";
+
+	static {
+		try {
+			DriverManager.registerDriver(new FakeDriver());
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	/**
+	 * Test that a returned connection is borrowed again.
+	 */
+	public void testBorrowReturn() {
+		ZConnectionPool pool = new ZConnectionPool(JDBC_URL);
+		Connection conn = pool.borrowConnection();
+		Assert.assertEquals(pool.getNumConnections(), 1);
+		Assert.assertEquals(pool.getNumIdle(), 0);
+		pool.returnConnection(conn);
+		Assert.assertEquals(pool.getNumConnections(), 1);
+		Assert.assertEquals(pool.getNumIdle(), 1);
+		Assert.assertSame(pool.borrowConnection(), conn);
+		Assert.assertEquals(pool.getNumBorrows(), 2);
+		try {
+			pool.returnConnection(new FakeDriver().connect(JDBC_URL, null));
+			Assert.fail("A foreign connection was returned to the pool.");
+		} catch (ZormException e) {
+			// expected
+		}
+		pool.close();
+	}
+
+	@Test
+	/**
+	 * Test that a thread waits at most maxWait milliseconds for a
+	 * connection when all of them are borrowed.
+	 */
+	public void testExhaustionTimeout() {
+		ZConnectionPool pool = new ZConnectionPool(JDBC_URL);
+		pool.setMaxSize(1);
+		pool.setMaxWait(100);
+		Connection conn = pool.borrowConnection();
+		long startTime = System.currentTimeMillis();
+		try {
+			pool.borrowConnection();
+			Assert.fail("A connection was borrowed from an exhausted pool.");
+		} catch (ZormException e) {
+			// expected
+		}
+		Assert.assertTrue(System.currentTimeMillis() - startTime >= 100);
+		Assert.assertEquals(pool.getNumWaiting(), 0);
+		pool.returnConnection(conn);
+		Assert.assertSame(pool.borrowConnection(), conn);
+		pool.close();
+	}
+
+	@Test
+	/**
+	 * Test that <code>tryBorrowConnection()</code> doesn't wait when all the
+	 * connections are borrowed.
+	 */
+	public void testTryBorrow() {
+		ZConnectionPool pool = new ZConnectionPool(JDBC_URL);
+		pool.setMaxSize(1);
+		Connection conn = pool.tryBorrowConnection();
+		Assert.assertNotNull(conn);
+		long startTime = System.currentTimeMillis();
+		Assert.assertNull(pool.tryBorrowConnection());
+		Assert.assertTrue(System.currentTimeMillis() - startTime < 1000);
+		pool.returnConnection(conn);
+		Assert.assertSame(pool.tryBorrowConnection(), conn);
+		pool.close();
+	}
+
+	@Test
+	/**
+	 * Test that the connections are closed after their maximum lifetime.
+	 */
+	public void testMaxLifetime() throws Exception {
+		ZConnectionPool pool = new ZConnectionPool(JDBC_URL);
+		pool.setMaxLifetime(50);
+		Connection conn = pool.borrowConnection();
+		Thread.sleep(100);
+		// a borrowed connection is closed when it is returned
+		pool.returnConnection(conn);
+		Assert.assertTrue(conn.isClosed());
+		Assert.assertEquals(pool.getNumConnections(), 0);
+
+		conn = pool.borrowConnection();
+		pool.returnConnection(conn);
+		Assert.assertEquals(pool.getNumIdle(), 1);
+		Thread.sleep(100);
+		// an idle connection is closed when the next one is borrowed
+		Connection conn2 = pool.borrowConnection();
+		Assert.assertNotSame(conn2, conn);
+		Assert.assertTrue(conn.isClosed());
+		Assert.assertEquals(pool.getNumConnections(), 1);
+		pool.close();
+	}
+
+	@Test
+	/**
+	 * Test that the pool is filled up to minSize connections.
+	 */
+	public void testMinSize() {
+		ZConnectionPool pool = new ZConnectionPool(JDBC_URL);
+		pool.setMinSize(3);
+		pool.fill();
+		Assert.assertEquals(pool.getNumConnections(), 3);
+		Assert.assertEquals(pool.getNumIdle(), 3);
+		pool.close();
+		Assert.assertEquals(pool.getNumConnections(), 0);
+
+		pool = new ZConnectionPool(JDBC_URL);
+		pool.setMinSize(2);
+		pool.borrowConnection();
+		Assert.assertEquals(pool.getNumConnections(), 2);
+		Assert.assertEquals(pool.getNumIdle(), 1);
+		pool.close();
+	}
+
+	@Test
+	/**
+	 * Test that only the connections idle for more than the
+	 * validationIdleTime are validated when they are borrowed.
+	 */
+	public void testValidationIdleTime() throws Exception {
+		ZConnectionPool pool = new ZConnectionPool(JDBC_URL);
+		pool.setValidationIdleTime(50);
+		Connection conn = pool.borrowConnection();
+		pool.returnConnection(conn);
+		Assert.assertSame(pool.borrowConnection(), conn);
+		Assert.assertEquals(getNumStatements(conn), 0);
+		pool.returnConnection(conn);
+		Thread.sleep(100);
+		Assert.assertSame(pool.borrowConnection(), conn);
+		Assert.assertEquals(getNumStatements(conn), 1);
+		pool.close();
+	}
+
+	/**
+	 * Returns the number of statements created on the specified fake
+	 * connection.
+	 * 
+	 * @param conn
+	 * @return the number of statements created on the connection
+	 */
+	private static int getNumStatements(Connection conn) {
+		return ((FakeConnection) Proxy.getInvocationHandler(conn)).numStatements;
+	}
+
+	/**
+	 * Fake JDBC connection, counting the created statements.
+	 */
+	private final static class FakeConnection implements InvocationHandler {
+
+		int numStatements;
+
+		private boolean closed;
+
+		private boolean autoCommit = true;
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("close")) {
+				closed = true;
+			} else if (name.equals("isClosed")) {
+				return closed;
+			} else if (name.equals("getAutoCommit")) {
+				return autoCommit;
+			} else if (name.equals("setAutoCommit")) {
+				autoCommit = (Boolean) args[0];
+			} else if (name.equals("createStatement")) {
+				numStatements++;
+				return Proxy.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { Statement.class },
+						new InvocationHandler() {
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								return method.getName().equals("execute") ? true
+										: null;
+							}
+						});
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Fake JDBC driver opening <code>FakeConnection</code> objects.
+	 */
+	private final static class FakeDriver implements Driver {
+
+		public boolean acceptsURL(String url) {
+			return url.startsWith(JDBC_URL);
+		}
+
+		public Connection connect(String url, Properties info) {
+			if (!acceptsURL(url)) {
+				return null;
+			}
+			return (Connection) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { Connection.class },
+					new FakeConnection());
+		}
+
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo(String url,
+				Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		public Logger getParentLogger() {
+			return Logger.getLogger("zormtest");
+		}
+	}
+
+}
@@ -22,10 +22,14 @@
 
 package com.mihaila.zormtest;
 
+import java.util.Arrays;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.mihaila.zorm.ZPersistent;
 import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormException;
 import com.mihaila.zorm.exception.ZormPersistentObjectNotFoundException;
 import com.mihaila.zormtest.helper.Item;
 import com.mihaila.zormtest.helper.ZormDbTest;
@@ -71,4 +75,96 @@ public class DeleteTest extends ZormDbTest {
 		Assert.assertFalse(deleted);
 	}
 
+	@Test
+	/**
+	 * Test <code>session.delete(meta, ids)</code> with existing, null and
+	 * duplicate ids.
+	 */
+	public void testDeleteMultiple() {
+		ZSession session = getSession();
+		int numQueries = 0;
+		Item item = (Item) session.get(Item.META, "2");
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		boolean[] deleted = session.delete(Item.META, new String[] { "2",
+				null, "3", "2" });
+		// a single "delete ... in ..." query
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertTrue(Arrays.equals(deleted, new boolean[] { true, false,
+				true, false }));
+		Assert.assertFalse(item.isAttached());
+		// the deleted objects are no longer loaded, so they are read again
+		ZPersistent[] items = session.get(Item.META, new String[] { "2", "3" });
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertNull(items[0]);
+		Assert.assertNull(items[1]);
+	}
+
+	@Test
+	/**
+	 * Test <code>session.delete(meta, ids)</code> with nonexisting ids.
+	 */
+	public void testDeleteMultipleNonexisting() {
+		ZSession session = getSession();
+		boolean[] deleted = session.delete(Item.META,
+				new String[] { "0", "-1" });
+		Assert.assertEquals(session.getNumQueries(), 1);
+		Assert.assertTrue(Arrays.equals(deleted, new boolean[] { false,
+				false }));
+	}
+
+	@Test
+	/**
+	 * Test <code>session.delete(meta, ids)</code> when only some of the ids
+	 * of a query exist: the result of each id is not known, so it fails.
+	 */
+	public void testDeleteMultiplePartial() {
+		ZSession session = getSession();
+		Item item = (Item) session.get(Item.META, "2");
+		boolean failed = false;
+		try {
+			session.delete(Item.META, new String[] { "2", "0" });
+		} catch (ZormException e) {
+			failed = true;
+		}
+		Assert.assertTrue(failed);
+		// the row of the existing object was deleted
+		Assert.assertFalse(item.isAttached());
+		Assert.assertNull(session.get(Item.META, new String[] { "2" })[0]);
+	}
+
+	@Test
+	/**
+	 * Test <code>session.delete(obs)</code>.
+	 */
+	public void testDeleteObjects() {
+		ZSession session = getSession();
+		ZPersistent[] items = session.getShallow(Item.META, new String[] {
+				"4", "1003" });
+		boolean[] deleted = session.delete(new ZPersistent[] { items[0], null,
+				items[1] });
+		Assert.assertTrue(Arrays.equals(deleted, new boolean[] { true, false,
+				true }));
+		items = session.getShallow(Item.META, new String[] { "0" });
+		deleted = session.delete(items);
+		Assert.assertTrue(Arrays.equals(deleted, new boolean[] { false }));
+	}
+
+	@Test
+	/**
+	 * Test <code>session.saveAll()</code> after a modified object was deleted
+	 * by <code>session.delete(meta, ids)</code>.
+	 */
+	public void testSaveAllAfterDeleteMultiple() {
+		ZSession session = getSession();
+		Item item = (Item) session.get(Item.META, "3");
+		item.setName("deleted");
+		boolean[] deleted = session.delete(Item.META, new String[] { "3" });
+		Assert.assertTrue(deleted[0]);
+		Assert.assertFalse(item.isAttached());
+		int numQueries = session.getNumQueries();
+		// the deleted object is not saved anymore
+		session.saveAll();
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+	}
+
 }
@@ -22,11 +22,22 @@
 
 package com.mihaila.zormtest;
 
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZPersistentFilter;
 import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.query.Z;
 import com.mihaila.zormtest.helper.Item;
 import com.mihaila.zormtest.helper.ZormDbTest;
 
@@ -199,4 +210,255 @@ public class GetTest extends ZormDbTest {
 		Assert.assertEquals(item.isActive(), true);
 		Assert.assertEquals(item.getAuthorId(), "janet");
 	}
+
+	@Test
+	/**
+	 * Test <code>Session.get(ZPersistentMeta meta, String[] ids)</code>.
+	 */
+	public void testGetMultiple() {
+		ZSession session = getSession();
+		int numQueries = 0;
+		ZPersistent[] items = session.get(Item.META, new String[] { "2", "1",
+				"0", "2" });
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertEquals(items.length, 4);
+		Item item2 = (Item) items[0];
+		Item item = (Item) items[1];
+		Assert.assertNull(items[2]);
+		Assert.assertEquals(items[3], item2);
+		Assert.assertEquals(item.getId(), "1");
+		Assert.assertEquals(item.getName(), "item1");
+		Assert.assertEquals(item.getRating(), 2);
+		Assert.assertFalse(item.isFieldInitialized(Item.ACTIVE));
+		Assert.assertEquals(item.getAuthorId(), "john");
+		Assert.assertEquals(item2.getId(), "2");
+		Assert.assertEquals(item2.getName(), "item2");
+
+		// loaded objects are taken from cache
+		items = session.get(Item.META, new String[] { "1", "2" });
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+		Assert.assertEquals(items[0], item);
+		Assert.assertEquals(items[1], item2);
+		Assert.assertEquals(session.get(Item.META, "1"), item);
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+
+		// only the missing fields are fetched
+		items = session.get(Item.META, new String[] { "1", "3" },
+				new ZField[] { Item.NAME, Item.ACTIVE });
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertEquals(items[0], item);
+		Assert.assertTrue(item.isActive());
+		Item item3 = (Item) items[1];
+		Assert.assertEquals(item3.getName(), "item3");
+		Assert.assertFalse(item3.isActive());
+		Assert.assertFalse(item3.isFieldInitialized(Item.RATING));
+	}
+
+	@Test
+	/**
+	 * Test <code>Session.getShallow(ZPersistentMeta meta, String[] ids)</code>.
+	 */
+	public void testGetShallowMultiple() {
+		ZSession session = getSession();
+		Item item = (Item) session.get(Item.META, "1");
+		int numQueries = session.getNumQueries();
+		ZPersistent[] items = session.getShallow(Item.META, new String[] {
+				"1", "2" });
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+		Assert.assertEquals(items[0], item);
+		Assert.assertTrue(items[1].isFieldInitialized(Item.ID));
+		Assert.assertFalse(items[1].isFieldInitialized(Item.NAME));
+	}
+
+	@Test
+	/**
+	 * Test the shared cache: the objects dettached from the session are
+	 * retrieved again without queries, until they are written.
+	 */
+	public void testSharedCache() {
+		ZSession session = getSession();
+		Item.META.setSharedCacheSize(100);
+		try {
+			int numQueries = 0;
+			Item item = (Item) session.get(Item.META, "1");
+			Assert.assertEquals(session.getNumQueries(), ++numQueries);
+			String name = item.getName();
+			session.dettachAll();
+			item = (Item) session.get(Item.META, "1");
+			Assert.assertEquals(session.getNumQueries(), numQueries);
+			Assert.assertEquals(item.getName(), name);
+			ZPersistent[] items = session.get(Item.META, new String[] { "1",
+					"2" });
+			Assert.assertEquals(session.getNumQueries(), ++numQueries);
+			Assert.assertEquals(items[0], item);
+			// written objects are not taken from the shared cache
+			item.setName(name + "x");
+			item.save();
+			Assert.assertEquals(session.getNumQueries(), ++numQueries);
+			session.dettachAll();
+			item = (Item) session.get(Item.META, "1");
+			Assert.assertEquals(session.getNumQueries(), ++numQueries);
+			Assert.assertEquals(item.getName(), name + "x");
+		} finally {
+			Item.META.setSharedCacheSize(0);
+		}
+	}
+
+	@Test
+	/**
+	 * Test the asynchronous operations of the session.
+	 */
+	public void testGetAsync() throws Exception {
+		ZSession session = getSession();
+		CompletableFuture<ZPersistent> future = session.getAsync(Item.META,
+				"1");
+		CompletableFuture<ZPersistent> future2 = session.getAsync(Item.META,
+				"2");
+		CompletableFuture<Map<String, Object[]>> futureQuery = session
+				.getSelectQuery()
+				.select(Item.META)
+				.where(Item.RATING, Z.GREATER, Z.bind(2))
+				.orderBy(Item.ID)
+				.executeAsync();
+
+		Item item = (Item) future.get();
+		Assert.assertEquals(item.getName(), "item1");
+		Item item2 = (Item) future2.get();
+		Assert.assertEquals(item2.getName(), "item2");
+		Object[] items = futureQuery.get().get(Item.META.toString());
+		Assert.assertEquals(items.length, 4);
+		// the objects are served from the same session
+		Assert.assertSame(items[0], item2);
+
+		item2.setRating(7);
+		session.saveAllAsync().get();
+		Assert.assertFalse(item2.isModified());
+		Assert.assertEquals(session.getNumQueries(), 4);
+
+		// the results can be composed without blocking
+		CompletableFuture<String> futureName = session.getAsync(Item.META, "3")
+				.thenApply(new Function<ZPersistent, String>() {
+					public String apply(ZPersistent ob) {
+						return ((Item) ob).getName();
+					}
+				});
+		Assert.assertEquals(futureName.join(), "item3");
+	}
+
+	@Test
+	/**
+	 * Test that closing the session waits for the running asynchronous
+	 * operation and cancels the queued ones.
+	 */
+	public void testCloseWithAsync() throws Exception {
+		ZSession session = getSession();
+		final CountDownLatch started = new CountDownLatch(1);
+		CompletableFuture<String> running = session
+				.runAsync(new Callable<String>() {
+					public String call() throws Exception {
+						started.countDown();
+						Thread.sleep(200);
+						return "done";
+					}
+				});
+		CompletableFuture<ZPersistent> queued = session.getAsync(Item.META,
+				"1");
+		started.await();
+		session.close();
+		Assert.assertTrue(running.isDone());
+		Assert.assertEquals(running.get(), "done");
+		Assert.assertTrue(queued.isCancelled());
+		try {
+			session.getAsync(Item.META, "2");
+			Assert.fail("An operation was accepted by a closed session.");
+		} catch (ZormException e) {
+			// expected
+		}
+	}
+
+	@Test
+	/**
+	 * Test the batch fetching of the lazy fields of the objects loaded
+	 * together.
+	 */
+	public void testBatchLazyFetch() {
+		ZSession session = getSession();
+		session.setAutoFetchingFieldsOnRead(true);
+		ZPersistent[] items = session.get(Item.META, new String[] { "1", "2",
+				"3" });
+		int numQueries = session.getNumQueries();
+		Assert.assertTrue(((Item) items[0]).isActive());
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertFalse(((Item) items[1]).isActive());
+		Assert.assertFalse(((Item) items[2]).isActive());
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+
+		// explicit bulk fetch
+		items = session.getShallow(Item.META, new String[] { "4", "1003" });
+		session.fetch(items, new ZField[] { Item.NAME, Item.ACTIVE });
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertEquals(((Item) items[0]).getName(), "item4");
+		Assert.assertTrue(((Item) items[1]).isActive());
+		Assert.assertFalse(items[1].isFieldInitialized(Item.RATING));
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+	}
+
+	@Test
+	/**
+	 * Test that the objects loaded together are fetched in groups of at most
+	 * <code>ZManager.getLazyFetchBatchSize()</code> objects.
+	 */
+	public void testBatchLazyFetchGroups() {
+		ZSession session = getSession();
+		session.setAutoFetchingFieldsOnRead(true);
+		int batchSize = ZManager.getLazyFetchBatchSize();
+		ZManager.setLazyFetchBatchSize(2);
+		try {
+			ZPersistent[] items = session.get(Item.META, new String[] { "1",
+					"2", "3", "4", "1003" });
+			int numQueries = session.getNumQueries();
+			for (ZPersistent item : items) {
+				((Item) item).isActive();
+			}
+			// the groups are (1, 2), (3, 4) and (1003)
+			Assert.assertEquals(session.getNumQueries(), numQueries + 3);
+		} finally {
+			ZManager.setLazyFetchBatchSize(batchSize);
+		}
+	}
+
+	@Test
+	/**
+	 * Test the eviction of the loaded objects.
+	 */
+	public void testEvict() {
+		ZSession session = getSession();
+		Item item = (Item) session.get(Item.META, "1");
+		Item item2 = (Item) session.get(Item.META, "2");
+		Item item3 = (Item) session.get(Item.META, "3");
+		int numQueries = session.getNumQueries();
+		Assert.assertTrue(session.evict(Item.META, "1"));
+		Assert.assertFalse(session.evict(Item.META, "1"));
+		Assert.assertNull(item.getSession());
+		Item item1 = (Item) session.get(Item.META, "1");
+		Assert.assertNotSame(item1, item);
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+
+		// the modified objects are not evicted
+		item2.setName("item2 modified");
+		Assert.assertEquals(session.evict(Item.META), 2);
+		Assert.assertSame(session.get(Item.META, "2"), item2);
+		Assert.assertNull(item3.getSession());
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+
+		item1 = (Item) session.get(Item.META, "1");
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertEquals(session.evictIf(new ZPersistentFilter() {
+			public boolean accept(ZPersistent ob) {
+				return "1".equals(ob.getId());
+			}
+		}), 1);
+		Assert.assertNull(item1.getSession());
+		Assert.assertSame(session.get(Item.META, "2"), item2);
+	}
 }
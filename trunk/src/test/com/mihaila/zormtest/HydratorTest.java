@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZPersistentMeta;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormInvalidFieldValueException;
+import com.mihaila.zorm.field.ZBooleanField;
+import com.mihaila.zorm.field.ZDoubleField;
+import com.mihaila.zorm.field.ZIntField;
+import com.mihaila.zorm.field.ZLongField;
+import com.mihaila.zorm.field.ZStringField;
+
+/**
+ * Tests of the initialization of the objects from a <code>ResultSet</code>
+ * (<code>ZSession.getAndFetchFromResultSet(...)</code>), using a fake result
+ * set (no database is needed).
+ */
+public class HydratorTest {
+
+	private final static ZField[] FIELDS = new ZField[] { Typed.NAME,
+			Typed.COUNT, Typed.SIZE, Typed.PRICE, Typed.ACTIVE, Typed.RANK };
+
+	@Test
+	/**
+	 * Test that each field is read with the getter of its kind: the typed
+	 * getters for the ZORM field classes, <code>getObject()</code> for the
+	 * id and for the fields of inheriting classes.
+	 */
+	public void testReadKinds() throws Exception {
+		FakeResultSet fakeRs = new FakeResultSet("1", "name", 5, 6L, 1.5,
+				true, 7);
+		ZSession session = ZManager.getNewSession();
+		try {
+			Typed typed = (Typed) session.getAndFetchFromResultSet(
+					Typed.META, FIELDS, fakeRs.getResultSet(), 1);
+			Assert.assertEquals(typed.getId(), "1");
+			Assert.assertEquals(typed.getFieldValue(Typed.NAME), "name");
+			Assert.assertEquals(typed.getFieldValue(Typed.COUNT), 5);
+			Assert.assertEquals(typed.getFieldValue(Typed.SIZE), 6L);
+			Assert.assertEquals(typed.getFieldValue(Typed.PRICE), 1.5);
+			Assert.assertEquals(typed.getFieldValue(Typed.ACTIVE), true);
+			Assert.assertEquals(typed.getFieldValue(Typed.RANK), 7);
+			Assert.assertFalse(typed.isModified());
+			Assert.assertEquals(fakeRs.getters, Arrays.asList("getObject",
+					"getString", "getInt", "getLong", "getDouble",
+					"getBoolean", "getObject"));
+
+			// the hydrator is found by the fields, not by the array
+			fakeRs = new FakeResultSet("1", "other", 8, 9L, 2.5, false, 10);
+			Assert.assertSame(session.getAndFetchFromResultSet(Typed.META,
+					FIELDS.clone(), fakeRs.getResultSet(), 1), typed);
+			Assert.assertEquals(typed.getFieldValue(Typed.NAME), "other");
+			Assert.assertEquals(typed.getFieldValue(Typed.SIZE), 9L);
+			Assert.assertEquals(typed.getFieldValue(Typed.ACTIVE), false);
+			Assert.assertEquals(typed.getFieldValue(Typed.RANK), 10);
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	/**
+	 * Test the null values read with each getter.
+	 */
+	public void testNullValues() throws Exception {
+		ZSession session = ZManager.getNewSession();
+		try {
+			FakeResultSet fakeRs = new FakeResultSet("2", null, null, null,
+					null, null, null);
+			Typed typed = (Typed) session.getAndFetchFromResultSet(
+					Typed.META, FIELDS, fakeRs.getResultSet(), 1);
+			for (ZField field : FIELDS) {
+				Assert.assertTrue(typed.isFieldInitialized(field));
+				Assert.assertNull(typed.getFieldValue(field));
+			}
+			// a null id means that there is no object
+			fakeRs = new FakeResultSet(null, "name", 1, 1L, 1.0, true, 1);
+			Assert.assertNull(session.getAndFetchFromResultSet(Typed.META,
+					FIELDS, fakeRs.getResultSet(), 1));
+
+			fakeRs = new FakeResultSet("3", null);
+			try {
+				session.getAndFetchFromResultSet(Typed.META,
+						new ZField[] { Typed.REQUIRED }, fakeRs
+								.getResultSet(), 1);
+				Assert.fail("A null value was read into a non-null field.");
+			} catch (ZormInvalidFieldValueException e) {
+				// expected
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Int field class inheriting <code>ZIntField</code>, read with
+	 * <code>getObject()</code>.
+	 */
+	private static final class RankField extends ZIntField {
+
+		public RankField(String name) {
+			super(name);
+		}
+	}
+
+	/**
+	 * Persistent class with a field of each read kind (public, so the session
+	 * can create its objects).
+	 */
+	public static final class Typed extends ZPersistent {
+
+		static final ZPersistentMeta META = new ZPersistentMeta(Typed.class,
+				"typed", "t");
+
+		static final ZStringField ID = new ZStringField("id");
+
+		static final ZStringField NAME = new ZStringField("name");
+
+		static final ZIntField COUNT = new ZIntField("count");
+
+		static final ZLongField SIZE = new ZLongField("size");
+
+		static final ZDoubleField PRICE = new ZDoubleField("price");
+
+		static final ZBooleanField ACTIVE = new ZBooleanField("active");
+
+		static final RankField RANK = new RankField("rank");
+
+		static final ZIntField REQUIRED = new ZIntField("required");
+
+		static {
+			META.setFields(ID, NAME, COUNT, SIZE, PRICE, ACTIVE, RANK,
+					REQUIRED);
+			for (ZField field : new ZField[] { NAME, COUNT, SIZE, PRICE,
+					ACTIVE, RANK }) {
+				field.setNullValid(true);
+			}
+		}
+
+		@Override
+		public ZPersistentMeta getMeta() {
+			return META;
+		}
+	}
+
+	/**
+	 * Fake <code>ResultSet</code> with one row, recording the getters called
+	 * for the columns.
+	 */
+	private final static class FakeResultSet implements InvocationHandler {
+
+		final List<String> getters = new ArrayList<String>();
+
+		private final Object[] values;
+
+		private boolean wasNull;
+
+		FakeResultSet(Object... values) {
+			this.values = values;
+		}
+
+		ResultSet getResultSet() {
+			return (ResultSet) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { ResultSet.class },
+					this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("wasNull")) {
+				return wasNull;
+			}
+			Object value = values[(Integer) args[0] - 1];
+			getters.add(name);
+			wasNull = (value == null);
+			if (name.equals("getInt")) {
+				return wasNull ? 0 : ((Number) value).intValue();
+			} else if (name.equals("getLong")) {
+				return wasNull ? 0L : ((Number) value).longValue();
+			} else if (name.equals("getDouble")) {
+				return wasNull ? 0.0 : ((Number) value).doubleValue();
+			} else if (name.equals("getBoolean")) {
+				return wasNull ? false : value;
+			}
+			return value;
+		}
+	}
+
+}
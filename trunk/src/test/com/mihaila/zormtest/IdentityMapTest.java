@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormtest;
+
+import java.lang.ref.WeakReference;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zormtest.helper.Item;
+
+/**
+ * Tests of the identity map of a session with a limited capacity
+ * (<code>ZManager.setIdentityMapCapacity(int)</code>), using shallow objects
+ * (no database is needed).
+ */
+public class IdentityMapTest {
+
+	private final static int MAX_GC_RUNS = 50;
+
+	private int m_identityMapCapacity;
+
+	private ZSession m_session;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		m_identityMapCapacity = ZManager.getIdentityMapCapacity();
+		ZManager.setIdentityMapCapacity(2);
+		m_session = ZManager.getNewSession();
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		m_session.close();
+		ZManager.setIdentityMapCapacity(m_identityMapCapacity);
+	}
+
+	@Test
+	/**
+	 * Test that an unmodified object not referenced by the application is
+	 * dropped from the loaded objects after more recently used objects
+	 * exceed the capacity.
+	 */
+	public void testUnmodifiedDropped() {
+		WeakReference<ZPersistent> ref = getShallowRef("1", null);
+		// the object is kept while it is among the most recently used
+		collectGarbage(null);
+		Assert.assertSame(m_session.getShallow(Item.META, "1"), ref.get());
+
+		getShallowRefs("2", "3");
+		collectGarbage(ref);
+		Assert.assertNull(ref.get());
+		// a new object is created for the id
+		ZPersistent ob = m_session.getShallow(Item.META, "1");
+		Assert.assertNotNull(ob);
+		Assert.assertTrue(ob.isAttached());
+	}
+
+	@Test
+	/**
+	 * Test that a modified object is kept, with its changes, after more
+	 * recently used objects exceed the capacity.
+	 */
+	public void testModifiedKept() {
+		WeakReference<ZPersistent> ref = getShallowRef("1", "changed");
+		getShallowRefs("2", "3");
+		collectGarbage(ref);
+		Item item = (Item) ref.get();
+		Assert.assertNotNull(item);
+		Assert.assertSame(m_session.getShallow(Item.META, "1"), item);
+		Assert.assertEquals(item.getName(), "changed");
+		Assert.assertTrue(item.isModified());
+	}
+
+	/**
+	 * Returns a weak reference to the shallow item with the specified id,
+	 * after setting its name (if not null), without keeping the item
+	 * referenced.
+	 * 
+	 * @param id
+	 * @param name
+	 * @return a weak reference to the shallow item with the specified id
+	 */
+	private WeakReference<ZPersistent> getShallowRef(String id, String name) {
+		Item item = (Item) m_session.getShallow(Item.META, id);
+		if (name != null) {
+			item.setName(name);
+		}
+		return new WeakReference<ZPersistent>(item);
+	}
+
+	/**
+	 * Get the shallow items with the specified ids, without keeping them
+	 * referenced.
+	 * 
+	 * @param ids
+	 */
+	private void getShallowRefs(String... ids) {
+		for (String id : ids) {
+			getShallowRef(id, null);
+		}
+	}
+
+	/**
+	 * Run the garbage collector until the specified reference is cleared (if
+	 * not null), at most <code>MAX_GC_RUNS</code> times.
+	 * 
+	 * @param ref
+	 */
+	private static void collectGarbage(WeakReference<ZPersistent> ref) {
+		for (int i = 0; i < MAX_GC_RUNS; i++) {
+			System.gc();
+			if ((ref == null) || (ref.get() == null)) {
+				return;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormtest;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZMetrics;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zormtest.helper.Item;
+import com.mihaila.zormtest.helper.ZormDbTest;
+
+
+/**
+ * Test the metrics of the ZORM framework.
+ */
+public class MetricsTest extends ZormDbTest {
+
+	@Test
+	public void testMetrics() throws Exception {
+		ZMetrics metrics = ZManager.getMetrics();
+		ZSession session = getSession();
+		long numSelects = metrics.getNumSelects();
+		long numRows = metrics.getNumRowsHydrated();
+		long numHits = metrics.getNumIdentityMapHits();
+		long numMisses = metrics.getNumIdentityMapMisses();
+		long numLatencies = 0;
+		for (long count : metrics.getSelectLatencies()) {
+			numLatencies += count;
+		}
+
+		session.get(Item.META, "1");
+		session.get(Item.META, "1");
+		Assert.assertEquals(metrics.getNumSelects(), numSelects + 1);
+		Assert.assertEquals(metrics.getNumRowsHydrated(), numRows + 1);
+		Assert.assertEquals(metrics.getNumIdentityMapHits(), numHits + 1);
+		Assert.assertEquals(metrics.getNumIdentityMapMisses(), numMisses + 1);
+		long newNumLatencies = 0;
+		for (long count : metrics.getSelectLatencies()) {
+			newNumLatencies += count;
+		}
+		Assert.assertEquals(newNumLatencies, numLatencies + 1);
+
+		int numOpenSessions = metrics.getNumOpenSessions();
+		ZManager.getNewSession().close();
+		Assert.assertEquals(metrics.getNumOpenSessions(), numOpenSessions);
+
+		Assert.assertEquals(ZMetrics.getQueryKind(" UPDATE item set x = 1"),
+				ZMetrics.QUERY_UPDATE);
+		Assert.assertEquals(ZMetrics.getQueryKind("show tables"),
+				ZMetrics.QUERY_OTHER);
+	}
+
+	@Test
+	/**
+	 * Test the slow query log: the execution and fetch time is recorded, and
+	 * a slow query is explained at most once per explain interval.
+	 */
+	public void testSlowQuery() throws Exception {
+		ZMetrics metrics = ZManager.getMetrics();
+		ZSession session = getSession();
+		Executor asyncExecutor = ZManager.getAsyncExecutor();
+		final int[] numExplains = new int[1];
+		ZManager.setAsyncExecutor(new Executor() {
+			public void execute(Runnable command) {
+				numExplains[0]++;
+				command.run();
+			}
+		});
+		ZManager.setSlowQueryThreshold(10);
+		ZManager.setExplainingSlowQueries(true);
+		try {
+			String sql = "SELECT id FROM item WHERE id = " + System.nanoTime();
+			long totalTime = metrics.getTotalSelectTime();
+			long now = System.nanoTime();
+			// 20 ms execution and 30 ms fetch
+			session.queryExecuted(sql, now - 50000000L, now - 30000000L, 1);
+			Assert.assertTrue(metrics.getTotalSelectTime() - totalTime >= 50000);
+			Assert.assertEquals(numExplains[0], 1);
+			session.queryExecuted(sql, now - 50000000L, now - 30000000L, 1);
+			Assert.assertEquals(numExplains[0], 1);
+			// a fast query is not logged
+			session.queryExecuted(sql + 1, now, now, 1);
+			Assert.assertEquals(numExplains[0], 1);
+			ZManager.setSlowQueryExplainInterval(0);
+			session.queryExecuted(sql, now - 50000000L, now - 30000000L, 1);
+			Assert.assertEquals(numExplains[0], 2);
+		} finally {
+			ZManager.setSlowQueryExplainInterval(60000);
+			ZManager.setExplainingSlowQueries(false);
+			ZManager.setSlowQueryThreshold(0);
+			ZManager.setAsyncExecutor(asyncExecutor);
+		}
+	}
+
+	@Test
+	public void testMBeans() throws Exception {
+		ZManager.registerMBeans();
+		try {
+			getSession().get(Item.META, "2");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(ZManager.METRICS_MBEAN_NAME);
+			Assert.assertEquals(server.getAttribute(name, "NumSelects"),
+					ZManager.getMetrics().getNumSelects());
+		} finally {
+			ZManager.unregisterMBeans();
+		}
+	}
+}
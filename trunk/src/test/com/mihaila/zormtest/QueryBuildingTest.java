@@ -23,13 +23,21 @@
 package com.mihaila.zormtest;
 
 import static com.mihaila.zorm.query.Z.EQUALS;
+import static com.mihaila.zorm.query.Z.GREATER;
+import static com.mihaila.zorm.query.Z.bind;
 import static com.mihaila.zorm.query.Z.desc;
+import static com.mihaila.zorm.query.Z.expr;
+import static com.mihaila.zorm.query.Z.param;
 import static com.mihaila.zorm.query.Z.Join.LEFT;
 
+import java.util.Arrays;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.query.ZCompiledQuery;
 import com.mihaila.zorm.query.ZSelectQuery;
 import com.mihaila.zormtest.helper.Item;
 import com.mihaila.zormtest.helper.User;
@@ -86,4 +94,76 @@ public class QueryBuildingTest {
 			);
 	}
 
+	@Test
+	/**
+	 * Test the following query construction features: keyset pagination with
+	 * one and more key fields.
+	 */
+	public void testSeek() {
+		String s = new ZSelectQuery()
+				.select(Item.META)
+				.where(Item.ACTIVE, EQUALS, Item.ACTIVE.toSqlValue(true))
+				.seek(new ZField[] { Item.ID }, new Object[] { "3" }, false)
+				.take(10)
+				.toString();
+		Assert.assertEquals(s, "SELECT i.id, i.name, i.rating, i.author_id"
+				+ " FROM item i"
+				+ " WHERE ((i.active = 1)) AND (i.id > ?)"
+				+ " ORDER BY i.id"
+				+ " LIMIT 10"
+			);
+		s = new ZSelectQuery()
+				.select(Item.META)
+				.seek(new ZField[] { Item.RATING, Item.ID },
+						new Object[] { 4, "3" }, true)
+				.take(10)
+				.toString();
+		Assert.assertEquals(s, "SELECT i.id, i.name, i.rating, i.author_id"
+				+ " FROM item i"
+				+ " WHERE ((i.rating, i.id) < (?, ?))"
+				+ " ORDER BY i.rating DESC, i.id DESC"
+				+ " LIMIT 10"
+			);
+		// the WHERE clause is bracketed, even if it was not built with where()
+		ZSelectQuery query = new ZSelectQuery().select(Item.META);
+		query.getWhereExpr().getStringBuilder().append(
+				"i.id = 1 OR i.rating > 3");
+		s = query.seek(new ZField[] { Item.ID }, new Object[] { "3" }, false)
+				.toString();
+		Assert.assertEquals(s, "SELECT i.id, i.name, i.rating, i.author_id"
+				+ " FROM item i"
+				+ " WHERE (i.id = 1 OR i.rating > 3) AND (i.id > ?)"
+				+ " ORDER BY i.id"
+			);
+	}
+
+	@Test
+	/**
+	 * Test that compile() tracks the parameters of the SELECT clause, of the
+	 * join conditions, of the WHERE clause and of the ORDER BY clause, in the
+	 * order of the placeholders, and fails for the untracked placeholders.
+	 */
+	public void testCompileParameters() {
+		ZCompiledQuery query = new ZSelectQuery()
+				.autoAddToFrom(false)
+				.select(Item.META)
+				.select(bind(1), "one")
+				.from(Item.META)
+				.join(LEFT, User.META, Item.AUTHOR_ID, bind(2))
+				.where(Item.RATING, GREATER, param(Item.RATING))
+				.where(Item.NAME, EQUALS, "'what?'")
+				.orderBy(bind(3))
+				.compile();
+		Assert.assertEquals(query.getNumParameters(), 1);
+		Assert.assertTrue(Arrays.equals(query.getBoundValues(), new Object[] {
+				1, 2, 3 }));
+
+		try {
+			new ZSelectQuery().select(Item.META).where(Item.NAME, EQUALS,
+					expr("UPPER(", param(), ")")).compile();
+			Assert.fail("A placeholder inside a Z function was not detected.");
+		} catch (ZormException e) {
+			// expected
+		}
+	}
 }
@@ -23,15 +23,33 @@
 package com.mihaila.zormtest;
 
 import static com.mihaila.zorm.query.Z.EQUALS;
+import static com.mihaila.zorm.query.Z.GREATER;
+import static com.mihaila.zorm.query.Z.LESS;
+import static com.mihaila.zorm.query.Z.OR;
+import static com.mihaila.zorm.query.Z.bind;
+import static com.mihaila.zorm.query.Z.param;
 import static com.mihaila.zorm.query.Z.second;
 import static com.mihaila.zorm.query.Z.value;
 import static com.mihaila.zorm.query.Z.Join.LEFT;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.query.Z;
+import com.mihaila.zorm.query.ZCompiledQuery;
+import com.mihaila.zorm.query.ZPageIterator;
+import com.mihaila.zorm.query.ZSelectCursor;
+import com.mihaila.zorm.query.ZSelectQuery;
 import com.mihaila.zormtest.helper.Item;
 import com.mihaila.zormtest.helper.User;
 import com.mihaila.zormtest.helper.ZormDbTest;
@@ -191,4 +209,333 @@ public class QueryExecuteTest extends ZormDbTest {
 		Assert.assertEquals(authorName, "John Doe");
 
 	}
+
+	@Test
+	public void testIterate() {
+		ZSelectCursor cursor = getSession().getSelectQuery()
+				.select(Item.META)
+				.select("1+1", "two")
+				.whereIn(Item.ID, 1, 2)
+				.orderBy(Item.ID)
+				.fetchSize(1)
+				.iterate();
+
+		String[] names = cursor.getSelectedNames();
+		Assert.assertEquals(names.length, 2);
+		Assert.assertEquals(names[0], Item.META.toString());
+		Assert.assertEquals(names[1], "two");
+
+		Assert.assertTrue(cursor.hasNext());
+		Object[] row = cursor.next();
+		Item item = (Item) row[0];
+		Assert.assertEquals(item.getId(), "1");
+		Assert.assertEquals(item.getName(), "item1");
+		Assert.assertEquals((long) (Long) row[1], 2);
+
+		row = cursor.next();
+		Item item2 = (Item) row[0];
+		Assert.assertEquals(item2.getId(), "2");
+		Assert.assertEquals(item2.getName(), "item2");
+
+		Assert.assertFalse(cursor.hasNext());
+		Assert.assertTrue(cursor.isClosed());
+	}
+
+	@Test
+	/**
+	 * Test the streaming of the results: the objects of a row are dettached
+	 * when the next row is read (unless they are modified), and closing the
+	 * stream closes the cursor.
+	 */
+	public void testStream() {
+		ZSession session = getSession();
+		Item[] items = new Item[4];
+		Stream<Object[]> stream = session.getSelectQuery()
+				.select(Item.META)
+				.orderBy(Item.ID)
+				.stream();
+		try {
+			Iterator<Object[]> rows = stream.iterator();
+			for (int i = 0; i < items.length; i++) {
+				items[i] = (Item) rows.next()[0];
+				if (i == 1) {
+					items[i].setName("streamed");
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		Assert.assertFalse(items[0].isAttached());
+		Assert.assertTrue(items[1].isAttached());
+		Assert.assertFalse(items[2].isAttached());
+		// the last row is still in use
+		Assert.assertTrue(items[3].isAttached());
+
+		ZSelectCursor cursor = session.getSelectQuery().select(Item.META)
+				.iterate();
+		cursor.next();
+		cursor.close();
+		Assert.assertTrue(cursor.isClosed());
+	}
+
+	@Test
+	public void testCompile() {
+		ZCompiledQuery query = getSession().getSelectQuery()
+				.select(Item.META)
+				.where(Item.ID, EQUALS, param(Item.ID))
+				.compile();
+		Assert.assertEquals(query.getNumParameters(), 1);
+		Assert.assertTrue(query.getSql().endsWith(" WHERE (i.id = ?)"));
+
+		int numQueries = getSession().getNumQueries();
+		Item item = (Item) query.executeUnique(getSession(), "1");
+		Assert.assertEquals(item.getId(), "1");
+		Assert.assertEquals(item.getName(), "item1");
+		Item item2 = (Item) query.executeUnique(getSession(), "2");
+		Assert.assertEquals(item2.getId(), "2");
+		Assert.assertEquals(item2.getName(), "item2");
+		Assert.assertNull(query.executeUnique(getSession(), "-1"));
+		Assert.assertEquals(getSession().getNumQueries(), numQueries + 3);
+	}
+
+	@Test
+	/**
+	 * Test the execution of the same query after each change.
+	 */
+	public void testExecuteAgain() {
+		ZSelectQuery query = getSession().getSelectQuery()
+				.select(Item.META)
+				.where(Item.RATING, GREATER, value(2))
+				.orderBy(Item.ID);
+		Assert.assertEquals(query.executeUniqueSelect().length, 4);
+		Assert.assertEquals(query.executeUniqueSelect().length, 4);
+
+		query.where(Item.RATING, LESS, value(5));
+		Assert.assertEquals(query.executeUniqueSelect().length, 3);
+		query.take(1);
+		Object[] items = query.executeUniqueSelect();
+		Assert.assertEquals(items.length, 1);
+		Assert.assertEquals(((Item) items[0]).getId(), "2");
+		query.getWhereExpr().getStringBuilder().append(" AND (i.id > 2)");
+		items = query.executeUniqueSelect();
+		Assert.assertEquals(items.length, 1);
+		Assert.assertEquals(((Item) items[0]).getId(), "3");
+		query.clearWhere();
+		items = query.executeUniqueSelect();
+		Assert.assertEquals(items.length, 1);
+		Assert.assertEquals(((Item) items[0]).getId(), "1");
+	}
+
+	@Test
+	public void testBind() {
+		ZSelectQuery query = getSession().getSelectQuery()
+				.select(Item.META)
+				.whereIn(Item.ID, bind(Item.ID, "1"), bind("2"))
+				.where(Item.RATING, GREATER, bind(2))
+				.orderBy(Item.ID);
+		Assert.assertTrue(query.toString().contains(
+				"(i.id IN (?, ?)) AND (i.rating > ?)"));
+
+		Object[] items = query.executeUniqueSelect();
+		Assert.assertEquals(items.length, 1);
+		Assert.assertEquals(((Item) items[0]).getId(), "2");
+
+		ZCompiledQuery compiled = query.compile();
+		Assert.assertEquals(compiled.getNumParameters(), 0);
+		Assert.assertTrue(Arrays.equals(compiled.getBoundValues(),
+				new Object[] { "1", "2", 2 }));
+	}
+
+	@Test
+	public void testPrefetch() {
+		int numQueries = getSession().getNumQueries();
+		Object[] items = getSession().getSelectQuery()
+				.select(Item.META)
+				.orderBy(Item.ID)
+				.prefetch(Item.AUTHOR_ID, User.META)
+				.executeUniqueSelect();
+		Assert.assertEquals(((Item) items[0]).getId(), "1");
+		// the query and a single query for the authors
+		Assert.assertEquals(getSession().getNumQueries(), numQueries + 2);
+		User author = ((Item) items[0]).getAuthor();
+		Assert.assertEquals(author.getId(), "john");
+		Assert.assertEquals(getSession().getNumQueries(), numQueries + 2);
+
+		ZPersistent[] authors = getSession().prefetch(items, Item.AUTHOR_ID,
+				User.META);
+		Assert.assertEquals(authors.length, 1);
+		Assert.assertSame(authors[0], author);
+		Assert.assertEquals(getSession().getNumQueries(), numQueries + 2);
+	}
+
+	@Test
+	/**
+	 * Test the caching of the query results and their invalidation.
+	 */
+	public void testCacheResults() {
+		ZManager.getQueryCache().clear();
+		ZSelectQuery query = getSession().getSelectQuery();
+		query.select(Item.META).where(Item.RATING, GREATER, value(3))
+				.orderBy(Item.ID).cacheResults(0);
+		ZCompiledQuery compiled = query.compile();
+		int numQueries = getSession().getNumQueries();
+		Object[] items = compiled.executeUniqueSelect(getSession());
+		Assert.assertEquals(items.length, 3);
+		Assert.assertEquals(getSession().getNumQueries(), ++numQueries);
+		Object[] cachedItems = compiled.executeUniqueSelect(getSession());
+		Assert.assertEquals(Arrays.asList(cachedItems), Arrays.asList(items));
+		Assert.assertSame(cachedItems[0], items[0]);
+		Assert.assertEquals(getSession().getNumQueries(), numQueries);
+
+		// the cached ids are retrieved again in the session
+		getSession().dettachAll();
+		cachedItems = compiled.executeUniqueSelect(getSession());
+		Assert.assertEquals(getSession().getNumQueries(), ++numQueries);
+		Assert.assertEquals(((Item) cachedItems[0]).getName(), "item3");
+		Assert.assertEquals(getSession().getNumQueries(), numQueries);
+
+		// the writes invalidate the results
+		Item item = (Item) cachedItems[0];
+		item.setName("item3 cached");
+		item.save();
+		Assert.assertEquals(getSession().getNumQueries(), ++numQueries);
+		Assert.assertEquals(ZManager.getQueryCache().size(), 0);
+		compiled.executeUniqueSelect(getSession());
+		Assert.assertEquals(getSession().getNumQueries(), ++numQueries);
+		getSession().commit();
+		compiled.executeUniqueSelect(getSession());
+		Assert.assertEquals(getSession().getNumQueries(), ++numQueries);
+		compiled.executeUniqueSelect(getSession());
+		Assert.assertEquals(getSession().getNumQueries(), numQueries);
+	}
+
+	@Test
+	/**
+	 * Test that the tables read by the query must be specified to cache the
+	 * results when the FROM clause is not made of plain table names.
+	 */
+	public void testCacheResultsTables() {
+		ZSelectQuery query = getSession().getSelectQuery();
+		query.autoAddToFrom(false).select(Item.META)
+				.from("item i JOIN user u ON (i.author_id = u.id)")
+				.cacheResults(0);
+		boolean tablesUnknown = false;
+		try {
+			query.compile();
+		} catch (ZormException e) {
+			tablesUnknown = true;
+		}
+		Assert.assertTrue(tablesUnknown);
+		ZCompiledQuery compiled = query.cacheResults(0, "item", "user")
+				.compile();
+		Assert.assertEquals(compiled.executeUniqueSelect(getSession()).length,
+				1);
+	}
+
+	@Test
+	/**
+	 * Test the iteration of the pages of results using the keyset
+	 * pagination, with the reading ahead of the next page.
+	 */
+	public void testIteratePages() {
+		int numQueries = getSession().getNumQueries();
+		ZPageIterator pages = getSession().getSelectQuery()
+				.select(Item.META)
+				.iteratePages(new ZField[] { Item.ID }, false, 2, true);
+		StringBuilder ids = new StringBuilder();
+		int numPages = 0;
+		for (Map<String, Object[]> page : pages) {
+			numPages++;
+			for (Object item : page.get("i")) {
+				ids.append(((Item) item).getId()).append(' ');
+			}
+		}
+		Assert.assertEquals(ids.toString(), "1 2 3 4 1003 ");
+		Assert.assertEquals(numPages, 3);
+		// the last page is not full, so no other page is read
+		Assert.assertEquals(getSession().getNumQueries(), numQueries + 3);
+		Assert.assertEquals(pages.getLastValues(), new Object[] { "1003" });
+
+		// continue the pagination from the specified key values
+		Object[] items = getSession().getSelectQuery()
+				.select(Item.META)
+				.seek(new ZField[] { Item.ID }, new Object[] { "3" }, false)
+				.take(2)
+				.executeUniqueSelect();
+		Assert.assertEquals(items.length, 2);
+		Assert.assertEquals(((Item) items[0]).getId(), "4");
+		Assert.assertEquals(((Item) items[1]).getId(), "1003");
+	}
+
+	@Test
+	/**
+	 * Test that the modified objects of the previous pages stay in the
+	 * session when the pages are dettached.
+	 */
+	public void testDettachPages() {
+		ZSession session = getSession();
+		ZPageIterator pages = session.getSelectQuery()
+				.select(Item.META)
+				.iteratePages(new ZField[] { Item.ID }, false, 2, false);
+		pages.setDettachingPages(true);
+		Object[] page = pages.next().get("i");
+		Item modified = (Item) page[0];
+		Item unmodified = (Item) page[1];
+		modified.setName("pages");
+		pages.next();
+		Assert.assertSame(modified.getSession(), session);
+		Assert.assertNull(unmodified.getSession());
+		session.saveAll();
+		modified.dettach();
+		Item item = (Item) session.get(Item.META, "1");
+		Assert.assertEquals(item.getName(), "pages");
+	}
+
+	@Test
+	/**
+	 * Test the execution of the same query for consecutive pages of the
+	 * keyset pagination, with an OR condition in the WHERE clause.
+	 */
+	public void testSeekTwice() {
+		ZSelectQuery query = getSession().getSelectQuery()
+				.select(Item.META)
+				.where(Item.ID, EQUALS, value(1), OR, Item.RATING, GREATER,
+						value(3))
+				.take(2);
+		Object[] items = query.seek(new ZField[] { Item.ID },
+				new Object[] { "1" }, false).executeUniqueSelect();
+		Assert.assertEquals(items.length, 2);
+		Assert.assertEquals(((Item) items[0]).getId(), "3");
+		Assert.assertEquals(((Item) items[1]).getId(), "4");
+		items = query.seek(new ZField[] { Item.ID }, new Object[] { "4" },
+				false).executeUniqueSelect();
+		Assert.assertEquals(items.length, 1);
+		Assert.assertEquals(((Item) items[0]).getId(), "1003");
+
+		// an executed query can be iterated by pages
+		ZPageIterator pages = query.iteratePages(new ZField[] { Item.ID },
+				false, 2, false);
+		Assert.assertEquals(pages.next().get("i").length, 2);
+		// the query itself is not changed by the pagination
+		items = query.executeUniqueSelect();
+		Assert.assertEquals(items.length, 1);
+		Assert.assertEquals(((Item) items[0]).getId(), "1003");
+	}
+
+	@Test
+	/**
+	 * Test that iterating the pages of a query doesn't change its limit and
+	 * ordering.
+	 */
+	public void testIteratePagesKeepsQuery() {
+		ZSelectQuery query = getSession().getSelectQuery()
+				.select(Item.META)
+				.orderBy(Z.desc(Item.ID));
+		ZPageIterator pages = query.iteratePages(new ZField[] { Item.ID },
+				false, 2, false);
+		Assert.assertEquals(((Item) pages.next().get("i")[0]).getId(), "1");
+		Object[] items = query.executeUniqueSelect();
+		Assert.assertEquals(items.length, 5);
+		Assert.assertEquals(((Item) items[0]).getId(), "1003");
+	}
 }
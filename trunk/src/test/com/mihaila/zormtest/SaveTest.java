@@ -26,8 +26,10 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZPersistent;
 import com.mihaila.zorm.ZSession;
 import com.mihaila.zormtest.helper.Item;
+import com.mihaila.zormtest.helper.User;
 import com.mihaila.zormtest.helper.ZormDbTest;
 
 
@@ -113,4 +115,147 @@ public class SaveTest extends ZormDbTest {
 		Assert.assertEquals(item.getAuthorId(), "alice2");
 	}
 
+	@Test
+	/**
+	 * Test saving new objects in deferringWrites mode (the objects are
+	 * inserted in a single batch when the session is flushed).
+	 */
+	public void testSaveNewDeferred() {
+		ZSession session = getSession();
+		session.setDeferringWrites(true);
+		int numQueries = 0;
+		Item[] items = new Item[3];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = session.getNew(Item.class);
+			items[i].setName("batch" + i);
+			items[i].setActive(i == 1);
+			items[i].setAuthorId(null);
+			items[i].save();
+		}
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+		Assert.assertTrue(items[0].isNew());
+		session.flush();
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		for (Item item : items) {
+			Assert.assertFalse(item.isNew());
+			Assert.assertFalse(item.isModified());
+			Assert.assertNotNull(item.getId());
+		}
+		String id = items[1].getId();
+		items[1].dettach();
+		Item item = (Item) session.get(Item.META, id, new ZField[] {
+				Item.NAME, Item.ACTIVE });
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		Assert.assertEquals(item.getName(), "batch1");
+		Assert.assertEquals(item.isActive(), true);
+	}
+
+	@Test
+	/**
+	 * Test that the pending writes are flushed in the order of the save()
+	 * calls: only the consecutive objects using the same statement are
+	 * written in the same batch.
+	 */
+	public void testSaveDeferredOrder() {
+		ZSession session = getSession();
+		session.setDeferringWrites(true);
+		Item[] items = new Item[3];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = session.getNew(Item.class);
+			items[i].setName("order" + i);
+			items[i].setActive(false);
+		}
+		items[0].setAuthorId("john");
+		items[0].save();
+		User user = session.getNew(User.class);
+		user.setId("order");
+		user.setName("order");
+		user.save();
+		items[1].setAuthor(user);
+		items[1].save();
+		items[2].setAuthor(user);
+		items[2].save();
+		int numQueries = session.getNumQueries();
+		session.flush();
+		// the item, the user and the two items referencing the user
+		Assert.assertEquals(session.getNumQueries(), numQueries + 3);
+		Assert.assertFalse(user.isNew());
+		for (Item item : items) {
+			Assert.assertFalse(item.isNew());
+		}
+		Assert.assertTrue(Integer.parseInt(items[0].getId()) < Integer
+				.parseInt(items[1].getId()));
+	}
+
+	@Test
+	public void testSaveExistingDeferred() {
+		ZSession session = getSession();
+		Item[] items = new Item[3];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = session.getNew(Item.class);
+			items[i].setName("update" + i);
+			items[i].setActive(false);
+			items[i].setAuthorId(null);
+			items[i].save();
+		}
+		session.setDeferringWrites(true);
+		int numQueries = session.getNumQueries();
+		for (Item item : items) {
+			item.setName(item.getName() + "b");
+			item.save();
+		}
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+		Assert.assertTrue(items[0].isModified());
+		session.flush();
+		Assert.assertEquals(session.getNumQueries(), ++numQueries);
+		for (Item item : items) {
+			Assert.assertFalse(item.isModified());
+		}
+		String id = items[2].getId();
+		items[2].dettach();
+		Item item = (Item) session.get(Item.META, id, new ZField[] { Item.NAME });
+		Assert.assertEquals(item.getName(), "update2b");
+	}
+
+	@Test
+	/**
+	 * Test <code>ZSession.saveAll()</code>: only the modified objects
+	 * (including the new ones) are saved.
+	 */
+	public void testSaveAll() {
+		ZSession session = getSession();
+		ZPersistent[] items = session.get(Item.META, new String[] { "1", "2",
+				"3" });
+		((Item) items[1]).setName("saveAll");
+		Item newItem = session.getNew(Item.class);
+		newItem.setName("saveAll new");
+		newItem.setActive(false);
+		newItem.setAuthorId(null);
+		int numQueries = session.getNumQueries();
+		session.saveAll();
+		// an insert and an update
+		Assert.assertEquals(session.getNumQueries(), numQueries + 2);
+		Assert.assertFalse(items[1].isModified());
+		Assert.assertFalse(newItem.isNew());
+		session.saveAll();
+		Assert.assertEquals(session.getNumQueries(), numQueries + 2);
+
+		String id = newItem.getId();
+		newItem.dettach();
+		Item item = (Item) session.get(Item.META, id, new ZField[] { Item.NAME });
+		Assert.assertEquals(item.getName(), "saveAll new");
+
+		// an object saved directly is registered again when it is modified
+		Item item3 = (Item) items[2];
+		item3.setName("saved");
+		item3.save();
+		numQueries = session.getNumQueries();
+		session.saveAll();
+		Assert.assertEquals(session.getNumQueries(), numQueries);
+		item3.setName("saveAll again");
+		session.saveAll();
+		Assert.assertEquals(session.getNumQueries(), numQueries + 1);
+		Assert.assertFalse(item3.isModified());
+	}
+
 }
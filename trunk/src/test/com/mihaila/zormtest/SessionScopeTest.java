@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormtest;
+
+import java.util.concurrent.Callable;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZSession;
+import com.mihaila.zorm.ZSessionScope;
+import com.mihaila.zormtest.helper.Item;
+import com.mihaila.zormtest.helper.ZormDbTest;
+
+
+/**
+ * Test the scoped session binding.
+ */
+public class SessionScopeTest extends ZormDbTest {
+
+	@Test
+	public void testRunWithSession() {
+		Assert.assertFalse(ZSessionScope.isBound());
+		final ZSession session = getSession();
+		final ZSession otherSession = ZManager.getNewSession();
+		Item item = ZSessionScope.runWithSession(session, new Callable<Item>() {
+			public Item call() {
+				Assert.assertSame(ZSessionScope.getSession(), session);
+				ZSessionScope.runWithSession(otherSession,
+						new Callable<Object>() {
+							public Object call() {
+								Assert.assertSame(ZSessionScope.getSession(),
+										otherSession);
+								return null;
+							}
+						});
+				// the outer binding is restored
+				Assert.assertSame(ZSessionScope.getSession(), session);
+				return (Item) ZSessionScope.getSession().get(Item.META, "1");
+			}
+		});
+		Assert.assertEquals(item.getName(), "item1");
+		Assert.assertFalse(ZSessionScope.isBound());
+		Assert.assertFalse(session.isClosed());
+		otherSession.close();
+	}
+}
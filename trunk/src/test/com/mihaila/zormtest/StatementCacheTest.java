@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2007 Cornel Mihaila (http://www.mihaila.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.package zutil;
+ */
+
+package com.mihaila.zormtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mihaila.zorm.ZManager;
+import com.mihaila.zorm.ZSession;
+
+/**
+ * Tests of the cache of prepared statements of a session
+ * (<code>ZSession.getPreparedStatement(String)</code>), using a fake SQL
+ * connection (no database is needed).
+ */
+public class StatementCacheTest {
+
+	private int m_statementCacheSize;
+
+	private FakeConnection m_fakeConn;
+
+	private ZSession m_session;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		m_statementCacheSize = ZManager.getStatementCacheSize();
+		ZManager.setStatementCacheSize(2);
+		m_fakeConn = new FakeConnection();
+		m_session = ZManager.getNewSession(m_fakeConn.getConnection());
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		m_session.close();
+		ZManager.setStatementCacheSize(m_statementCacheSize);
+	}
+
+	@Test
+	/**
+	 * Test that a cached statement is prepared only once.
+	 */
+	public void testHits() {
+		PreparedStatement stmt = m_session.getPreparedStatement("SELECT 1");
+		Assert.assertSame(m_session.getPreparedStatement("SELECT 1"), stmt);
+		Assert.assertEquals(m_fakeConn.statements.size(), 1);
+	}
+
+	@Test
+	/**
+	 * Test that the least recently used statement is closed and removed when
+	 * the cache is full.
+	 */
+	public void testEviction() {
+		PreparedStatement stmt1 = m_session.getPreparedStatement("SELECT 1");
+		PreparedStatement stmt2 = m_session.getPreparedStatement("SELECT 2");
+		// SELECT 2 becomes the least recently used statement
+		m_session.getPreparedStatement("SELECT 1");
+		m_session.getPreparedStatement("SELECT 3");
+		Assert.assertTrue(isClosed(stmt2));
+		Assert.assertFalse(isClosed(stmt1));
+		Assert.assertSame(m_session.getPreparedStatement("SELECT 1"), stmt1);
+		Assert.assertNotSame(m_session.getPreparedStatement("SELECT 2"),
+				stmt2);
+		Assert.assertEquals(m_fakeConn.statements.size(), 4);
+		// the remaining statements are closed with the session
+		m_session.close();
+		int numOpen = 0;
+		for (PreparedStatement stmt : m_fakeConn.statements) {
+			if (!isClosed(stmt)) {
+				numOpen++;
+			}
+		}
+		Assert.assertEquals(numOpen, 0);
+	}
+
+	@Test
+	/**
+	 * Test that a statement failing to close is still evicted, without
+	 * failing the new statement.
+	 */
+	public void testCloseFailureOnEvict() {
+		m_session.getPreparedStatement("SELECT 'fail close'");
+		PreparedStatement stmt2 = m_session.getPreparedStatement("SELECT 2");
+		PreparedStatement stmt3 = m_session.getPreparedStatement("SELECT 3");
+		Assert.assertNotNull(stmt3);
+		// the failing statement was removed, the others are still cached
+		Assert.assertSame(m_session.getPreparedStatement("SELECT 2"), stmt2);
+		Assert.assertSame(m_session.getPreparedStatement("SELECT 3"), stmt3);
+		Assert.assertEquals(m_fakeConn.statements.size(), 3);
+	}
+
+	/**
+	 * Returns true if the specified fake statement was closed.
+	 * 
+	 * @param stmt
+	 * @return true if the statement was closed
+	 */
+	private static boolean isClosed(PreparedStatement stmt) {
+		return ((FakeStatement) Proxy.getInvocationHandler(stmt)).closed;
+	}
+
+	/**
+	 * Fake prepared statement. Closing it fails if its SQL query contains
+	 * "fail close".
+	 */
+	private final static class FakeStatement implements InvocationHandler {
+
+		private final String sql;
+
+		boolean closed;
+
+		FakeStatement(String sql) {
+			this.sql = sql;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws SQLException {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (sql.contains("fail close")) {
+					throw new SQLException("close failed");
+				}
+				closed = true;
+			} else if (name.equals("isClosed")) {
+				return closed;
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Fake SQL connection, keeping the prepared statements.
+	 */
+	private final static class FakeConnection implements InvocationHandler {
+
+		final List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+
+		Connection getConnection() {
+			return (Connection) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { Connection.class },
+					this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("prepareStatement")) {
+				PreparedStatement stmt = (PreparedStatement) Proxy
+						.newProxyInstance(getClass().getClassLoader(),
+								new Class<?>[] { PreparedStatement.class },
+								new FakeStatement((String) args[0]));
+				statements.add(stmt);
+				return stmt;
+			} else if (name.equals("isClosed")) {
+				return false;
+			} else if (name.equals("getAutoCommit")) {
+				return true;
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			return null;
+		}
+	}
+
+}
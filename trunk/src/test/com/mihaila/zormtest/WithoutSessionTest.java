@@ -25,6 +25,12 @@ package com.mihaila.zormtest;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.mihaila.zorm.ZField;
+import com.mihaila.zorm.ZPersistent;
+import com.mihaila.zorm.ZPersistentMeta;
+import com.mihaila.zorm.exception.ZormException;
+import com.mihaila.zorm.field.ZIntField;
+import com.mihaila.zorm.field.ZStringField;
 import com.mihaila.zormtest.helper.Item;
 
 
@@ -82,4 +88,174 @@ public class WithoutSessionTest {
 		Assert.assertFalse(item.isFieldModified(Item.ACTIVE));
 		Assert.assertFalse(item.isFieldModified(Item.AUTHOR_ID));
 	}
+
+	@Test
+	/**
+	 * Test that the typed setters go through the overwritten
+	 * setFieldValue() and validate() functions.
+	 */
+	public void testPrimitiveSetterHooks() {
+		Rated rated = new Rated();
+		rated.setRating(3);
+		Assert.assertEquals(rated.getRating(), 3);
+		Assert.assertTrue(rated.isFieldModified(Rated.RATING));
+		Assert.assertEquals(rated.setCount, 1);
+		try {
+			rated.setRating(-1);
+			Assert.fail("The validation of the field was skipped.");
+		} catch (ZormException e) {
+			// expected
+		}
+		Assert.assertEquals(rated.getRating(), 3);
+		Assert.assertEquals(rated.setCount, 1);
+
+		// without overwritten functions the values are set directly
+		Item item = new Item();
+		item.setRating(-1);
+		Assert.assertEquals(item.getRating(), -1);
+		Assert.assertTrue(item.isFieldModified(Item.RATING));
+	}
+
+	@Test
+	/**
+	 * Test the initialized, modified and null flags of the fields stored
+	 * after the first 64 bits (fields 63, 64 and 65 of a wide object).
+	 */
+	public void testWideFieldFlags() {
+		Wide wide = new Wide();
+		ZField field63 = Wide.META.getAllFields()[63];
+		ZField field64 = Wide.META.getAllFields()[64];
+		ZField field65 = Wide.META.getAllFields()[65];
+		Assert.assertEquals(field65.getIndex(), 65);
+		for (ZField field : Wide.META.getAllFields()) {
+			Assert.assertFalse(wide.isFieldInitialized(field));
+			Assert.assertFalse(wide.isFieldModified(field));
+		}
+		Assert.assertFalse(wide.isModified());
+
+		wide.setFieldValue(field64, 7);
+		Assert.assertTrue(wide.isFieldInitialized(field64));
+		Assert.assertTrue(wide.isFieldModified(field64));
+		Assert.assertEquals(wide.getFieldValue(field64), 7);
+		Assert.assertFalse(wide.isFieldInitialized(field63));
+		Assert.assertFalse(wide.isFieldModified(field63));
+		Assert.assertFalse(wide.isFieldInitialized(field65));
+		Assert.assertFalse(wide.isFieldModified(field65));
+		// the flag of the field 64 is not the one of the field 0
+		Assert.assertFalse(wide.isFieldInitialized(Wide.ID));
+		Assert.assertFalse(wide.isFieldModified(Wide.ID));
+		Assert.assertTrue(wide.isModified());
+
+		wide.setFieldValue(field63, 0);
+		wide.setFieldValue(field65, null);
+		Assert.assertEquals(wide.getFieldValue(field63), 0);
+		Assert.assertNull(wide.getFieldValue(field65));
+		Assert.assertEquals(wide.getFieldValue(field64), 7);
+		wide.setFieldValue(field65, 8);
+		Assert.assertEquals(wide.getFieldValue(field65), 8);
+		wide.setFieldValue(field63, null);
+		Assert.assertNull(wide.getFieldValue(field63));
+		Assert.assertEquals(wide.getFieldValue(field64), 7);
+
+		wide.setModified(false);
+		Assert.assertFalse(wide.isModified());
+		Assert.assertFalse(wide.isFieldModified(field63));
+		Assert.assertFalse(wide.isFieldModified(field64));
+		Assert.assertFalse(wide.isFieldModified(field65));
+		Assert.assertTrue(wide.isFieldInitialized(field64));
+		wide.setModified(true);
+		Assert.assertTrue(wide.isFieldModified(field63));
+		Assert.assertTrue(wide.isFieldModified(field64));
+		Assert.assertTrue(wide.isFieldModified(field65));
+
+		wide.clearFieldValue(field64);
+		Assert.assertFalse(wide.isFieldInitialized(field64));
+		Assert.assertFalse(wide.isFieldModified(field64));
+		Assert.assertTrue(wide.isFieldInitialized(field63));
+		Assert.assertTrue(wide.isFieldInitialized(field65));
+		Assert.assertTrue(wide.isModified());
+	}
+
+	/**
+	 * Int field accepting only positive values.
+	 */
+	private static final class PositiveIntField extends ZIntField {
+
+		public PositiveIntField(String name) {
+			super(name);
+		}
+
+		@Override
+		public void validate(Object value) {
+			super.validate(value);
+			if ((value != null) && ((Integer) value < 0)) {
+				throw new ZormException("Negative value for the field: "
+						+ this + '.');
+			}
+		}
+	}
+
+	/**
+	 * Persistent class counting the modifications of its fields.
+	 */
+	private static final class Rated extends ZPersistent {
+
+		static final ZPersistentMeta META = new ZPersistentMeta(Rated.class,
+				"rated", "r");
+
+		static final ZStringField ID = new ZStringField("id");
+
+		static final PositiveIntField RATING = new PositiveIntField("rating");
+
+		static {
+			META.setFields(ID, RATING);
+		}
+
+		int setCount;
+
+		@Override
+		public ZPersistentMeta getMeta() {
+			return META;
+		}
+
+		@Override
+		public void setFieldValue(ZField field, Object value) {
+			super.setFieldValue(field, value);
+			setCount++;
+		}
+
+		int getRating() {
+			return RATING.getInt(this);
+		}
+
+		void setRating(int value) {
+			RATING.setInt(this, value);
+		}
+	}
+
+	/**
+	 * Persistent class with 70 fields, so its flags need more than one long.
+	 */
+	private static final class Wide extends ZPersistent {
+
+		static final ZPersistentMeta META = new ZPersistentMeta(Wide.class,
+				"wide", "w");
+
+		static final ZStringField ID = new ZStringField("id");
+
+		static {
+			ZField[] fields = new ZField[70];
+			fields[0] = ID;
+			for (int i = 1; i < fields.length; i++) {
+				fields[i] = new ZIntField("f" + i);
+				fields[i].setNullValid(true);
+			}
+			META.setFields(fields);
+		}
+
+		@Override
+		public ZPersistentMeta getMeta() {
+			return META;
+		}
+	}
 }
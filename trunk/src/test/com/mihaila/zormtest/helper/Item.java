@@ -68,19 +68,19 @@ public final class Item extends ZPersistent {
 	}
 
 	public int getRating() {
-		return RATING.getValue(this);
+		return RATING.getInt(this);
 	}
 
 	public void setRating(int value) {
-		RATING.setValue(this, value);
+		RATING.setInt(this, value);
 	}
 
 	public boolean isActive() {
-		return ACTIVE.getValue(this);
+		return ACTIVE.getBoolean(this);
 	}
 
 	public void setActive(boolean value) {
-		ACTIVE.setValue(this, value);
+		ACTIVE.setBoolean(this, value);
 	}
 
 	public String getAuthorId() {